@@ -105,7 +105,10 @@ public class ECSClient implements IECSClient {
                     try {
                         int numNodes = Integer.parseInt(tokens[1]);
                         String cacheStrategy = tokens[2];
-                        int cacheSize = Integer.parseInt(tokens[3]);
+                        String cacheSize = tokens[3];
+                        if (!KVCache.isValidSize(cacheSize)) {
+                            throw new NumberFormatException("Invalid cacheSize " + cacheSize);
+                        }
                         if(numNodes <= ecsInstance.availableServers()) {
                             if (KVCache.isValidStrategy(cacheStrategy)) {
                                 addNodes(numNodes, cacheStrategy, cacheSize);
@@ -129,8 +132,8 @@ public class ECSClient implements IECSClient {
                         }
                     }
                     catch(NumberFormatException nfe) {
-                        printError(PROMPT + "Invalid numNodes/cacheSize. Must be a number!");
-                        logger.error("Invalid numNodes/cacheSize. Must be a number!", nfe);
+                        printError(PROMPT + "Invalid numNodes/cacheSize. Must be a number, cacheSize may end in B, KB, MB or GB!");
+                        logger.error("Invalid numNodes/cacheSize. Must be a number, cacheSize may end in B, KB, MB or GB!", nfe);
                     }
                 }
                 else {
@@ -191,7 +194,10 @@ public class ECSClient implements IECSClient {
                 if(tokens.length == 3) {
                     try {
                         String cacheStrategy = tokens[1];
-                        int cacheSize = Integer.parseInt(tokens[2]);
+                        String cacheSize = tokens[2];
+                        if (!KVCache.isValidSize(cacheSize)) {
+                            throw new NumberFormatException("Invalid cacheSize " + cacheSize);
+                        }
                         if (KVCache.isValidStrategy(cacheStrategy)) {
                             IECSNode newNode = addNode(cacheStrategy, cacheSize);
                             if (newNode == null) {
@@ -205,8 +211,8 @@ public class ECSClient implements IECSClient {
                         }
                     }
                     catch(NumberFormatException nfe) {
-                        printError(PROMPT + "Invalid cacheSize. cacheSize must be a number!");
-                        logger.error("Invalid cacheSize. cacheSize must be a number!", nfe);
+                        printError(PROMPT + "Invalid cacheSize. cacheSize must be a number of entries or of bytes ending in B, KB, MB or GB!");
+                        logger.error("Invalid cacheSize. cacheSize must be a number of entries or of bytes ending in B, KB, MB or GB!", nfe);
                     }
                 }
                 else {
@@ -267,6 +273,7 @@ public class ECSClient implements IECSClient {
         sb.append("::::::::::::::::::::::::::::::::\n");
         sb.append(PROMPT).append("init <numNodes> <cacheStrategy> <cacheSize>");
         sb.append("\t Launches numNodes servers with cacheSize and cacheStrategy\n");
+        sb.append(PROMPT).append("\t\t cacheSize is a number of entries, or of bytes ending in B, KB, MB or GB (e.g. 64MB)\n");
         sb.append(PROMPT).append("start");
         sb.append("\t 1) Starts storage service on all launched server instances \n");
         sb.append(PROMPT).append("stop");
@@ -388,6 +395,11 @@ public class ECSClient implements IECSClient {
 
     @Override
     public IECSNode addNode(String cacheStrategy, int cacheSize) {
+        return addNode(cacheStrategy, Integer.toString(cacheSize));
+    }
+
+    @Override
+    public IECSNode addNode(String cacheStrategy, String cacheSize) {
         if(ecsInstance.availableServersCount() == 0) return null;
         IECSNode node = null;
         if(ecsInstance.ringNetworkSize() == 0) {
@@ -411,12 +423,22 @@ public class ECSClient implements IECSClient {
 
     @Override
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
+        return addNodes(count, cacheStrategy, Integer.toString(cacheSize));
+    }
+
+    @Override
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, String cacheSize) {
         if(count > ecsInstance.availableServersCount()) return new ArrayList<IECSNode>();
         return setupNodes(count, cacheStrategy, cacheSize);
     }
 
     @Override
     public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize) {
+        return setupNodes(count, cacheStrategy, Integer.toString(cacheSize));
+    }
+
+    @Override
+    public Collection<IECSNode> setupNodes(int count, String cacheStrategy, String cacheSize) {
         Collection<IECSNode> nodes = new ArrayList<IECSNode>();
         int counter = 0;
         while(counter < count) {
@@ -434,7 +456,7 @@ public class ECSClient implements IECSClient {
         return nodes;
     }
 
-    public IECSNode setupFirstNode(String cacheStrategy, int cacheSize) {
+    public IECSNode setupFirstNode(String cacheStrategy, String cacheSize) {
         //This function should only be used to setup the first node on the ring network
         boolean success = false;
         // This is called before launching the servers - decides which nodes to add in hashRing, adds them
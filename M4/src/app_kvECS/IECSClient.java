@@ -33,6 +33,12 @@ public interface IECSClient {
      */
     public IECSNode addNode(String cacheStrategy, int cacheSize);
 
+    /**
+     * Same as addNode with a cache size of a number of entries, or a budget in bytes with a unit: B, KB, MB or GB.
+     * @return  name of new server
+     */
+    public IECSNode addNode(String cacheStrategy, String cacheSize);
+
     /**
      * Randomly choose <numberOfNodes> servers from the available machines and start the KVServer by issuing an SSH call to the respective machine.
      * This call launches the storage server with the specified cache size and replacement strategy. For simplicity, locate the KVServer.jar in the
@@ -42,12 +48,24 @@ public interface IECSClient {
      */
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize);
 
+    /**
+     * Same as addNodes with a cache size of a number of entries, or a budget in bytes with a unit: B, KB, MB or GB.
+     * @return  set of strings containing the names of the nodes
+     */
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, String cacheSize);
+
     /**
      * Sets up `count` servers with the ECS (in this case Zookeeper)
      * @return  array of strings, containing unique names of servers
      */
     public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize);
 
+    /**
+     * Same as setupNodes with a cache size of a number of entries, or a budget in bytes with a unit.
+     * @return  array of strings, containing unique names of servers
+     */
+    public Collection<IECSNode> setupNodes(int count, String cacheStrategy, String cacheSize);
+
     /**
      * Wait for all nodes to report status or until timeout expires
      * @param count     number of nodes to wait for
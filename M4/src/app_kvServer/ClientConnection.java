@@ -1,13 +1,13 @@
 package app_kvServer;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Arrays;
 
+import common.messages.BinaryMessage;
+import common.messages.BinaryMessageReader;
 import common.messages.TextMessage;
 import common.KVConstants;
 
@@ -18,9 +18,8 @@ import org.apache.log4j.*;
  * Represents a connection end point for a particular client that is 
  * connected to the server. This class is responsible for message reception 
  * and sending.
- * The class also implements the get and put functionality. Thus whenever a message 
- * is received with "put key value", it is added to the persistent disk storage and also cached.
- * When a message is received with "get key", its corresponding value is returned.
+ * Requests are served by the RequestHandler shared by all connections, this
+ * class only takes care of the framing of the text and binary protocols.
  */
 public class ClientConnection implements Runnable {
 
@@ -28,21 +27,23 @@ public class ClientConnection implements Runnable {
     
     private boolean isOpen;
     private static final int BUFFER_SIZE = 1024;
-    private static final int MAX_KEY_LENGTH = 20; 
-    private static final int MAX_VALUE_LENGTH = 122880; //120KB
     private static final int DROP_SIZE = 128 * BUFFER_SIZE;
     
     private Socket clientSocket;
-    private KVServer server;
+    private RequestHandler handler;
     private InputStream input;
     private OutputStream output;
+    // Binary protocol, once negotiated with the client
+    private boolean binary = false;
+    private BinaryMessageReader binaryReader;
+    private OutputStream binaryOutput;
 
     /**
      * Constructs a new CientConnection object for a given TCP socket.
      * @param clientSocket the Socket object for the client connection.
      */
-    public ClientConnection (KVServer server, Socket clientSocket) {
-        this.server = server;
+    public ClientConnection (RequestHandler handler, Socket clientSocket) {
+        this.handler = handler;
         this.clientSocket = clientSocket;
         this.isOpen = true;
     }
@@ -63,103 +64,18 @@ public class ClientConnection implements Runnable {
 
             while (isOpen) {
                 try {
-                    TextMessage msgReceived = receiveMessage();
-                    // Unmarshalling of received message
-                    String[] msgContent = msgReceived.getMsg().split(KVConstants.SPLIT_DELIM);
-                    String command = msgContent[0];
-                    // Key cannot contain DELIM, but value can
-                    // So combine all strings from msgContent[2] till end to get value
-                    List<String> valueParts = new LinkedList<>();
-                    for (int i = 2; i < msgContent.length; ++i) {
-                        valueParts.add(msgContent[i]);
-                    }
-                    String value = String.join(KVConstants.DELIM, valueParts);
-                    String key = null;
-                    boolean success = true;
-                    if (command.equals("ECS")) {
-                        String[] ecsCmd = Arrays.copyOfRange(msgContent, 1, msgContent.length);
-                        handleECSCmd(ecsCmd);
+                    if (binary) {
+                        handleBinaryMessage(binaryReader.read());
                         continue;
                     }
-                    else if (command.equals("MOVE_KVPAIRS")) {
-                        // Receiving KVPairs from another server
-                        String destination = msgContent[1];
-                        if (msgContent.length >= 2) {
-                            logger.debug("handle move kvpairs....");
-                            success = server.handleMoveKVPairs(destination, value);
-                            String res = success ? "MOVE_SUCCESS" : "MOVE_FAILED";
-                            sendMessage(new TextMessage(res));
-                            logger.info(res);
-                        }
-                        continue;
-                    }
-                    else if (command.equals("UPDATE")) {
-                        // Add / Update / Delete of a single KVPair
-                        String destination = msgContent[1];
-                        String action = msgContent[2];
-                        String updateKey = msgContent[3];
-                        List<String> updateValueParts = new LinkedList<>();
-                        for (int i = 4; i < msgContent.length; ++i) {
-                            updateValueParts.add(msgContent[i]);
-                        }
-                        String updateValue = String.join(KVConstants.DELIM, updateValueParts);
-                        success = server.handleUpdateKVPair(destination, action, updateKey, updateValue);
-                        String res = success ? "UPDATE_SUCCESS" : "UPDATE_FAILED";
-                        logger.info(res);
-                        sendMessage(new TextMessage(res));
+                    TextMessage msgReceived = receiveMessage();
+                    String[] msgContent = msgReceived.getMsg().split(KVConstants.SPLIT_DELIM);
+                    if (msgContent[0].equals("PROTOCOL")) {
+                        negotiateProtocol(msgContent);
                         continue;
                     }
-                    else {
-                        if(msgContent.length > 1){
-                            key = msgContent[1];
-                        }
-                        //Just a guard
-                        if(key == null) {
-                            logger.debug("Error! key is null!!");
-                            continue;
-                        }
-                        if (server.isStopped()) {
-                            sendMessage(new TextMessage("SERVER_STOPPED"));
-                            logger.info("SERVER_STOPPED cannot handle client requests at the moment.");
-                            continue;
-                        }
-                        // Check if server is responsible for this key
-                        if ((command.equals("PUT") && !server.isResponsible(key)) ||
-                            (command.equals("GET") && !server.serverOrReplicasResponsible(key))) {
-                            sendMessage(new TextMessage("SERVER_NOT_RESPONSIBLE"));
-                            TextMessage getMetaData = receiveMessage();
-                            if(getMetaData.getMsg().equals("GET_METADATA")) {
-                                String metaFetchStatus = server.getMetaDataFromFile();
-                                sendMessage(new TextMessage(metaFetchStatus));
-                                if(!metaFetchStatus.equals("METADATA_FETCH_ERROR")) {
-                                    System.out.println(server.getServerReplicas());
-                                    sendMessage(new TextMessage(server.getServerReplicas()));
-                                }
-                            } else {
-                                logger.info("ERROR!!! EXPECTED TO RECEIVE GET_METADATA MSG!!");
-                            }
-                            continue;
-                        }
-                        if (command.equals("PUT")) {
-                            if(server.isWriteLocked()){
-                                sendMessage(new TextMessage("SERVER_WRITE_LOCK"));
-                                logger.info("SERVER_WRITE_LOCK: server locked, write operation failed");
-                                continue;
-                            }
-                            handlePutCmd(key, value);
-                        }
-                        else if (command.equals("GET")) {
-                            if(server.isReadLocked()) {
-                                sendMessage(new TextMessage("SERVER_STOPPED"));
-                                logger.info("SERVER_READ_LOCKED cannot handle client requests at the moment.");
-                                continue;
-                            }
-                            handleGetCmd(key);
-                        }
-                        else {
-                            logger.error("Received invalid message type from client.");
-                            System.out.println("Received invalid message type from client.");
-                        }
+                    for (TextMessage reply : handler.handleText(msgReceived.getMsg())) {
+                        sendMessage(reply);
                     }
                 }
                 /* connection either terminated by the client or lost due to 
@@ -187,183 +103,37 @@ public class ClientConnection implements Runnable {
         }
     }
 
-    private boolean errorCheck (String key, String value) {
-        boolean result = true;
-        if (key.length() < 1) {
-            logger.error("Server Error: minimum key length allowed is 1 but key has length " + key.length());
-            result = false;
-        }
-        if (key.length() > MAX_KEY_LENGTH) {
-            logger.error("Server Error: maximum key length allowed is " + MAX_KEY_LENGTH + " but key has length " + key.length());
-            result = false;
-        }
-        if (value.length() > MAX_VALUE_LENGTH) {
-            logger.error("Server Error: maximum value length allowed is 120K Bytes but value has length " + value.length());
-            result = false;
-        }
-        if (key.contains(" ")) {
-            logger.error("Server Error: Key should not contain space");
-            result = false;
-        }
-        if (key.contains(KVConstants.DELIM)) {
-            logger.error("Server Error: Key should not contain delimiter " + KVConstants.DELIM);
-            result = false;
-        }
-        return result;
-    }
-
-    private void handleECSCmd (String[] msg) {
-        boolean success;
-        try {
-            switch(msg[0]) {
-                case "WRITE_UNLOCK":
-                    server.unlockWrite();
-                    sendMessage(new TextMessage("UNLOCK_SUCCESS"));
-                    return;
-                case "WRITE_LOCK":
-                    server.lockWrite();
-                    sendMessage(new TextMessage("LOCK_SUCCESS"));
-                    return;
-                case "SETUP_NODE":
-                    int cacheSize = Integer.parseInt(msg[2]);
-                    server.setupCache(cacheSize, msg[1]);
-                    sendMessage(new TextMessage("SETUP_SUCCESS"));
-                    return;
-                case "START_NODE":
-                    server.start();
-                    sendMessage(new TextMessage("START_SUCCESS"));
-                    return;
-                case "STOP_NODE":
-                    server.stop();
-                    sendMessage(new TextMessage("STOP_SUCCESS"));
-                    return;
-                case "SHUTDOWN_NODE":
-                    server.shutdown();
-                    sendMessage(new TextMessage("SHUTDOWN_SUCCESS"));
-                    return;
-                case "MOVE_ALL_KVPAIRS":
-                    server.setMoveAll(true);
-                case "MOVE_KVPAIRS":
-                    //targetRange in msg[1], msg[2]
-                    System.out.println("Updated metadata. Now moving data");
-                    String[] targetRange = Arrays.copyOfRange(msg, 2, 2);
-                    String targetName = msg[1];
-                    success = server.moveData(targetRange, targetName);
-                    if(success) {
-                        sendMessage(new TextMessage("MOVE_SUCCESS"));
-                    } else {
-                        sendMessage(new TextMessage("MOVE_FAILED"));
-                    }
-                    server.setMoveAll(false);
-                    return;
-                case "UPDATE_METADATA":
-                    success = server.updateMetaData();
-                    if(success) {
-                        sendMessage(new TextMessage("METADATA_UPDATE_SUCCESS"));
-                    } else {
-                        sendMessage(new TextMessage("METADATA_UPDATE_FAILED"));
-                    }
-                    return;
-                case "UPDATE_REPLICAS":
-                    server.setMoveAll(true);
-                    System.out.println("Here at UPDATE_REPLICAS");
-                    String primaryReplica = msg[1];
-                    String secondaryReplica = msg[2];
-                    System.out.println("Replicas received: " + primaryReplica + " " + secondaryReplica);
-                    success = server.updateReplicas(primaryReplica, secondaryReplica);
-                    if(success) {
-                        System.out.println("REPLICAS UPDATED");
-                        sendMessage(new TextMessage("REPLICA_UPDATE_SUCCESS"));
-                    } else {
-                        System.out.println("REPLICAS NOT UPDATED");
-                        sendMessage(new TextMessage("REPLICA_UPDATE_FAILED"));
-                    }
-                    server.setMoveAll(false);
-                    return;
-                default:
-                    logger.error("Unknown ECS cmd!");
-                    return;
-            }
-        }
-        catch (Exception ex) {
-            logger.error("ERROR! could not send ACK back to ECS!");
-        }
-    }
-
-    private void handlePutCmd (String key, String value) {
-        String result = "PUT_ERROR";
-
-        //Done in KVServer;
-        if (errorCheck(key, value)) {
-            // If Value is not null or empty, insert in $ and disk
-            if (value != null && !value.equals("") && !value.equals("null")) {
-                try {
-                    result = (server.inStorage(key)) ? "PUT_UPDATE" : "PUT_SUCCESS";
-                    server.putKV(key, value);
-                    logger.info("Success " + result + " with key " + key + " and value " 
-                        + value + " on server");
-                }
-                catch (Exception ex) {
-                    result = "PUT_ERROR";
-                    logger.error("PUT Error! Unable to add key " + key + " and value "
-                        + value + " to server " + ex);
-                    ex.printStackTrace();
-                }
-            }
-            else {
-                // Delete the value from $ and disk
-                try {
-                    result = (server.inStorage(key)) ? "DELETE_SUCCESS" : "DELETE_ERROR";
-                    if(result.equals("DELETE_SUCCESS")) 
-                        server.deleteKV(key);
-                    logger.info("Success " + result + " with key " + key + " on server");
-                }
-                catch (Exception ex) {
-                    result = "DELETE_ERROR";
-                    logger.error("DELETE Error! Unable to delete key " + key + " from server");
-                }
+    /**
+     * Switch the connection to the binary protocol if the client asks for a
+     * version this server speaks
+     */
+    private void negotiateProtocol(String[] msgContent) throws IOException {
+        if (RequestHandler.acceptsBinary(msgContent)) {
+            sendMessage(new TextMessage(RequestHandler.PROTOCOL_BINARY));
+            // The request ended with LF CR, only the LF has been read
+            if (input.read() != '\r') {
+                throw new IOException("Expected end of protocol request");
             }
+            binaryReader = new BinaryMessageReader(input);
+            binaryOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+            binary = true;
+            logger.info("Switched connection to binary protocol version " + BinaryMessage.VERSION);
         }
-
-        // Send PUT Ack to the user
-        try {
-            sendMessage(new TextMessage(result));
-        }
-        catch (Exception ex) {
-            logger.error("SEND Error! Server unable to send PUT Ack message back to the client");
+        else {
+            sendMessage(new TextMessage(RequestHandler.PROTOCOL_TEXT));
         }
     }
 
-    private void handleGetCmd (String key) {
-        String result = "GET_ERROR";
-        if (errorCheck(key, "")) {
-            //Done in KVServer;
-            try {
-                String value = server.getKV(key);
-                result = (value.equals(""))? "GET_ERROR": ("GET_SUCCESS" + KVConstants.DELIM + value);
-                if(result.equals("GET_ERROR")) {
-                    logger.info("GET_ERROR: Unable to fetch the value for the key " + key + " on server");
-                }
-                else {
-                    logger.info("Successfully fetched the value " + value + " for the key " + key + " on server");
-                }
-            }
-            catch (Exception ex) {
-                result = "GET_ERROR";
-                logger.info("GET_ERROR: Unable to fetch the value for the key " + key + " on server");
-            }
-        }
-
-        // Send PUT Ack to the user
-        try {
-            sendMessage(new TextMessage(result));
-        }
-        catch (Exception ex) {
-            logger.error("SEND Error! Server unable to send PUT Ack message back to the client");
-        }
+    private void handleBinaryMessage(BinaryMessage request) throws IOException {
+        logger.debug("RECEIVE \t<" + clientSocket.getInetAddress().getHostAddress() + ":"
+                + clientSocket.getPort() + ">: " + request);
+        BinaryMessage reply = handler.handleBinary(request);
+        reply.writeTo(binaryOutput);
+        binaryOutput.flush();
+        logger.debug("SEND \t<" + clientSocket.getInetAddress().getHostAddress() + ":"
+                + clientSocket.getPort() + ">: " + reply);
     }
 
-
     /**
      * Method sends a TextMessage using this socket.
      * @param msg the message that is to be sent.
@@ -10,6 +10,11 @@ public interface IKVServer {
         DELETE
     };
 
+    public enum ServerMode {
+        THREADED,   // one thread per connection
+        NIO         // selector event loops and a worker pool
+    };
+
     /**
      * Get the port number of the server
      * @return  port number
@@ -1,30 +1,35 @@
 package app_kvServer;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 
 import java.math.BigInteger;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
-import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import logger.LogSetup;
 
@@ -34,40 +39,100 @@ import org.apache.zookeeper.KeeperException;
 
 import common.md5;
 import common.KVConstants;
+import common.RangeLoad;
 import common.ServerMetaData;
-import common.messages.TextMessage;
+import common.messages.KVBatch;
+import common.messages.KVReplyMessage;
+import common.messages.KVMessage.AckLevel;
+import common.messages.KVMessage.StatusType;
 import cache.IKVCache.CacheStrategy;
 import cache.KVCache;
-import client.KVStore;
+import cache.KVCacheSegmented;
 import ecs.ZKImplementation;
+import storage.KVStorage;
+import storage.KVStorageCompactor;
+import storage.KVStorageSegmented;
+import storage.KVLogWriter;
 
 public class KVServer implements IKVServer, Runnable {
 
     private static Logger logger = Logger.getRootLogger();
     //Server tools
     private ServerSocket serverSocket;
-    private KVCache cache;
+    private NioServer nioServer;
+    private RequestHandler handler;
+    private volatile KVCache cache;
+    // Values read from the replica storages, kept apart so that replica
+    // reads neither evict nor go stale in the coordinator cache
+    private volatile KVCache replicaCache;
+    private final String replicaCacheSize;
+    //Storage, one per role, always addressed by role so that requests for
+    //different roles never share any state
+    private KVStorage serverStorage;
+    private KVStorage pReplicaStorage;
+    private KVStorage sReplicaStorage;
     //Metadata
     private ServerMetaData metadata;
+    // Every range of this server, one per token it has on the ring
+    private volatile List<ServerMetaData> ranges = Collections.emptyList();
     private Path metaDataFile;
-    private String currFilePath;
     private String serverFilePath;
     private String pReplicaFilePath;
     private String sReplicaFilePath;
     private String zkPath;
     // TimeStamper
     private TimeStamper timeStamper;
+    private ServerConfig config;
+    private KVStorageCompactor compactor;
+    private KVLogWriter logWriter;
     // This server's replicas
-    private String role = KVConstants.COORDINATOR;
     private ServerMetaData primaryReplica;
     private ServerMetaData secondaryReplica;
+    // Incoming range transfers from other servers
+    private final RangeReceiver rangeReceiver = new RangeReceiver(new RangeReceiver.Sink() {
+        @Override
+        public boolean begin(String destination) {
+            return beginMove(destination);
+        }
+
+        @Override
+        public boolean apply(String destination, Map<String, String> pairs) {
+            return applyMove(destination, pairs);
+        }
+
+        @Override
+        public Path stage(String destination, int segment) throws IOException {
+            Path staged = segmentedStorage(destination).stagingPath(segment);
+            Files.deleteIfExists(staged);
+            return staged;
+        }
+
+        @Override
+        public boolean install(String destination, int segment, Path staged) {
+            return installSegment(destination, segment, staged);
+        }
+    });
+    // Keys deleted at once after moving a range out
+    private static final int DELETE_BATCH = 1000;
+    private final ReplicationChannel pReplicaChannel = new ReplicationChannel(KVConstants.PREPLICA);
+    private final ReplicationChannel sReplicaChannel = new ReplicationChannel(KVConstants.SREPLICA);
+    private AckLevel replicationAck;
+    private final LoadStats loadStats = new LoadStats();
+    private KeyLocks keyLocks;
     //State
     private boolean running = false;
-    private boolean writeLocked = true;     //start in a stopped state
-    private boolean readLocked = true;      //start in a stopped state
-    private boolean moveAll = false;
-    private boolean pReplica = false;
-    private boolean sReplica = false;
+    private volatile boolean writeLocked = true;     //start in a stopped state
+    private volatile boolean readLocked = true;      //start in a stopped state
+    // Ranges being moved out at once, writes are locked until the last ends
+    private final Object moveLock = new Object();
+    private int movesOut = 0;
+    private boolean unlockAfterMoves = false;
+    //Recovery
+    private final CountDownLatch recovered = new CountDownLatch(1);
+    private final Object recoveryLock = new Object();
+    private boolean startPending = false;
+    // Set when a storage could not be indexed, the server then stays stopped
+    private volatile boolean recoveryFailed = false;
     
     private ZKImplementation zkImplServer;
     /**
@@ -93,16 +158,27 @@ public class KVServer implements IKVServer, Runnable {
         this.serverFilePath = KVConstants.SERVER + Integer.toString(zkPort);
         this.pReplicaFilePath = KVConstants.SERVER + Integer.toString(zkPort) + "_PRIMARY";
         this.sReplicaFilePath = KVConstants.SERVER + Integer.toString(zkPort) + "_SECONDARY";
-        // Delete Replica files, if they exist
+        this.config = new ServerConfig(KVConstants.SERVER_CONFIG);
+        this.handler = new RequestHandler(this);
+        this.replicationAck = config.getReplicationAck();
+        this.keyLocks = new KeyLocks(config.getLockStripes());
+        this.replicaCacheSize = config.getReplicaCacheSize();
+        this.logWriter = new KVLogWriter(config.getFsyncPolicy(), config.getFsyncInterval());
+        new Thread(logWriter).start();
+        // Storages are indexed by the recovery phase once the server is launched
         try {
-            Files.deleteIfExists(Paths.get(pReplicaFilePath));
-            Files.deleteIfExists(Paths.get(sReplicaFilePath));
+            String strategy = config.getStorageStrategy();
+            this.serverStorage = KVStorage.openKVStorage(serverFilePath, strategy, logWriter);
+            this.pReplicaStorage = KVStorage.openKVStorage(pReplicaFilePath, strategy, logWriter);
+            this.sReplicaStorage = KVStorage.openKVStorage(sReplicaFilePath, strategy, logWriter);
+            this.serverStorage.setReadMode(config.getReadMode());
+            this.pReplicaStorage.setReadMode(config.getReadMode());
+            this.sReplicaStorage.setReadMode(config.getReadMode());
         } catch (IOException ex) {
-            // File permission problems are caught here.
-            logger.error("Permission problems " + ex);
+            logger.error("Unable to open storage " + ex);
         }
-        this.currFilePath = this.serverFilePath;
         this.cache = KVCache.createKVCache(0, "FIFO");
+        this.replicaCache = KVCache.createKVCache(0, "FIFO");
         this.metaDataFile = Paths.get("metaDataECS.config");
 
         this.primaryReplica = null;
@@ -117,10 +193,121 @@ public class KVServer implements IKVServer, Runnable {
         } catch (InterruptedException e) {
             logger.error("ERROR: ZK Interrupted" + e);
         }
-        this.timeStamper = new TimeStamper(this.zkImplServer, this.zkPath);
+        this.timeStamper = new TimeStamper(this.zkImplServer, this.zkPath, this);
         new Thread(timeStamper).start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recoverStorage();
+            }
+        }).start();
      }
 
+    /**
+     * Startup recovery phase: index the coordinator and replica files in
+     * parallel on a fork-join pool, publishing progress to the znode. The
+     * server only reports SERVER_STARTED once this is done.
+     */
+    private void recoverStorage() {
+        final List<KVStorage> storages = Arrays.asList(serverStorage, pReplicaStorage, sReplicaStorage);
+        long totalBytes = 0;
+        for(KVStorage storage : storages) {
+            totalBytes += storage.fileSize();
+        }
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool();
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for(final KVStorage storage : storages) {
+            tasks.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    storage.recover();
+                    return null;
+                }
+            }));
+        }
+        try {
+            for(ForkJoinTask<Void> task : tasks) {
+                while(!task.isDone()) {
+                    long recovered = 0;
+                    for(KVStorage storage : storages) {
+                        recovered += storage.recoveredBytes();
+                    }
+                    publishIndexProgress(totalBytes == 0 ? 100 : (int) (100 * recovered / totalBytes));
+                    try {
+                        task.get(KVConstants.RECOVERY_PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        // Still indexing, publish progress again
+                    }
+                }
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Storage recovery failed " + e);
+            recoveryFailed = true;
+        } finally {
+            pool.shutdown();
+        }
+        if(recoveryFailed) {
+            // A partial index would serve missing keys, and compacting it
+            // would drop the records it never indexed from the data file
+            logger.error("Server stays stopped, its storage could not be indexed");
+        }
+        else {
+            publishIndexProgress(100);
+            logger.info("Recovered " + totalBytes + " bytes of storage in " + (System.currentTimeMillis() - start) + " ms");
+            this.compactor = new KVStorageCompactor(storages, config.getCompactionRatio(),
+                    config.getCompactionMinSize(), config.getCompactionInterval());
+            new Thread(compactor).start();
+        }
+        synchronized(recoveryLock) {
+            recovered.countDown();
+            if(startPending && !recoveryFailed) {
+                startPending = false;
+                start();
+            }
+        }
+    }
+
+    private void publishIndexProgress(int percent) {
+        try {
+            String[] info = zkImplServer.readData(this.zkPath).split(KVConstants.SPLIT_DELIM);
+            if(info.length <= KVConstants.ZNODE_INDEX_PROGRESS) {
+                info = Arrays.copyOf(info, KVConstants.ZNODE_INDEX_PROGRESS + 1);
+                for(int i = 0; i < info.length; i++) {
+                    if(info[i] == null) info[i] = KVConstants.ZERO_STRING;
+                }
+            }
+            info[KVConstants.ZNODE_INDEX_PROGRESS] = Integer.toString(percent);
+            zkImplServer.updateData(this.zkPath, String.join(KVConstants.DELIM, info));
+        } catch (KeeperException e) {
+            logger.error("ERROR: Unable to update ZK " + e);
+        } catch (InterruptedException e) {
+            logger.error("ERROR: ZK Interrupted" + e);
+        }
+    }
+
+    public boolean isRecovered() {
+        return recovered.getCount() == 0;
+    }
+
+    // Storage is only handed out once the recovery phase has indexed it
+    private KVStorage getStorage(String role) {
+        try {
+            recovered.await();
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for storage recovery " + e);
+        }
+        switch(role) {
+            case KVConstants.PREPLICA:
+                return this.pReplicaStorage;
+            case KVConstants.SREPLICA:
+                return this.sReplicaStorage;
+            default:
+                return this.serverStorage;
+        }
+    }
+
     private String getZnodeData(String status, String timestamp) {
         String data = "";
         try {
@@ -169,46 +356,47 @@ public class KVServer implements IKVServer, Runnable {
         return this.sReplicaFilePath;
     }
 
-    public String getCurrFilePath(){
-        return this.currFilePath;
-    }
-
-    public void setRole(String role) {
-        logger.debug(this.metadata.getServerName() + " role changed to " + role);
-        this.role = role;
-        switch(role){
-            case KVConstants.COORDINATOR:
-                this.currFilePath = getServerFilePath();
-                return;
-            case KVConstants.PREPLICA:
-                this.currFilePath = getPReplicaFilePath();
-                return;
-            case KVConstants.SREPLICA:
-                this.currFilePath = getSReplicaFilePath();
-                return;
-        }
+    public void setupCache(int size, String strategy) {
+        setupCache(Integer.toString(size), strategy);
     }
 
-    public void setupCache(int size, String strategy) {
+    /**
+     * @param size  number of entries or a byte budget such as "64MB"
+     * @throws NumberFormatException if the size is not valid
+     */
+    public void setupCache(String size, String strategy) {
         this.cache = KVCache.createKVCache(size, strategy);
+        // the replica cache has its own budget from the server config
+        this.replicaCache = KVCache.createKVCache(replicaCacheSize, strategy);
     }
 
-    public void setMoveAll(boolean move) {
-        this.moveAll = move;
+    /**
+     * @return  "<usedBytes>|<maxBytes>" of the cache and then of the replica
+     *          cache, maxBytes 0 if sized by entries, then
+     *          "<hits>|<misses>|<evictions>|<entries>|<bytes>" for each segment
+     *          of a SEGMENTED cache, one per line
+     */
+    public String getCacheStats() {
+        StringBuilder stats = new StringBuilder();
+        KVCache current = this.cache;
+        KVCache replica = this.replicaCache;
+        stats.append(current.getUsedBytes() + KVConstants.DELIM + current.getMaxBytes()
+                + KVConstants.NEWLINE_DELIM);
+        stats.append(replica.getUsedBytes() + KVConstants.DELIM + replica.getMaxBytes()
+                + KVConstants.NEWLINE_DELIM);
+        if (current instanceof KVCacheSegmented) {
+            for (KVCacheSegmented.SegmentStats segment : ((KVCacheSegmented) current).getStats()) {
+                stats.append(segment.hits + KVConstants.DELIM + segment.misses + KVConstants.DELIM
+                        + segment.evictions + KVConstants.DELIM + segment.size + KVConstants.DELIM
+                        + segment.bytes + KVConstants.NEWLINE_DELIM);
+            }
+        }
+        return stats.toString();
     }
 
     public boolean inStorage(String key) {
         if (inCache(key)) return true;
-        String value = "";
-        try {
-            value = onDisk(key);
-        }
-        catch (IOException ex) {
-            logger.error("ERROR: " + ex); 
-        }
-        if(value.equals(""))
-            return false;
-        return true;
+        return getStorage(KVConstants.COORDINATOR).hasKey(key);
     }
 
     public boolean inCache(String key){
@@ -221,36 +409,155 @@ public class KVServer implements IKVServer, Runnable {
         if(value.equals("")){
             // 1- retrieve from disk
             value = getValueFromDisk(key);
-            if(value.equals("")) {
-                setRole(KVConstants.PREPLICA);
-                value = getValueFromDisk(key);
-                if(value.equals("")) {
-                    setRole(KVConstants.SREPLICA);
-                    value = getValueFromDisk(key);
-                }
-                setRole(KVConstants.COORDINATOR);
-            }
             if(!value.equals("")) {
                 // 2 - insert in cache
                 this.cache.insert(key, value);
             }
+            else {
+                value = getReplicaKV(key);
+            }
+        }
+        return value;
+    }
+
+    // Read a key this server holds as a replica, through the replica cache
+    private String getReplicaKV(String key) throws Exception {
+        String value = this.replicaCache.getValue(key);
+        if(value.equals("")) {
+            value = getValueFromDisk(KVConstants.PREPLICA, key);
+            if(value.equals("")) {
+                value = getValueFromDisk(KVConstants.SREPLICA, key);
+            }
+            if(!value.equals("")) {
+                this.replicaCache.insert(key, value);
+            }
         }
         return value;
     }
 
     public void putKV(String key, String value) throws Exception{
-        this.cache.insert(key, value);
-        storeKV(key, value);
+        putKV(key, value, null);
+    }
+
+    /**
+     * @param ack   when to return, after the write to this server or to the
+     *              replicas too, null for the configured level
+     */
+    public void putKV(String key, String value, AckLevel ack) throws Exception {
+        CompletableFuture<Boolean> replicated;
+        lockKey(key);
+        try {
+            replicated = writeKV(key, value, ack);
+        } finally {
+            unlockKey(key);
+        }
+        if (!awaitReplication(replicated)) {
+            throw new IOException("Write of " + key + " not acked by the replicas");
+        }
+    }
+
+    /**
+     * Write a KV pair, an empty value deletes, and hand it to the replicas
+     * without waiting for them. The caller holds the lock of the key so that
+     * the replicas get the writes to a key in the order they were made here.
+     *
+     * @return  future completed once the replicas the ack level asks for
+     *          have the write, see awaitReplication
+     */
+    public CompletableFuture<Boolean> writeKV(String key, String value, AckLevel ack) throws IOException {
+        if (value.equals("")) {
+            this.cache.delete(key);
+        }
+        else {
+            this.cache.insert(key, value);
+        }
+        return storeKV(key, value, ack);
+    }
+
+    /**
+     * Write a batch of puts, an empty value deletes, to storage with a single
+     * commit and forward it to the replicas as one batch
+     */
+    public void putAllKV(Map<String, String> pairs, AckLevel ack) throws Exception {
+        CompletableFuture<Boolean> replicated;
+        lockKeys(pairs.keySet());
+        try {
+            replicated = writeAllKV(pairs, ack);
+        } finally {
+            unlockKeys(pairs.keySet());
+        }
+        if (!awaitReplication(replicated)) {
+            throw new IOException("Write of " + pairs.size() + " keys not acked by the replicas");
+        }
+    }
+
+    /**
+     * Batch version of writeKV, the caller holds the locks of all the keys
+     */
+    public CompletableFuture<Boolean> writeAllKV(Map<String, String> pairs, AckLevel ack) throws IOException {
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            if (pair.getValue().equals("")) {
+                this.cache.delete(pair.getKey());
+            }
+            else {
+                this.cache.insert(pair.getKey(), pair.getValue());
+            }
+        }
+        getStorage(KVConstants.COORDINATOR).putAll(pairs);
+        return sendBatchToReplicas(pairs, ack);
+    }
+
+    /**
+     * Wait until a write reached the replicas its ack level asks for, at
+     * most REPLICATION_TIMEOUT
+     * @return  false if they did not ack it in time
+     */
+    public boolean awaitReplication(CompletableFuture<Boolean> replicated) throws InterruptedException {
+        try {
+            boolean success = replicated.get(KVConstants.REPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+            logger.info("Result of replication: " + success);
+            return success;
+        } catch (ExecutionException e) {
+            logger.error("Replication failed: " + e);
+        } catch (TimeoutException e) {
+            logger.error("Replication not acked in " + KVConstants.REPLICATION_TIMEOUT + " ms");
+        }
+        return false;
+    }
+
+    public void lockKey(String key) {
+        keyLocks.lock(key);
+    }
+
+    public void unlockKey(String key) {
+        keyLocks.unlock(key);
+    }
+
+    public void lockKeys(Collection<String> keys) {
+        keyLocks.lockAll(keys);
+    }
+
+    public void unlockKeys(Collection<String> keys) {
+        keyLocks.unlockAll(keys);
     }
 
     public void clearCache(){
         this.cache.clearCache();
+        this.replicaCache.clearCache();
+    }
+
+    // The replica storages changed wholesale
+    private void clearReplicaCache() {
+        this.replicaCache.clearCache();
     }
 
     public void clearStorage(){
         clearCache();
-        File file = new File(this.serverFilePath);
-        file.delete();
+        try {
+            getStorage(KVConstants.COORDINATOR).clear();
+        } catch (IOException ex) {
+            logger.error("Unable to clear storage " + ex);
+        }
     }
 
     public ServerMetaData getMetaData() {
@@ -260,12 +567,15 @@ public class KVServer implements IKVServer, Runnable {
     @Override
     public void run(){
         running = initializeServer();
-        if (serverSocket != null) {
+        if (nioServer != null) {
+            nioServer.run();
+        }
+        else if (serverSocket != null) {
             while(isRunning()){
                 try {
                     Socket client = serverSocket.accept();
                     ClientConnection connection = 
-                            new ClientConnection(this, client);
+                            new ClientConnection(handler, client);
                     new Thread(connection).start();
 
                     logger.info("Connected to " 
@@ -288,7 +598,16 @@ public class KVServer implements IKVServer, Runnable {
     private boolean initializeServer() {
         logger.info("Initialize server ...");
         try {
-            serverSocket = new ServerSocket(metadata.getServerPort());
+            if (config.getServerMode() == ServerMode.NIO) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                serverSocket = channel.socket();
+                serverSocket.bind(new InetSocketAddress(metadata.getServerPort()));
+                nioServer = new NioServer(channel, handler, config.getNioEventLoops(),
+                        config.getNioWorkers(), config.getNioQueueSize());
+            }
+            else {
+                serverSocket = new ServerSocket(metadata.getServerPort());
+            }
             logger.info("Server listening on port: " 
                     + serverSocket.getLocalPort());
             return true;
@@ -305,6 +624,11 @@ public class KVServer implements IKVServer, Runnable {
     @Override
     public void kill(){
         running = false;
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        pReplicaChannel.close();
+        sReplicaChannel.close();
         try {
             serverSocket.close();
         }
@@ -315,7 +639,17 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void close(){
-        // TODO: Wait for all threads, save any remainder stuff in cache to memory
+        // The log writer commits and forces what is queued before it ends,
+        // kill() leaves both threads to die with the process
+        if (this.compactor != null) {
+            this.compactor.stop();
+        }
+        this.logWriter.stop();
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        pReplicaChannel.close();
+        sReplicaChannel.close();
         try {
             serverSocket.close();
         }
@@ -325,408 +659,284 @@ public class KVServer implements IKVServer, Runnable {
     }
 
     public String onDisk(String key) throws IOException {
-        String value = "";
-        String key_val, get_value;
-        String filePath  = this.currFilePath;
-        BufferedReader br = null;
-        String KVPair;
-        try {
-            File file = new File(filePath);
-            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
-            FileLock lock = channel.lock();
-
-            try {
-                lock = channel.tryLock();
-            } catch (OverlappingFileLockException e) {
-                 //logger.error("Overlapping File Lock Error: " + e.getMessage());
-            }
-
-            if(!file.exists()) {
-                logger.debug("File " + this.currFilePath + " not found. Key " + key + " not on disk.");
-            }
-            else {
-                FileReader fr = new FileReader(file);
-                br = new BufferedReader(fr);
-                KVPair = br.readLine();
-
-                while(KVPair != null) {
-                    if(KVPair.trim().length() == 0) {
-                        KVPair = br.readLine();
-                        continue;
-                    }
-                    String[] msgContent = KVPair.split("\\" + KVConstants.DELIM);
-                    key_val = msgContent[0];
-                    List<String> valueParts = new LinkedList<>();
-                    for (int i = 1; i < msgContent.length; ++i) {
-                        valueParts.add(msgContent[i]);
-                    }
-                    get_value = String.join(KVConstants.DELIM, valueParts);
-                    if(key_val.equals(key)) {
-                        value = get_value;
-                        break;
-                    }
-                    KVPair = br.readLine();
-                }
-            }
-
-            lock.release();
-            channel.close();
-
-        } catch (IOException ex) { 
-                logger.error("Unable to open file. ERROR: " + ex);
-        
-        } finally {
-            try{
-                if(br!=null)
-                    br.close();
-            }   catch(Exception ex){
-                    logger.error("Error in closing the BufferedReader"+ex);
-            }
-        }
-
-        return value;
+        return getStorage(KVConstants.COORDINATOR).get(key);
     }
 
     @Override
     public void deleteKV(String key) throws Exception {
-        this.cache.delete(key);
-        storeKV(key, "");
+        deleteKV(key, null);
     }
 
-    public boolean handleMoveKVPairs (String destination, String KVPairs) {
-        boolean success = true;
-        if (destination.equals(KVConstants.PREPLICA)) {
-            // DELETE THE current pReplica file
+    public void deleteKV(String key, AckLevel ack) throws Exception {
+        putKV(key, "", ack);
+    }
+
+    /**
+     * Prepare the destination storage for a range moved to this server: a
+     * replica storage receives the whole replica again, so it is cleared
+     */
+    private boolean beginMove(String destination) {
+        if (destination.equals(KVConstants.PREPLICA) || destination.equals(KVConstants.SREPLICA)) {
             try {
-                Files.deleteIfExists(Paths.get(pReplicaFilePath));
-                logger.debug("deleted preplcia file");
+                getStorage(destination).clear();
+                clearReplicaCache();
+                logger.debug("deleted " + destination + " file");
             } catch (IOException ex) {
                 // File permission problems are caught here.
                 logger.error("Permission problems " + ex);
-                success = false;
+                return false;
             }
-            setRole(KVConstants.PREPLICA);
+            return true;
         }
-        else if (destination.equals(KVConstants.SREPLICA)) {
-            // DELETE THE current sReplica file
-            try {
-                Files.deleteIfExists(Paths.get(sReplicaFilePath));
-                logger.debug("deleted sreplcia file");
-            } catch (IOException ex) {
-                // File permission problems are caught here.
-                logger.error("Permission problems " + ex);
-                success = false;
+        if (!destination.equals(KVConstants.COORDINATOR)) {
+            logger.error("MOVE_KVPAIRS destination is not COORDINATOR/PREPLICA/SREPLICA!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write pairs moved to this server to the destination storage
+     */
+    private boolean applyMove(String destination, Map<String, String> pairs) {
+        if (pairs.isEmpty()) return true;
+        if (!destination.equals(KVConstants.COORDINATOR)) {
+            // Replica data goes straight to its storage, it is not replicated
+            // further and is read through the replica cache
+            return handleUpdateKVPairs(destination, pairs);
+        }
+        try {
+            putAllKV(pairs, null);
+        } catch (Exception e) {
+            logger.error("failed to move " + pairs.size() + " KVpairs to server " + getHostname() + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+    private KVStorageSegmented segmentedStorage(String destination) throws IOException {
+        KVStorage storage = getStorage(destination);
+        if (!(storage instanceof KVStorageSegmented)) {
+            throw new IOException("Storage of " + destination + " is not segmented");
+        }
+        return (KVStorageSegmented) storage;
+    }
+
+    /**
+     * Install a segment moved to this server. The cache may hold values of
+     * the segment's keys from before they were moved out, so it is cleared.
+     * A replica takes the segment as the coordinator has it now, coordinator
+     * data is forwarded to the replicas as the same segment.
+     */
+    private boolean installSegment(String destination, int segment, Path staged) {
+        KVStorageSegmented storage;
+        try {
+            storage = segmentedStorage(destination);
+            if (destination.equals(KVConstants.COORDINATOR)) {
+                storage.installSegment(segment, staged);
+            } else {
+                storage.replaceSegment(segment, staged);
             }
-            setRole(KVConstants.SREPLICA);
+        } catch (IOException ex) {
+            logger.error("Unable to install segment " + segment + " in " + destination + ": " + ex);
+            return false;
         }
-        else if (destination.equals(KVConstants.COORDINATOR)) {
-            setRole(KVConstants.COORDINATOR);
+        if (!destination.equals(KVConstants.COORDINATOR)) {
+            clearReplicaCache();
+            return true;
         }
-        else {
-            logger.error("MOVE_KVPAIRS destination is not COORDINATOR/PREPLICA/SREPLICA!");
-            success = false;
+        this.cache.clearCache();
+        return forwardSegment(storage, segment);
+    }
+
+    // Send a segment of the coordinator storage to both replicas
+    private boolean forwardSegment(KVStorageSegmented storage, int segment) {
+        boolean success = true;
+        ServerMetaData[] replicas = {primaryReplica, secondaryReplica};
+        String[] roles = {KVConstants.PREPLICA, KVConstants.SREPLICA};
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i] == null) continue;
+            RangeSender sender = new RangeSender(getHostname(), replicas[i].addr, replicas[i].port, roles[i]);
+            success = sender.sendSegment(storage, segment) && success;
         }
-        //If there are no KVPairs to move, and the role of the server is currently a replica
+        return success;
+    }
+
+    public RangeReceiver getRangeReceiver() {
+        return rangeReceiver;
+    }
+
+    public boolean handleMoveKVPairs (String destination, String KVPairs) {
+        if (!beginMove(destination)) {
+            return false;
+        }
+        //If there are no KVPairs to move, and the destination is a replica storage
         //allow the replicas to delete their files first as that means they should not have
         //any data in their replica files
         logger.debug("in handleMoveKVPairs: KVPairs = " + KVPairs);
         if (KVPairs.equals(null) || KVPairs.equals("")) {
             logger.debug("nothing to do...");
-            setRole(KVConstants.COORDINATOR);
             return true;
         }
-        System.out.println("handleMoveKVPairs writing to file " + currFilePath);
-        logger.debug("KVPairs: " + KVPairs);
+        logger.debug("handleMoveKVPairs writing to " + destination);
         String[] kvPairs = KVPairs.split(KVConstants.NEWLINE_DELIM);
-
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
         for(int i = 0; i < kvPairs.length ; ++i) {
             String[] kvpair = kvPairs[i].split(KVConstants.SPLIT_DELIM);
-            logger.debug("MOVING KVPAIR " + kvpair[0] + " " + kvpair[1]);
-            try {
-                // POTENTIAL ISSUE! May not want to add KV pair to cache
-                putKV(kvpair[0], kvpair[1]);
-            } catch (Exception e) {
-                logger.error("failed to move KVpair (" + kvpair[0] + ", " + kvpair[1] + ") to server " + getHostname());
-                success = false;
-            }
+            pairs.put(kvpair[0], kvpair[1]);
         }
-        setRole(KVConstants.COORDINATOR);
-        return success;
+        return applyMove(destination, pairs);
     }
 
-    private boolean appendToFile (String fileName, String key, String value) {
-        BufferedWriter wr  = null;
+    public boolean handleUpdateKVPair (String destination, String action, String key, String value) {
         boolean success = true;
-        try {
-            File file = new File(fileName);
-
-            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
-            FileLock lock = null;
-            try {
-                lock = channel.tryLock();
-            } catch (OverlappingFileLockException e) {
-                 logger.error("Overlapping File Lock Error: " + e.getMessage());
-            }
-
-            if (lock != null) {
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
+        if (!destination.equals(KVConstants.PREPLICA) && !destination.equals(KVConstants.SREPLICA)) {
+            logger.error("UPDATE destination should always be PREPLICA or SREPLICA!");
+            return false;
+        }
+        KVStorage storage = getStorage(destination);
+        logger.debug("handleUpdateKVPair writing to file : " + storage.getFilePath());
 
-                FileWriter fw = new FileWriter(file, true);
-                wr = new BufferedWriter(fw);
-                String KVPair = key + "|" + value + "\n";
-                wr.write(KVPair);
-                wr.close();
-                lock.release();
+        this.replicaCache.delete(key);
+        try {
+            if (action.equals(ReplicaDataAction.NEW.name()) || action.equals(ReplicaDataAction.UPDATE.name())) {
+                storage.put(key, value);
             }
-            else {
-                System.out.println("Did not acquire file lock!");
-                success = false;
+            else if (action.equals(ReplicaDataAction.DELETE.name())) {
+                storage.delete(key);
             }
-            channel.close();
-        }
-        catch (IOException io) {
-            io.printStackTrace();
+        } catch (IOException ex) {
+            logger.error("Unable to update replica storage " + storage.getFilePath() + ": " + ex);
             success = false;
         }
         return success;
     }
 
-    public boolean handleUpdateKVPair (String destination, String action, String key, String value) {
-        boolean success = true;
-        if (destination.equals(KVConstants.PREPLICA)) {
-            System.out.println("pReplica file is: " + pReplicaFilePath);
-            setRole(KVConstants.PREPLICA);
-        }
-        else if (destination.equals(KVConstants.SREPLICA)) {
-            System.out.println("sReplica file is: " + sReplicaFilePath);
-            setRole(KVConstants.SREPLICA);
-        }
-        else {
+    /**
+     * Apply a batch of updates from the coordinator to a replica storage
+     */
+    public boolean handleUpdateKVPairs(String destination, Map<String, String> pairs) {
+        if (!destination.equals(KVConstants.PREPLICA) && !destination.equals(KVConstants.SREPLICA)) {
             logger.error("UPDATE destination should always be PREPLICA or SREPLICA!");
             return false;
         }
-        System.out.println("handleUpdateKVPair writing to file : " + currFilePath);
-
-        if (action.equals(ReplicaDataAction.NEW.name())) {
-            // It is a new KV pair - Append to the end of replica file
-            appendToFile(currFilePath, key, value);
+        for (String key : pairs.keySet()) {
+            this.replicaCache.delete(key);
         }
-        else if (action.equals(ReplicaDataAction.UPDATE.name()) || action.equals(ReplicaDataAction.DELETE.name())) {
-            boolean delete = (action.equals(ReplicaDataAction.DELETE.name())) ? true : false;
-            writeNewFile(key, value, delete);
+        try {
+            getStorage(destination).putAll(pairs);
+        } catch (IOException ex) {
+            logger.error("Unable to update replica storage " + destination + ": " + ex);
+            return false;
         }
-        setRole(KVConstants.COORDINATOR);
-        return success;
+        return true;
     }
 
-    private void sendToReplicas(String key, String value, ReplicaDataAction action) {
-        logger.debug("Sending key: " + key + " value: " + value + " Action: " + action.name());
-
-        boolean unlock = !isStopped(), success = true;
-        lockWrite();
+    private CompletableFuture<Boolean> sendBatchToReplicas(Map<String, String> pairs, AckLevel ack) {
+        logger.debug("Sending batch of " + pairs.size() + " updates to replicas");
 
-        TextMessage reply;
-        // Send to primary & secondary replica
-        if (primaryReplica != null) {
-            KVStore pReceiver = new KVStore(primaryReplica.getServerAddr(), primaryReplica.getServerPort());
-            StringBuilder toSend = new StringBuilder();
-            toSend.append("UPDATE" + KVConstants.DELIM);
-            try {
-                toSend.append(KVConstants.PREPLICA + KVConstants.DELIM);
-                toSend.append(action.name() + KVConstants.DELIM);
-                toSend.append(key + KVConstants.DELIM + value);
-                logger.debug("Command is: " + toSend.toString());
-                pReceiver.connect();
-                pReceiver.sendMessage(new TextMessage(toSend.toString()));
-                reply = pReceiver.receiveMessage();
-                pReceiver.disconnect();
-                success = reply.getMsg().equals("UPDATE_SUCCESS");
-            }
-            catch (UnknownHostException e) {
-                logger.error("UnknownHostException at sendToReplicas Primary " + e);
-                success = false;
-            } catch (IOException e) {
-                logger.error("IOException at sendToReplicas Primary " + e);
-                success = false;
-            }
+        List<KVReplyMessage> updates = new ArrayList<>(pairs.size());
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            updates.add(new KVReplyMessage(pair.getKey(), pair.getValue(), StatusType.PUT));
         }
+        return replicate(KVBatch.encode(updates), ack);
+    }
 
-        if (secondaryReplica != null) {
-            KVStore sReceiver = new KVStore(secondaryReplica.getServerAddr(), secondaryReplica.getServerPort());
-            StringBuilder toSend = new StringBuilder();
-            toSend.append("UPDATE" + KVConstants.DELIM);
-            try {
-                toSend.append(KVConstants.SREPLICA + KVConstants.DELIM);
-                toSend.append(action.name() + KVConstants.DELIM);
-                toSend.append(key + KVConstants.DELIM + value);
-                logger.debug("Command is: " + toSend.toString());
-                sReceiver.connect();
-                sReceiver.sendMessage(new TextMessage(toSend.toString()));
-                reply = sReceiver.receiveMessage();
-                sReceiver.disconnect();
-                success = success & reply.getMsg().equals("UPDATE_SUCCESS");
-            }
-            catch (UnknownHostException e) {
-                logger.error("UnknownHostException at sendToReplicas Secondary " + e);
-                success = false;
-            } catch (IOException e) {
-                logger.error("IOException at sendToReplicas Secondary " + e);
-                success = false;
+    /**
+     * Send a batch to the primary & secondary replica at the same time over
+     * their persistent channels. Updates that are not waited for still reach
+     * the replicas in order, their progress shows in the replication lag.
+     *
+     * @return  future completed with true once as many replicas as the ack
+     *          level asks for applied the batch
+     */
+    private CompletableFuture<Boolean> replicate(String batch, AckLevel ack) {
+        if (ack == null) ack = replicationAck;
+        List<CompletableFuture<Boolean>> sends = new ArrayList<>(2);
+        for (ReplicationChannel channel : getReplicationChannels()) {
+            if (channel.getReplica() != null) {
+                sends.add(channel.sendAsync(batch));
             }
         }
+        int needed = (ack == AckLevel.LOCAL) ? 0 : (ack == AckLevel.ONE) ? Math.min(1, sends.size()) : sends.size();
+        return ReplicationChannel.acks(sends, needed);
+    }
 
-        if (unlock) {
-            unlockWrite();
+    /**
+     * @return  channels to the primary and the secondary replica
+     */
+    public List<ReplicationChannel> getReplicationChannels() {
+        return Arrays.asList(pReplicaChannel, sReplicaChannel);
+    }
+
+    /**
+     * @return  "<role>|<lag ms>|<pending updates>|<last ack ms>|<failures>"
+     *          for each replica, one per line
+     */
+    public String getReplicationStatus() {
+        StringBuilder status = new StringBuilder();
+        for (ReplicationChannel channel : getReplicationChannels()) {
+            if (channel.getReplica() == null) continue;
+            status.append(channel.getDestination() + KVConstants.DELIM + channel.getLagMillis()
+                    + KVConstants.DELIM + channel.getPendingUpdates() + KVConstants.DELIM
+                    + channel.getLastAckLatency() + KVConstants.DELIM + channel.getFailures()
+                    + KVConstants.NEWLINE_DELIM);
         }
-        logger.info("Result of sendUpdateToReplicas: " + success);
+        return status.toString();
     }
 
-    public void storeKV(String key, String value) throws IOException {
-        String filePath  = this.currFilePath;
-        boolean toBeDeleted = false; 
+    private CompletableFuture<Boolean> sendToReplicas(String key, String value, ReplicaDataAction action, AckLevel ack) {
+        logger.debug("Sending key: " + key + " value: " + value + " Action: " + action.name());
 
-        String curVal = onDisk(key);
-        if(value == "") {
-            toBeDeleted = true;
-        }
+        // A single update is a batch of one, an empty value deletes
+        String update = (action == ReplicaDataAction.DELETE) ? "" : value;
+        return replicate(KVBatch.encode(Collections.singletonList(
+                new KVReplyMessage(key, update, StatusType.PUT))), ack);
+    }
+
+    private CompletableFuture<Boolean> storeKV(String key, String value, AckLevel ack) throws IOException {
+        KVStorage storage = getStorage(KVConstants.COORDINATOR);
+        boolean toBeDeleted = value.equals("");
 
         //if the value is not on disk
-        if(curVal.equals("")) {
+        if(!storage.hasKey(key)) {
             if(!toBeDeleted) {    // value is non-empty
-                appendToFile(filePath, key, value);
-                //only a coordinator should be sending data to replicas
-                if(this.role.equals(KVConstants.COORDINATOR)) {
-                    sendToReplicas(key, value, ReplicaDataAction.NEW);
-                }
+                storage.put(key, value);
+                return sendToReplicas(key, value, ReplicaDataAction.NEW, ack);
             }
         }
         else { //value is on disk already
-            //rewrite entire file back with new values
-            System.out.println("storeKV: rewriting file toBeDeleted: " + toBeDeleted);
-            writeNewFile(key, value, toBeDeleted);
-            //only a coordinator should be sending data to replicas
-            if(this.role.equals(KVConstants.COORDINATOR)) {
-                ReplicaDataAction action = toBeDeleted ? ReplicaDataAction.DELETE : ReplicaDataAction.UPDATE;
-                sendToReplicas(key, value, action);
+            if(toBeDeleted) {
+                storage.delete(key);
             }
-        }
-    }
-
-
-    public void writeNewFile(String key, String value, boolean toDelete) {
-
-        String key_val;
-        String KVPair;
-        String filePath  = this.currFilePath; 
-        StringBuffer stringBuffer = new StringBuffer();
-        BufferedReader br = null;
-        BufferedWriter wr  = null;
-        String newPair = key + "|" + value ;
-
-        try {
-            File file = new File(filePath);
-            
-            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
-            FileLock lock = channel.lock();
-
-            try {
-                lock = channel.tryLock();
-
-            } catch (OverlappingFileLockException e) {
-                 //logger.error("Overlapping File Lock Error: " + e.getMessage());
-            }
-
-            if(!file.exists()) {
-                logger.error("File not found");
-            }
-            else{
-
-                FileReader fr = new FileReader(file);
-                br = new BufferedReader(fr);
-                KVPair = br.readLine();
-                while(KVPair != null) {
-
-                    String[] msgContent = KVPair.split("\\" + KVConstants.DELIM);
-                    key_val = msgContent[0];
-                    List<String> valueParts = new LinkedList<>();
-                    for (int i = 1; i < msgContent.length; ++i) {
-                        valueParts.add(msgContent[i]);
-                    }
-                    value = String.join(KVConstants.DELIM, valueParts);
-
-                    if(key_val.equals(key)) {
-                        if(!toDelete) {
-                            stringBuffer.append(newPair + "\n");
-                        }
-                    }
-                    else{
-                        stringBuffer.append(KVPair + "\n");
-                    }
-                    KVPair = br.readLine();
-                }
-
-                br.close();
-                String inputString = (stringBuffer.toString()).trim();
-
-                FileWriter fw = new FileWriter(file);
-                wr = new BufferedWriter(fw);
-                PrintWriter pw = new PrintWriter(wr);
-                pw.println(inputString);
-                wr.close();
+            else {
+                storage.put(key, value);
             }
-
-            lock.release();
-            channel.close();
-
-        } catch (IOException ex) { 
-                logger.error("Unable to open file. ERROR: " + ex);
+            ReplicaDataAction action = toBeDeleted ? ReplicaDataAction.DELETE : ReplicaDataAction.UPDATE;
+            return sendToReplicas(key, value, action, ack);
         }
-
+        return CompletableFuture.completedFuture(true);
     }
 
     public String getValueFromDisk(String key) throws IOException {
         return onDisk(key);
     }
 
+    public String getValueFromDisk(String role, String key) throws IOException {
+        return getStorage(role).get(key);
+    }
+
     public void printCache() {
         this.cache.print();
     }
 
     public boolean serverOrReplicasResponsible(String key) {
-        if (isServerResponsible(key, this.metadata)) {
+        if (isResponsible(key)) {
             return true;
         }
         else {
-            setRole(KVConstants.PREPLICA);
-            String value = "";
-            try {
-                value = onDisk(key);
-            }
-            catch (IOException ex) {
-                logger.error(ex);
-            }
-            setRole(KVConstants.COORDINATOR);
-            if (!value.equals("")) {
-                return true;
-            }
-            else {
-                setRole(KVConstants.SREPLICA);
-                try {
-                    value = onDisk(key);
-                }
-                catch (IOException ex) {
-                    logger.error(ex);
-                }
-                setRole(KVConstants.COORDINATOR);
-                if (!value.equals("")) {
-                    return true;
-                }
-                else {
-                    return false;
-                }
-            }
+            return getStorage(KVConstants.PREPLICA).hasKey(key)
+                    || getStorage(KVConstants.SREPLICA).hasKey(key);
         }
     }
 
@@ -744,16 +954,81 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
+    /**
+     * @return  true if the key is in one of the ranges
+     */
+    public boolean isServerResponsible(String key, List<ServerMetaData> ranges) {
+        for (ServerMetaData range : ranges) {
+            if (isServerResponsible(key, range)) return true;
+        }
+        return false;
+    }
+
+    // True when no hash of the segment is in a range of this server
+    private boolean isSegmentOutside(int segment) {
+        List<ServerMetaData> ranges = this.ranges;
+        for (ServerMetaData range : ranges) {
+            if (range.bHash == null || range.bHash.equals(range.eHash)) return false;
+            if (!KVStorageSegmented.isWithin(segment, range.eHash, range.bHash)) return false;
+        }
+        return !ranges.isEmpty();
+    }
+
+    // True when every hash of the segment is in one of the ranges
+    private static boolean isSegmentWithin(int segment, List<ServerMetaData> ranges) {
+        for (ServerMetaData range : ranges) {
+            if (KVStorageSegmented.isWithin(segment, range.bHash, range.eHash)) return true;
+        }
+        return false;
+    }
+
     public boolean isResponsible(String key) {
-        return isServerResponsible(key, this.metadata);
+        return isServerResponsible(key, this.ranges);
+    }
+
+    /**
+     * Count a client request for the key, see getLoadReport
+     */
+    public void recordRequest(String key) {
+        loadStats.recordRequest(key);
+    }
+
+    /**
+     * @return  load of each range of this server, one RangeLoad per line
+     */
+    public String getLoadReport() {
+        StringBuilder report = new StringBuilder();
+        for (RangeLoad load : loadStats.report(getStorage(KVConstants.COORDINATOR), this.ranges)) {
+            report.append(load.marshal()).append(KVConstants.NEWLINE_DELIM);
+        }
+        return report.toString();
+    }
+
+    /**
+     * End the window of the request rates, called with each timestamp
+     * @return  requests per second of each range in the window, as
+     *          endHash:rate entries separated by NEWLINE_DELIM
+     */
+    public String rollRequestRates() {
+        loadStats.roll();
+        StringBuilder rates = new StringBuilder();
+        for (ServerMetaData range : this.ranges) {
+            if (rates.length() > 0) rates.append(KVConstants.NEWLINE_DELIM);
+            rates.append(range.eHash.toString(16)).append(KVConstants.HASH_DELIM)
+                    .append(loadStats.requestsIn(range.bHash, range.eHash));
+        }
+        return rates.toString();
     }
 
     public String getServerReplicas() {
         StringBuilder marshalledData = new StringBuilder();
         try {
             ArrayList<String> metaDataLines = new ArrayList<>(Files.readAllLines(this.metaDataFile, StandardCharsets.UTF_8));
+            Set<String> listed = new HashSet<String>();
             for (int i = 0; i < metaDataLines.size(); ++i) {
                 String[] metaData = metaDataLines.get(i).split(KVConstants.SPLIT_DELIM);
+                // A server with virtual nodes has a line per token
+                if (!listed.add(metaData[ServerMetaData.SERVER_NAME])) continue;
                 String zkServerPath = KVConstants.ZK_SEP + KVConstants.ZK_ROOT + KVConstants.ZK_SEP + metaData[ServerMetaData.SERVER_NAME];
                 String[] znodedata = zkImplServer.readData(zkServerPath).split(KVConstants.SPLIT_DELIM);
                 marshalledData.append(metaData[ServerMetaData.SERVER_PORT] + KVConstants.DELIM + znodedata[4] + KVConstants.DELIM + znodedata[5] + KVConstants.NEWLINE_DELIM);
@@ -803,15 +1078,35 @@ public class KVServer implements IKVServer, Runnable {
         return null;
     }
 
+    /**
+     * @return  every range of the server in the metadata file, one per token
+     */
+    public List<ServerMetaData> getRangesOfServer(String hostName) {
+        List<ServerMetaData> serverRanges = new ArrayList<ServerMetaData>();
+        try {
+            for (String line : Files.readAllLines(this.metaDataFile, StandardCharsets.UTF_8)) {
+                String[] metaData = line.split(KVConstants.SPLIT_DELIM);
+                if (metaData[ServerMetaData.SERVER_NAME].equals(hostName)) {
+                    serverRanges.add(new ServerMetaData(line));
+                }
+            }
+        } catch (IOException e) {
+            logger.error("METADATA_FETCH_ERROR could not fetch meta data: " + e);
+        }
+        return serverRanges;
+    }
+
     public boolean updateMetaData() {
-        String meta = getMetaDataOfServer(getHostname());
-        if(meta == null) {
+        List<ServerMetaData> serverRanges = getRangesOfServer(getHostname());
+        if(serverRanges.isEmpty()) {
             logger.error("Could not find meta data of server " + getHostname() + " " + getPort());
             return false;
         }
-        metadata = new ServerMetaData(meta);
+        metadata = serverRanges.get(0);
+        ranges = serverRanges;
         logger.info("Set KVServer (" + metadata.getServerName() + ", " + metadata.getServerAddr() + ", " + metadata.getServerPort() + ") " +
-                    "\nStart hash to: " + metadata.getBeginHash().toString(16) + "\nEnd hash to: " + metadata.getEndHash().toString(16));
+                    "\nStart hash to: " + metadata.getBeginHash().toString(16) + "\nEnd hash to: " + metadata.getEndHash().toString(16) +
+                    "\nRanges: " + serverRanges.size());
         return true;
     }
 
@@ -822,7 +1117,10 @@ public class KVServer implements IKVServer, Runnable {
     }
 
 
-    public boolean updateReplicas(String pReplicaName, String sReplicaName) {
+    /**
+     * @param moveAll   send every key of the ranges to the replicas
+     */
+    public boolean updateReplicas(String pReplicaName, String sReplicaName, boolean moveAll) {
         boolean success = true;
         logger.debug("Inside updateReplica");
         if (!pReplicaName.equals(KVConstants.NULL_STRING)) {
@@ -833,20 +1131,21 @@ public class KVServer implements IKVServer, Runnable {
             }
 
             this.primaryReplica = new ServerMetaData(pMetaData);
+            pReplicaChannel.setReplica(primaryReplica);
             String[] pHash = {primaryReplica.getBeginHash().toString(16),  primaryReplica.getEndHash().toString(16)};
             try{
-                this.pReplica = true;
-                success = moveData(pHash, pReplicaName);
-                this.pReplica = false;
+                success = moveData(pHash, pReplicaName, KVConstants.PREPLICA, moveAll);
             } catch (Exception o) {
                 logger.error("MoveData failed for primaryReplica");
             }
         }
         else {
             this.primaryReplica = null;
+            pReplicaChannel.setReplica(null);
             // Delete pReplicaFile
             try {
-                Files.deleteIfExists(Paths.get(pReplicaFilePath));
+                getStorage(KVConstants.PREPLICA).clear();
+                clearReplicaCache();
             } catch (IOException ex) {
                 // File permission problems are caught here.
                 logger.error("Permission problems " + ex);
@@ -860,20 +1159,21 @@ public class KVServer implements IKVServer, Runnable {
                 return false;
             }
             this.secondaryReplica = new ServerMetaData(sMetaData);
+            sReplicaChannel.setReplica(secondaryReplica);
             String[] sHash = {secondaryReplica.getBeginHash().toString(), KVConstants.DELIM, secondaryReplica.getEndHash().toString()};
             try {
-                this.sReplica = true;
-                success = moveData(sHash, sReplicaName);
-                this.sReplica = false;
+                success = moveData(sHash, sReplicaName, KVConstants.SREPLICA, moveAll);
             } catch (Exception o) {
                 logger.error("MoveData failed for primaryReplica");
             }
         }
         else {
             this.secondaryReplica = null;
+            sReplicaChannel.setReplica(null);
             // Delete sReplicaFile
             try {
-                Files.deleteIfExists(Paths.get(sReplicaFilePath));
+                getStorage(KVConstants.SREPLICA).clear();
+                clearReplicaCache();
             } catch (IOException ex) {
                 // File permission problems are caught here.
                 logger.error("Permission problems " + ex);
@@ -886,6 +1186,18 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void start() {
+        synchronized(recoveryLock) {
+            // Keep serving nothing until the index is warm, recovery starts us
+            if(!isRecovered()) {
+                logger.info("Start deferred until storage recovery completes");
+                startPending = true;
+                return;
+            }
+        }
+        if(recoveryFailed) {
+            logger.error("Not starting, storage recovery failed");
+            return;
+        }
         writeLocked = false;
         readLocked = false;
         try {
@@ -899,6 +1211,9 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void stop() {
+        synchronized(recoveryLock) {
+            startPending = false;
+        }
         writeLocked = true;
         readLocked = true;
         try {
@@ -926,10 +1241,14 @@ public class KVServer implements IKVServer, Runnable {
             logger.error("ERROR: ZK Interrupted" + e);
         }
         this.timeStamper.stop();
+        if(this.compactor != null) {
+            this.compactor.stop();
+        }
         // Delete replica files
         try {
-            Files.deleteIfExists(Paths.get(pReplicaFilePath));
-            Files.deleteIfExists(Paths.get(sReplicaFilePath));
+            getStorage(KVConstants.PREPLICA).clear();
+            getStorage(KVConstants.SREPLICA).clear();
+            clearReplicaCache();
         } catch (IOException ex) {
             // File permission problems are caught here.
             logger.error("Permission problems " + ex);
@@ -939,7 +1258,13 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void lockWrite() {
-        this.writeLocked = true;
+        // Writes already past the write lock check finish first
+        keyLocks.lockServer();
+        try {
+            this.writeLocked = true;
+        } finally {
+            keyLocks.unlockServer();
+        }
     }
 
     @Override
@@ -962,89 +1287,142 @@ public class KVServer implements IKVServer, Runnable {
     @Override
     public boolean moveData(String[] hashRange, String targetName) 
         throws Exception {
+        return moveData(hashRange, targetName, false);
+    }
+
+    /**
+     * @param moveAll   move every key in a range of the target instead of
+     *                  the keys out of the ranges of this server
+     */
+    public boolean moveData(String[] hashRange, String targetName, boolean moveAll)
+        throws Exception {
+        return moveData(hashRange, targetName, KVConstants.COORDINATOR, moveAll);
+    }
+
+    /**
+     * @param destination   storage of the target the data goes to, for a
+     *                      replica every key is copied and none deleted here
+     * @param moveAll       a replica gets every key, a coordinator the keys
+     *                      in its ranges, which are the ones of this server
+     *                      taken over by it once this server is removed
+     */
+    private boolean moveData(String[] hashRange, String targetName, String destination, boolean moveAll)
+        throws Exception {
+        boolean toReplica = !destination.equals(KVConstants.COORDINATOR);
         // TODO Transfer a subset (range) of the KVServer's data to another KVServer (reallocation before
         // removing this server or adding a new KVServer to the ring); send a notification to the ECS,
         // if data transfer is completed.
         logger.debug("DEBUG: getHostname() = " + getHostname());
         logger.debug("DEBUG: targetName() = " + targetName);
         if(targetName.equals(getHostname())) return true;
-        boolean unlock = !this.isStopped();
-        lockWrite();
-        StringBuilder toSend = new StringBuilder();
-        toSend.append("MOVE_KVPAIRS" + KVConstants.DELIM);
-        if(pReplica) {
-            logger.debug("Writing to pReplica : " + targetName);
-            toSend.append(KVConstants.PREPLICA + KVConstants.DELIM);
-        }
-        else if(sReplica) {
-            logger.debug("Writing to sReplica: " + targetName);
-            toSend.append(KVConstants.SREPLICA + KVConstants.DELIM);
-        }
-        else {
-            logger.debug("Writing to Coordinator: " + targetName);
-            toSend.append(KVConstants.COORDINATOR + KVConstants.DELIM);
-        }
-        logger.debug("Command is: " + toSend.toString());
-        boolean found = false;
+        // Ranges of the target, a server removed sends each its part at once
+        List<ServerMetaData> targetRanges = (moveAll && !toReplica)
+                ? getRangesOfServer(targetName) : Collections.<ServerMetaData>emptyList();
         boolean success = true;
-        ArrayList<String> toDelete = new ArrayList<>(); 
+        beginMoveOut();
         try {
-            Path serverPath = Paths.get(this.serverFilePath);
-            if(Files.exists(serverPath)) {
-                ArrayList<String> keyValuePairs = new ArrayList<>(Files.readAllLines(serverPath, StandardCharsets.UTF_8));
-                for(String line : keyValuePairs) {
-                    //TODO this is because some white spaces get inserted in the file
-                    //this if statement is a temporary workaround for that
-                    if (line.trim().length() == 0) continue; 
-                    String[] kvp = line.split(KVConstants.SPLIT_DELIM);
-                    if(this.moveAll || !isResponsible(kvp[0])) {
-                        logger.debug(getHostname() + " not responsible for key " + kvp[0]);
-                        found = true;
-                        toSend.append(line + KVConstants.NEWLINE_DELIM);
-                        if(!(pReplica || sReplica)) {
-                            toDelete.add(kvp[0]);
+            logger.debug("Writing to " + destination + ": " + targetName);
+            List<String> toMove = new ArrayList<>();
+            List<Integer> segments = new ArrayList<>();
+            KVStorage serverStorage = getStorage(KVConstants.COORDINATOR);
+            KVStorageSegmented segmented = null;
+            if(serverStorage instanceof KVStorageSegmented) {
+                //Segments outside of the range of this server move as whole files,
+                //only the keys of the segments at the ends of the range are checked
+                segmented = (KVStorageSegmented) serverStorage;
+                for(int i = 0; i < KVStorageSegmented.SEGMENTS; i++) {
+                    KVStorage segment = segmented.getSegment(i);
+                    if(segment.size() == 0) continue;
+                    if(moveAll ? (toReplica || isSegmentWithin(i, targetRanges)) : isSegmentOutside(i)) {
+                        segments.add(i);
+                        continue;
+                    }
+                    for(String key : segment.keys()) {
+                        if(isMoved(key, moveAll, toReplica, targetRanges)) {
+                            toMove.add(key);
                         }
                     }
-                    else {
-                        logger.debug(getHostname() + " responsible for key " + kvp[0]);
+                }
+            } else {
+                for(String key : serverStorage.keys()) {
+                    if(isMoved(key, moveAll, toReplica, targetRanges)) {
+                        toMove.add(key);
                     }
                 }
             }
-            else {
-                // TODO we don't need to creat a file. putKV will do it on its own
-                serverPath = Files.createFile(serverPath);
+            //If no data to move, and the target is one of your replicas, need to send them a msg
+            //to make sure they delete their existing files, if any
+            if(!toMove.isEmpty() || !segments.isEmpty() || toReplica) {
+                logger.debug("Moving " + segments.size() + " segments and " + toMove.size() + " keys to "
+                        + destination + " of " + targetName);
+                ServerMetaData targetMeta = new ServerMetaData(getMetaDataOfServer(targetName));
+                RangeSender sender = new RangeSender(getHostname(), targetMeta.addr, targetMeta.port, destination);
+                //Keys go first, a replica clears its storage when they arrive
+                if(!toMove.isEmpty() || toReplica) {
+                    //Sorted so that a resumed transfer sends the same chunks
+                    Collections.sort(toMove);
+                    success = sender.send(serverStorage, toMove);
+                }
+                for(int i = 0; success && i < segments.size(); i++) {
+                    success = sender.sendSegment(segmented, segments.get(i));
+                }
+                if(success && !toReplica) {
+                    logger.debug("Number of keys to delete: " + toMove.size());
+                    //Deleted in batches, each one a single commit and replica update
+                    Map<String, String> toDelete = new LinkedHashMap<>();
+                    for(String key : toMove) {
+                        toDelete.put(key, "");
+                        if(toDelete.size() == DELETE_BATCH) {
+                            putAllKV(toDelete, null);
+                            toDelete.clear();
+                        }
+                    }
+                    if(!toDelete.isEmpty()) {
+                        putAllKV(toDelete, null);
+                    }
+                    //Moving a range out leaves one tombstone per key behind, reclaim it now
+                    if(!toMove.isEmpty()) {
+                        serverStorage.compact();
+                    }
+                    //Dropped here and, being empty now, sent again to the replicas
+                    for(int segment : segments) {
+                        segmented.dropSegment(segment);
+                        forwardSegment(segmented, segment);
+                    }
+                    if(!segments.isEmpty()) {
+                        this.cache.clearCache();
+                    }
+                }
+            } else {
+                logger.debug("No data to move from " + getHostname());
             }
-        } catch (IOException e) {
-            logger.error("ERROR while moving data from server to target server" + targetName);
-            return false;
+        } finally {
+            endMoveOut();
         }
-        //If no data to move, and the target is one of your replicas, need to send them a msg
-        //to make sure they delete their existing files, if any
-        if(found || pReplica || sReplica) {
-            logger.debug("found? " + found + " pReplica " + pReplica + " sReplica " + sReplica);
-            //Send to receiving server
-            ServerMetaData targetMeta = new ServerMetaData(getMetaDataOfServer(targetName));
-            KVStore sender = new KVStore(targetMeta.addr, targetMeta.port);
-            sender.connect();
-            sender.sendMessage(new TextMessage(toSend.toString()));
-            TextMessage reply = sender.receiveMessage();
-            sender.disconnect();
-            success = (reply.getMsg().equals("MOVE_SUCCESS"));
-            if(success) {
-                logger.debug("Number of keys to delete: " + toDelete.size());
-                //For replicas, toDelete should be empty
-                for(String key: toDelete) {
-                    deleteKV(key);
-                }
+        return success;
+    }
+
+    private boolean isMoved(String key, boolean moveAll, boolean toReplica, List<ServerMetaData> targetRanges) {
+        if(!moveAll) return !isResponsible(key);
+        return toReplica || isServerResponsible(key, targetRanges);
+    }
 
+    // Writes are locked from the first move out to the end of the last one
+    private void beginMoveOut() {
+        synchronized(moveLock) {
+            if(movesOut++ == 0) {
+                unlockAfterMoves = !this.isStopped();
+                lockWrite();
             }
-        } else {
-            logger.debug("No data to move from " + getHostname());
         }
-        if(unlock) {
-            unlockWrite();
+    }
+
+    private void endMoveOut() {
+        synchronized(moveLock) {
+            if(--movesOut == 0 && unlockAfterMoves) {
+                unlockWrite();
+            }
         }
-        return success;
     }
 
     /**
@@ -0,0 +1,86 @@
+package app_kvServer;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped lock table of the KVServer. Writes lock the stripe their key
+ * hashes to, so writes to different keys run concurrently while writes to
+ * the same key are ordered, both in storage and on the way to the replicas.
+ *
+ * Every key lock also holds the server lock shared. Rebalancing takes it
+ * exclusively, which waits for the writes in progress and keeps new ones out
+ * while the server is being write locked.
+ */
+public class KeyLocks {
+
+    private final ReentrantLock[] stripes;
+    private final ReentrantReadWriteLock serverLock = new ReentrantReadWriteLock();
+
+    public KeyLocks(int stripes) {
+        this.stripes = new ReentrantLock[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private int stripeOf(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % stripes.length;
+    }
+
+    public void lock(String key) {
+        serverLock.readLock().lock();
+        stripes[stripeOf(key)].lock();
+    }
+
+    public void unlock(String key) {
+        stripes[stripeOf(key)].unlock();
+        serverLock.readLock().unlock();
+    }
+
+    // Stripes are always taken in ascending order so that two batches
+    // cannot wait on each other
+    private TreeSet<Integer> stripesOf(Collection<String> keys) {
+        TreeSet<Integer> locked = new TreeSet<>();
+        for (String key : keys) {
+            locked.add(stripeOf(key));
+        }
+        return locked;
+    }
+
+    /**
+     * Lock the keys of a batch together
+     */
+    public void lockAll(Collection<String> keys) {
+        serverLock.readLock().lock();
+        for (int stripe : stripesOf(keys)) {
+            stripes[stripe].lock();
+        }
+    }
+
+    public void unlockAll(Collection<String> keys) {
+        for (int stripe : stripesOf(keys).descendingSet()) {
+            stripes[stripe].unlock();
+        }
+        serverLock.readLock().unlock();
+    }
+
+    /**
+     * Wait for the writes in progress and keep new ones out, for rebalancing
+     */
+    public void lockServer() {
+        serverLock.writeLock().lock();
+    }
+
+    public void unlockServer() {
+        serverLock.writeLock().unlock();
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+}
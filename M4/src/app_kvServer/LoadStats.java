@@ -0,0 +1,126 @@
+package app_kvServer;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import common.KVConstants;
+import common.RangeLoad;
+import common.ServerMetaData;
+import common.md5;
+import storage.KVStorage;
+
+/**
+ * Load of a server, reported to the ECS per range so that it can balance the
+ * ring without reading the data files. Requests are counted in BUCKETS equal
+ * slices of the hash ring and turned into rates once per window by roll(),
+ * then shared out between the ranges and their cut points. Keys are sampled
+ * as they are written, see IKVStorage.sampleHashes(), to place the cut points
+ * of each range.
+ */
+public class LoadStats {
+
+    private static final int BUCKET_BITS = 10;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int HASH_BITS = 128;
+    private static final BigInteger BUCKET_SIZE = BigInteger.ONE.shiftLeft(HASH_BITS - BUCKET_BITS);
+
+    private final AtomicLongArray requests = new AtomicLongArray(BUCKETS);
+    private long lastRoll = System.currentTimeMillis();
+    // Requests per second of the last window in buckets 0..i-1
+    private double[] ratesBelow = new double[BUCKETS + 1];
+
+    public void recordRequest(String key) {
+        requests.incrementAndGet(md5.encode(key).shiftRight(HASH_BITS - BUCKET_BITS).intValue());
+    }
+
+    /**
+     * End the window of the request rates, the counts start over
+     */
+    public synchronized void roll() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastRoll) / 1000.0;
+        lastRoll = now;
+        double[] rates = new double[BUCKETS + 1];
+        for (int i = 0; i < BUCKETS; i++) {
+            rates[i + 1] = rates[i] + requests.getAndSet(i, 0) / seconds;
+        }
+        ratesBelow = rates;
+    }
+
+    /**
+     * @return  requests per second of the last window for the keys in
+     *          [begin, end), the whole ring when end == begin
+     */
+    public synchronized double requestsIn(BigInteger begin, BigInteger end) {
+        double rate = requestsBelow(end) - requestsBelow(begin);
+        // the range wraps around the end of the ring
+        if (end.compareTo(begin) <= 0) {
+            rate += ratesBelow[BUCKETS];
+        }
+        return rate;
+    }
+
+    // Requests below the hash, the part of its bucket below it included
+    private double requestsBelow(BigInteger hash) {
+        int bucket = hash.shiftRight(HASH_BITS - BUCKET_BITS).intValue();
+        double inBucket = ratesBelow[bucket + 1] - ratesBelow[bucket];
+        BigInteger offset = hash.subtract(BigInteger.valueOf(bucket).shiftLeft(HASH_BITS - BUCKET_BITS));
+        return ratesBelow[bucket] + inBucket * offset.doubleValue() / BUCKET_SIZE.doubleValue();
+    }
+
+    /**
+     * @return  load of each range, with the request rates of the last window
+     */
+    public synchronized List<RangeLoad> report(KVStorage storage, List<ServerMetaData> ranges) {
+        // The sample holds every key when there are few
+        int size = storage.size();
+        List<BigInteger> sample = storage.sampleHashes();
+        List<List<BigInteger>> sampled = new ArrayList<List<BigInteger>>();
+        for (int r = 0; r < ranges.size(); r++) {
+            sampled.add(new ArrayList<BigInteger>());
+        }
+        int samples = sample.size();
+        for (BigInteger hash : sample) {
+            for (int r = 0; r < ranges.size(); r++) {
+                if (RangeLoad.contains(ranges.get(r).bHash, ranges.get(r).eHash, hash)) {
+                    sampled.get(r).add(hash);
+                    break;
+                }
+            }
+        }
+        double keysPerSample = (samples == 0) ? 0 : (double) size / samples;
+        long liveBytes = (long) (storage.fileSize() * (1 - storage.garbageRatio()));
+
+        List<RangeLoad> loads = new ArrayList<RangeLoad>();
+        for (int r = 0; r < ranges.size(); r++) {
+            final BigInteger begin = ranges.get(r).bHash;
+            BigInteger end = ranges.get(r).eHash;
+            List<BigInteger> hashes = sampled.get(r);
+            Collections.sort(hashes, new Comparator<BigInteger>() {
+                @Override
+                public int compare(BigInteger a, BigInteger b) {
+                    return RangeLoad.offset(a, begin).compareTo(RangeLoad.offset(b, begin));
+                }
+            });
+            long rangeKeys = Math.round(hashes.size() * keysPerSample);
+            List<BigInteger> cutHashes = new ArrayList<BigInteger>();
+            List<Long> cutKeys = new ArrayList<Long>();
+            List<Double> cutRequests = new ArrayList<Double>();
+            int cuts = Math.min(hashes.size(), KVConstants.LOAD_CUTS);
+            for (int c = 0; c < cuts; c++) {
+                int i = (int) ((long) c * hashes.size() / cuts);
+                cutHashes.add(hashes.get(i));
+                cutKeys.add(Math.round(i * keysPerSample));
+                cutRequests.add(requestsIn(begin, hashes.get(i)));
+            }
+            long bytes = (size == 0) ? 0 : liveBytes * rangeKeys / size;
+            loads.add(new RangeLoad(end, rangeKeys, bytes, requestsIn(begin, end),
+                    cutHashes, cutKeys, cutRequests));
+        }
+        return loads;
+    }
+}
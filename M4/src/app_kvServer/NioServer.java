@@ -0,0 +1,493 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import common.KVConstants;
+import common.messages.BinaryMessage;
+import common.messages.TextMessage;
+
+import org.apache.log4j.*;
+
+/**
+ * Selector based front end of a KVServer, used in place of a thread per
+ * connection when the server mode is NIO. A few event loop threads own the
+ * non-blocking client channels: they frame the requests of the text and binary
+ * protocols and write the replies, while the requests themselves are served by
+ * a bounded pool of workers through the RequestHandler. The number of threads
+ * no longer depends on the number of connections.
+ *
+ * A connection has at most one request with the workers at a time and is not
+ * read from meanwhile, so its replies keep the order of its requests and a
+ * client that sends faster than it is served is held back by TCP.
+ */
+public class NioServer implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Text requests are dropped past this size, binary ones past their frame
+    private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    private static final byte LINE_FEED = 0x0A;
+    // Requests the workers rejected are retried after this many ms
+    private static final long RETRY_INTERVAL = 10;
+
+    private ServerSocketChannel serverChannel;
+    private RequestHandler handler;
+    private EventLoop[] loops;
+    private ThreadPoolExecutor workers;
+    private volatile boolean running = false;
+
+    /**
+     * @param serverChannel bound channel to accept clients on
+     * @param eventLoops    number of event loop threads
+     * @param workerCount   number of threads serving requests
+     * @param queueSize     requests that may wait for a worker
+     */
+    public NioServer(ServerSocketChannel serverChannel, RequestHandler handler,
+            int eventLoops, int workerCount, int queueSize) throws IOException {
+        this.serverChannel = serverChannel;
+        this.handler = handler;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        this.workers = new ThreadPoolExecutor(Math.max(1, workerCount), Math.max(1, workerCount),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+        this.running = true;
+    }
+
+    /**
+     * Start the event loops and accept clients until stopped
+     */
+    @Override
+    public void run() {
+        for (EventLoop loop : loops) {
+            new Thread(loop).start();
+        }
+        logger.info("NIO server with " + loops.length + " event loops and "
+                + workers.getMaximumPoolSize() + " workers");
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel client = serverChannel.accept();
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                loops[next++ % loops.length].register(client);
+                logger.info("Connected to "
+                        + client.socket().getInetAddress().getHostName()
+                        +  " on port " + client.socket().getPort());
+            }
+            catch (ClosedChannelException e) {
+                break;
+            }
+            catch (IOException e) {
+                logger.error("Error! " +
+                        "Unable to establish connection. \n", e);
+            }
+        }
+        stop();
+    }
+
+    /**
+     * Stop accepting clients. Requests already with the workers are still
+     * served and their replies sent before the connections are closed.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        }
+        catch (IOException ex) {
+            logger.error("Error! Unable to close server channel " + ex);
+        }
+        workers.shutdown();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    public int getActiveWorkers() {
+        return workers.getActiveCount();
+    }
+
+    public int getQueuedRequests() {
+        return workers.getQueue().size();
+    }
+
+    private class EventLoop implements Runnable {
+        private Selector selector;
+        // Handed over by the acceptor
+        private ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        // Connections whose request the workers are done with
+        private ConcurrentLinkedQueue<Connection> served = new ConcurrentLinkedQueue<Connection>();
+        // Connections whose request the workers rejected
+        private List<Connection> deferred = new ArrayList<Connection>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel client) {
+            accepted.add(client);
+            selector.wakeup();
+        }
+
+        void served(Connection connection) {
+            served.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running || !workers.isTerminated()) {
+                try {
+                    if (running && deferred.isEmpty()) {
+                        selector.select();
+                    }
+                    else {
+                        selector.select(RETRY_INTERVAL);
+                    }
+                    registerAccepted();
+                    resumeServed();
+                    retryDeferred();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                }
+                catch (IOException e) {
+                    logger.error("Error! Event loop failed " + e);
+                }
+            }
+            // Send what the last requests replied, then close
+            resumeServed();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                try {
+                    connection.write();
+                }
+                catch (IOException | CancelledKeyException e) {
+                    // Closed below either way
+                }
+                connection.close();
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                logger.error("Error! Unable to close selector " + e);
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+            }
+            /* connection either terminated by the client or lost due to
+             * network problems*/
+            catch (IOException | CancelledKeyException e) {
+                logger.error("Error! Connection lost!");
+                connection.close();
+            }
+            // one broken connection must not stop the others on this loop
+            catch (RuntimeException | Error e) {
+                logger.error("Error! Closing connection " + connection.address + " " + e);
+                connection.close();
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel client;
+            while ((client = accepted.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, client);
+                    connection.key = client.register(selector,
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
+                    Socket socket = client.socket();
+                    connection.send(new TextMessage(
+                            "Connection to KV server established: "
+                            + socket.getLocalAddress() + " / "
+                            + socket.getLocalPort()).getMsgBytes());
+                }
+                catch (IOException e) {
+                    logger.error("Error! Connection could not be established! " + e);
+                }
+            }
+        }
+
+        private void resumeServed() {
+            Connection connection;
+            while ((connection = served.poll()) != null) {
+                try {
+                    connection.resume();
+                }
+                catch (IOException | CancelledKeyException e) {
+                    logger.error("Error! Connection lost!");
+                    connection.close();
+                }
+                catch (RuntimeException | Error e) {
+                    logger.error("Error! Closing connection " + connection.address + " " + e);
+                    connection.close();
+                }
+            }
+        }
+
+        private void retryDeferred() {
+            Iterator<Connection> it = deferred.iterator();
+            while (it.hasNext()) {
+                if (it.next().submitPending()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client channel, only touched by its event loop except for
+     * the queue of replies, which the workers fill
+     */
+    private class Connection {
+        private EventLoop loop;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String address;
+        // Bytes read but not framed yet, kept in write mode
+        private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        private ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        // Binary protocol, once negotiated with the client
+        private boolean binary = false;
+        // CR ending the protocol request, still to be dropped
+        private boolean skipReturn = false;
+        // Request with the workers, or waiting for one
+        private boolean busy = false;
+        private Runnable pending;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        // Largest request the input buffer grows to
+        private int maxInput() {
+            return binary ? BinaryMessage.HEADER_SIZE + BinaryMessage.MAX_PAYLOAD : DROP_SIZE;
+        }
+
+        void read() throws IOException {
+            int read;
+            while ((read = channel.read(input)) > 0) {
+                if (!input.hasRemaining()) {
+                    // Full at the cap: frame what is there before reading on
+                    if (input.capacity() >= maxInput()) break;
+                    ByteBuffer larger = ByteBuffer.allocate(
+                            Math.min(input.capacity() * 2, maxInput()));
+                    input.flip();
+                    larger.put(input);
+                    input = larger;
+                }
+            }
+            if (read < 0) {
+                logger.info("Connection to " + address + " closed by client");
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * Hand the next complete request to the workers, unless one is
+         * already there
+         */
+        private void dispatch() throws IOException {
+            if (busy) return;
+            Runnable request = nextRequest();
+            if (request == null) {
+                if (!input.hasRemaining() && input.capacity() >= maxInput()) {
+                    logger.error("Error! Request of " + address + " exceeds "
+                            + maxInput() + " bytes, closing connection");
+                    close();
+                }
+                return;
+            }
+            busy = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            pending = request;
+            if (!submitPending()) {
+                loop.deferred.add(this);
+            }
+        }
+
+        boolean submitPending() {
+            if (!channel.isOpen()) return true;
+            try {
+                workers.execute(pending);
+                pending = null;
+                return true;
+            }
+            catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        // Called by the event loop once the workers are done with a request
+        void resume() throws IOException {
+            busy = false;
+            if (!key.isValid()) return;
+            int ops = SelectionKey.OP_READ;
+            synchronized (output) {
+                if (!output.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+            dispatch();
+        }
+
+        private Runnable nextRequest() throws IOException {
+            input.flip();
+            try {
+                while (true) {
+                    if (binary) {
+                        if (skipReturn && input.hasRemaining()) {
+                            if (input.get(input.position()) == '\r') {
+                                input.get();
+                            }
+                            skipReturn = false;
+                        }
+                        return skipReturn ? null : nextFrame();
+                    }
+                    int end = -1;
+                    for (int i = input.position(); i < input.limit(); i++) {
+                        if (input.get(i) == LINE_FEED) {
+                            end = i;
+                            break;
+                        }
+                    }
+                    if (end < 0) return null;
+                    byte[] msgBytes = new byte[end - input.position()];
+                    input.get(msgBytes);
+                    input.get();
+                    final String msg = new TextMessage(msgBytes).getMsg();
+                    // The CR ending the previous message is left on its own
+                    if (msg.isEmpty()) continue;
+                    logger.info("RECEIVE \t<" + address + ">: '" + msg + "'");
+                    String[] msgContent = msg.split(KVConstants.SPLIT_DELIM);
+                    if (msgContent[0].equals("PROTOCOL")) {
+                        negotiateProtocol(msgContent);
+                        continue;
+                    }
+                    return new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (TextMessage reply : handler.handleText(msg)) {
+                                    send(reply.getMsgBytes());
+                                    logger.info("SEND \t<" + address + ">: '" + reply.getMsg() + "'");
+                                }
+                            }
+                            catch (RuntimeException e) {
+                                logger.error("Error! Unable to serve '" + msg + "' " + e);
+                            }
+                            finally {
+                                loop.served(Connection.this);
+                            }
+                        }
+                    };
+                }
+            }
+            finally {
+                input.compact();
+            }
+        }
+
+        private Runnable nextFrame() throws IOException {
+            final BinaryMessage request = BinaryMessage.decode(input);
+            if (request == null) return null;
+            logger.debug("RECEIVE \t<" + address + ">: " + request);
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BinaryMessage reply = handler.handleBinary(request);
+                        send(reply.toBytes());
+                        logger.debug("SEND \t<" + address + ">: " + reply);
+                    }
+                    catch (RuntimeException e) {
+                        logger.error("Error! Unable to serve " + request + " " + e);
+                    }
+                    finally {
+                        loop.served(Connection.this);
+                    }
+                }
+            };
+        }
+
+        // Served on the event loop, no other request is in flight
+        private void negotiateProtocol(String[] msgContent) {
+            if (RequestHandler.acceptsBinary(msgContent)) {
+                send(new TextMessage(RequestHandler.PROTOCOL_BINARY).getMsgBytes());
+                binary = true;
+                skipReturn = true;
+                logger.info("Switched connection to binary protocol version " + BinaryMessage.VERSION);
+            }
+            else {
+                send(new TextMessage(RequestHandler.PROTOCOL_TEXT).getMsgBytes());
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void send(byte[] bytes) {
+            synchronized (output) {
+                output.add(ByteBuffer.wrap(bytes));
+            }
+        }
+
+        void write() throws IOException {
+            synchronized (output) {
+                while (!output.isEmpty()) {
+                    ByteBuffer buf = output.peek();
+                    channel.write(buf);
+                    if (buf.hasRemaining()) return;
+                    output.poll();
+                }
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            loop.deferred.remove(this);
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                logger.error("Error! Unable to tear down connection!", ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import common.KVConstants;
+import common.messages.BinaryMessage;
+import common.messages.KVBatch;
+import common.messages.KVMessage;
+
+/**
+ * Receiving end of the range transfers sent by RangeSender. Each transfer
+ * remembers the next chunk it expects, so that a sender that lost its
+ * connection can ask where to resume. Chunks are checked against their
+ * CRC32 and applied in order, one at a time, so a transfer holds at most one
+ * chunk in memory here whatever the size of the range.
+ *
+ * The chunks of a whole segment are records of a data file: they are
+ * appended to a staging file that the sink installs once the transfer ends.
+ */
+public class RangeReceiver {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final String MOVE_SUCCESS = "MOVE_SUCCESS";
+    public static final String MOVE_FAILED = "MOVE_FAILED";
+    public static final String CHECKSUM_ERROR = "CHECKSUM_ERROR";
+    public static final String OUT_OF_ORDER = "OUT_OF_ORDER";
+    // Transfers without a request for this long were given up by their sender
+    public static final long ABANDONED_AFTER = 5 * 60 * 1000;
+
+    /**
+     * Where the received pairs go
+     */
+    public interface Sink {
+        /**
+         * A new transfer to the destination starts
+         */
+        boolean begin(String destination);
+
+        boolean apply(String destination, Map<String, String> pairs);
+
+        /**
+         * @return  empty file to stage the records of a segment in
+         */
+        Path stage(String destination, int segment) throws IOException;
+
+        boolean install(String destination, int segment, Path staged);
+    }
+
+    private static class Transfer {
+        final String destination;
+        final int segment;      // -1 for a transfer of pairs
+        final Path staged;
+        long next = 0;
+        long stagedBytes = 0;
+        volatile long lastActive = System.currentTimeMillis();
+
+        Transfer(String destination, int segment, Path staged) {
+            this.destination = destination;
+            this.segment = segment;
+            this.staged = staged;
+        }
+    }
+
+    private final Sink sink;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+
+    public RangeReceiver(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @return  true for the opcodes of a range transfer
+     */
+    public static boolean isMoveRequest(BinaryMessage request) {
+        byte opcode = request.getOpcode();
+        return opcode == BinaryMessage.OP_MOVE_BEGIN || opcode == BinaryMessage.OP_MOVE_CHUNK
+                || opcode == BinaryMessage.OP_MOVE_END;
+    }
+
+    public static long checksum(String value) {
+        CRC32 crc = new CRC32();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * @return  number of transfers begun and not ended yet
+     */
+    public int getOpenTransfers() {
+        return transfers.size();
+    }
+
+    public BinaryMessage handle(BinaryMessage request) {
+        String[] fields = request.getKey().split(KVConstants.SPLIT_DELIM);
+        if (fields.length < 2) {
+            logger.error("Invalid range transfer request " + request);
+            return reply(request, MOVE_FAILED, 0);
+        }
+        try {
+            switch (request.getOpcode()) {
+                case BinaryMessage.OP_MOVE_BEGIN:
+                    int segment = (fields.length > 2) ? Integer.parseInt(fields[2]) : -1;
+                    return begin(request, fields[0], fields[1], segment);
+                case BinaryMessage.OP_MOVE_CHUNK:
+                    return chunk(request, fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                default:
+                    return end(request, fields[1], Long.parseLong(fields[2]));
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            logger.error("Invalid range transfer request " + request + ": " + ex);
+            return reply(request, MOVE_FAILED, 0);
+        }
+    }
+
+    private BinaryMessage reply(BinaryMessage request, String result, long next) {
+        return new BinaryMessage(BinaryMessage.OP_MOVE_REPLY, request.getRequestId(), result, Long.toString(next));
+    }
+
+    // A known transfer resumes where it stopped, a new one of pairs starts the
+    // destination over and a new one of a segment starts an empty staging file
+    private BinaryMessage begin(BinaryMessage request, String destination, String id, int segment) {
+        Transfer transfer = transfers.get(id);
+        if (transfer != null) {
+            transfer.lastActive = System.currentTimeMillis();
+            synchronized (transfer) {
+                logger.info("Resuming range transfer " + id + " at chunk " + transfer.next);
+                return reply(request, MOVE_SUCCESS, transfer.next);
+            }
+        }
+        // A sender may run several transfers at once, only the ones nothing
+        // was heard of for a while are dropped
+        expireAbandoned();
+        Path staged = null;
+        if (segment >= 0) {
+            try {
+                staged = sink.stage(destination, segment);
+            } catch (IOException ex) {
+                logger.error("Unable to stage segment " + segment + " of range transfer " + id + ": " + ex);
+                return reply(request, MOVE_FAILED, 0);
+            }
+        }
+        else if (!sink.begin(destination)) {
+            return reply(request, MOVE_FAILED, 0);
+        }
+        transfers.put(id, new Transfer(destination, segment, staged));
+        logger.info("Range transfer " + id + " to " + destination + " started");
+        return reply(request, MOVE_SUCCESS, 0);
+    }
+
+    private void expireAbandoned() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Transfer> e : transfers.entrySet()) {
+            Transfer transfer = e.getValue();
+            if (now - transfer.lastActive < ABANDONED_AFTER || !transfers.remove(e.getKey(), transfer)) {
+                continue;
+            }
+            logger.info("Range transfer " + e.getKey() + " abandoned at chunk " + transfer.next);
+            if (transfer.staged != null) {
+                try {
+                    Files.deleteIfExists(transfer.staged);
+                } catch (IOException ex) {
+                    logger.error("Unable to delete " + transfer.staged + ": " + ex);
+                }
+            }
+        }
+    }
+
+    private BinaryMessage chunk(BinaryMessage request, String id, long seq, long crc) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null) {
+            logger.error("Chunk of unknown range transfer " + id);
+            return reply(request, MOVE_FAILED, 0);
+        }
+        transfer.lastActive = System.currentTimeMillis();
+        synchronized (transfer) {
+            if (seq < transfer.next) {
+                // Sent again after a reconnect, already applied
+                return reply(request, MOVE_SUCCESS, transfer.next);
+            }
+            if (seq > transfer.next) {
+                return reply(request, OUT_OF_ORDER, transfer.next);
+            }
+            if (checksum(request.getValue()) != crc) {
+                logger.error("Checksum mismatch in chunk " + seq + " of range transfer " + id);
+                return reply(request, CHECKSUM_ERROR, transfer.next);
+            }
+            if (transfer.segment >= 0) {
+                return stageChunk(request, transfer, id, seq);
+            }
+            Map<String, String> pairs = new LinkedHashMap<String, String>();
+            try {
+                for (KVMessage entry : KVBatch.decode(request.getValue())) {
+                    pairs.put(entry.getKey(), entry.getValue());
+                }
+            } catch (IOException ex) {
+                logger.error("Invalid chunk " + seq + " of range transfer " + id + ": " + ex);
+                return reply(request, MOVE_FAILED, transfer.next);
+            }
+            if (!sink.apply(transfer.destination, pairs)) {
+                return reply(request, MOVE_FAILED, transfer.next);
+            }
+            transfer.next++;
+            return reply(request, MOVE_SUCCESS, transfer.next);
+        }
+    }
+
+    // Written at the end of the chunks staged so far, over a failed write
+    private BinaryMessage stageChunk(BinaryMessage request, Transfer transfer, String id, long seq) {
+        byte[] records = request.getValue().getBytes(StandardCharsets.UTF_8);
+        try (FileChannel file = FileChannel.open(transfer.staged, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            file.truncate(transfer.stagedBytes);
+            ByteBuffer buf = ByteBuffer.wrap(records);
+            while (buf.hasRemaining()) {
+                file.write(buf, transfer.stagedBytes + buf.position());
+            }
+        } catch (IOException ex) {
+            logger.error("Unable to stage chunk " + seq + " of range transfer " + id + ": " + ex);
+            return reply(request, MOVE_FAILED, transfer.next);
+        }
+        transfer.stagedBytes += records.length;
+        transfer.next++;
+        return reply(request, MOVE_SUCCESS, transfer.next);
+    }
+
+    private BinaryMessage end(BinaryMessage request, String id, long chunks) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null) {
+            return reply(request, MOVE_FAILED, 0);
+        }
+        synchronized (transfer) {
+            if (transfer.next != chunks) {
+                return reply(request, OUT_OF_ORDER, transfer.next);
+            }
+            transfers.remove(id);
+            if (transfer.segment >= 0 && !sink.install(transfer.destination, transfer.segment, transfer.staged)) {
+                return reply(request, MOVE_FAILED, chunks);
+            }
+            logger.info("Range transfer " + id + " completed with " + chunks + " chunks");
+            return reply(request, MOVE_SUCCESS, chunks);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package app_kvServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+import client.KVPipeline;
+import common.KVConstants;
+import common.messages.BinaryMessage;
+import common.messages.KVBatch;
+import common.messages.KVReplyMessage;
+import common.messages.KVMessage.StatusType;
+import storage.KVStorage;
+import storage.KVStorageSegmented;
+
+/**
+ * Streams a set of keys of a storage to another server in chunks of about
+ * CHUNK_SIZE chars, read from storage only when the chunk is built. At most
+ * WINDOW chunks are in flight, so memory use does not depend on how much
+ * data moves. Each chunk carries a CRC32 of its payload.
+ *
+ * A whole segment of a KVStorageSegmented is sent as the records of its data
+ * file instead, cut at line ends, and the receiver installs them as a file.
+ *
+ * When the connection is lost or a chunk is refused, the transfer reconnects
+ * and asks the receiver which chunk it expects next, then resumes from there
+ * instead of starting over. The keys are sent in sorted order so the chunks
+ * stay the same across attempts.
+ */
+public class RangeSender {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+    public static final int WINDOW = 4;
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Chunks of a transfer, built from a position that a resumed transfer
+     * can seek back to
+     */
+    private interface ChunkSource {
+        boolean hasNext();
+
+        long position();
+
+        void seek(long position) throws IOException;
+
+        String next() throws IOException;
+    }
+
+    private final String sender;
+    private final String address;
+    private final int port;
+    private final String destination;   // storage of the target, see KVConstants
+    private final int chunkSize;
+    private String transferId;
+    // Position of every chunk built so far, to resume at any of them
+    private final List<Long> chunkStarts = new ArrayList<Long>();
+    private long sentChunks = 0;
+
+    public RangeSender(String sender, String address, int port, String destination) {
+        this(sender, address, port, destination, CHUNK_SIZE);
+    }
+
+    public RangeSender(String sender, String address, int port, String destination, int chunkSize) {
+        this.sender = sender;
+        this.address = address;
+        this.port = port;
+        this.destination = destination;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return  chunks sent, resent ones included
+     */
+    public long getSentChunks() {
+        return sentChunks;
+    }
+
+    /**
+     * Send the keys, sorted, with their values in the storage
+     * @return  true once the receiver applied every chunk
+     */
+    public boolean send(final KVStorage storage, final List<String> keys) {
+        return send(new ChunkSource() {
+            private int position = 0;
+
+            public boolean hasNext() {
+                return position < keys.size();
+            }
+
+            public long position() {
+                return position;
+            }
+
+            public void seek(long position) {
+                this.position = (int) position;
+            }
+
+            public String next() throws IOException {
+                List<KVReplyMessage> chunk = new ArrayList<KVReplyMessage>();
+                int size = 0;
+                while (position < keys.size() && (chunk.isEmpty() || size < chunkSize)) {
+                    String key = keys.get(position++);
+                    String value = storage.get(key);
+                    // deleted since the keys were listed
+                    if (value.equals("")) continue;
+                    chunk.add(new KVReplyMessage(key, value, StatusType.PUT));
+                    size += key.length() + value.length();
+                }
+                return KVBatch.encode(chunk);
+            }
+        }, null);
+    }
+
+    /**
+     * Send a whole segment of the storage, read from a link to its data file
+     * so that compactions do not disturb the transfer. An empty segment is
+     * sent as a transfer without chunks.
+     * @return  true once the receiver installed the segment
+     */
+    public boolean sendSegment(KVStorageSegmented storage, int segment) {
+        Path snapshot = Paths.get(KVStorageSegmented.segmentPath(storage.getFilePath(), segment) + ".send");
+        FileChannel file = null;
+        try {
+            if (storage.snapshotSegment(segment, snapshot)) {
+                file = FileChannel.open(snapshot, StandardOpenOption.READ);
+            }
+            final FileChannel records = file;
+            final long size = (file == null) ? 0 : file.size();
+            return send(new ChunkSource() {
+                private long position = 0;
+
+                public boolean hasNext() {
+                    return position < size;
+                }
+
+                public long position() {
+                    return position;
+                }
+
+                public void seek(long position) {
+                    this.position = position;
+                }
+
+                public String next() throws IOException {
+                    byte[] chunk = readRecords(records, position, chunkSize);
+                    position += chunk.length;
+                    return new String(chunk, StandardCharsets.UTF_8);
+                }
+            }, Integer.toString(segment));
+        } catch (IOException ex) {
+            logger.error("Unable to read segment " + segment + " of " + storage.getFilePath() + ": " + ex);
+            return false;
+        } finally {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+                Files.deleteIfExists(snapshot);
+            } catch (IOException ex) {
+                logger.error("Unable to delete " + snapshot + ": " + ex);
+            }
+        }
+    }
+
+    // Whole lines from position, about size bytes or one line if it is longer
+    private static byte[] readRecords(FileChannel file, long position, int size) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        while (true) {
+            buf.clear();
+            int read = file.read(buf, position);
+            if (read <= 0) {
+                return records.toByteArray();
+            }
+            int last = read - 1;
+            while (last >= 0 && buf.get(last) != '\n') last--;
+            if (last >= 0) {
+                records.write(buf.array(), 0, last + 1);
+                return records.toByteArray();
+            }
+            // no line end in the block, a record longer than a chunk
+            records.write(buf.array(), 0, read);
+            position += read;
+        }
+    }
+
+    private boolean send(ChunkSource source, String segment) {
+        transferId = sender + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        chunkStarts.clear();
+        chunkStarts.add(0L);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            KVPipeline pipeline = new KVPipeline(address, port);
+            try {
+                pipeline.connect();
+                if (stream(pipeline, source, segment)) {
+                    return true;
+                }
+            } catch (IOException | ExecutionException e) {
+                logger.error("Range transfer " + transferId + " to " + address + ":" + port
+                        + " interrupted, attempt " + attempt + ": " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                pipeline.close();
+            }
+        }
+        logger.error("Range transfer " + transferId + " to " + address + ":" + port + " failed");
+        return false;
+    }
+
+    private String keyOf(String... fields) {
+        StringBuilder key = new StringBuilder(destination).append(KVConstants.DELIM).append(transferId);
+        for (String field : fields) {
+            key.append(KVConstants.DELIM).append(field);
+        }
+        return key.toString();
+    }
+
+    // One attempt, false if the receiver refused a chunk
+    private boolean stream(KVPipeline pipeline, ChunkSource source, String segment)
+            throws IOException, ExecutionException, InterruptedException {
+        String beginKey = (segment == null) ? keyOf() : keyOf(segment);
+        BinaryMessage begin = pipeline.send(BinaryMessage.OP_MOVE_BEGIN, beginKey, null).get();
+        if (!isSuccess(begin)) return false;
+        int seq = (int) Long.parseLong(begin.getValue());
+        if (seq >= chunkStarts.size()) {
+            throw new IOException("Receiver expects chunk " + seq + " of " + chunkStarts.size());
+        }
+        source.seek(chunkStarts.get(seq));
+        ArrayDeque<CompletableFuture<BinaryMessage>> inFlight = new ArrayDeque<CompletableFuture<BinaryMessage>>();
+        while (source.hasNext()) {
+            String payload = source.next();
+            if (seq + 1 == chunkStarts.size()) {
+                chunkStarts.add(source.position());
+            }
+            String key = keyOf(Integer.toString(seq), Long.toString(RangeReceiver.checksum(payload)));
+            inFlight.add(pipeline.send(BinaryMessage.OP_MOVE_CHUNK, key, payload));
+            sentChunks++;
+            seq++;
+            if (inFlight.size() >= WINDOW && !isSuccess(inFlight.poll().get())) {
+                return false;
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            if (!isSuccess(inFlight.poll().get())) return false;
+        }
+        BinaryMessage end = pipeline.send(BinaryMessage.OP_MOVE_END, keyOf(Integer.toString(seq)), null).get();
+        return isSuccess(end);
+    }
+
+    private boolean isSuccess(BinaryMessage reply) {
+        if (reply.getKey().equals(RangeReceiver.MOVE_SUCCESS)) return true;
+        logger.error("Range transfer " + transferId + " refused: " + reply.getKey()
+                + ", receiver expects chunk " + reply.getValue());
+        return false;
+    }
+}
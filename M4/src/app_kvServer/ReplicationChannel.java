@@ -0,0 +1,269 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import client.KVPipeline;
+import common.KVConstants;
+import common.ServerMetaData;
+import common.messages.BinaryMessage;
+
+/**
+ * Long-lived connection from a coordinator to one of its replicas. The
+ * connection is opened on first use and kept for the following updates, it
+ * is reopened when the replica changes or the connection is lost.
+ *
+ * Updates are pipelined: they are sent in order without waiting for the acks
+ * of the previous ones, and the replica applies them in that order. The time
+ * the oldest unacked update has been waiting is the replication lag.
+ *
+ * When the connection is lost, or the oldest update waits for its ack longer
+ * than REPLICATION_TIMEOUT, the updates not acked yet are sent again in
+ * order on a new connection, ahead of any later update. An update sent
+ * MAX_SENDS times without an ack fails.
+ */
+public class ReplicationChannel {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_SENDS = 2;
+
+    // Update sent and not acked yet
+    private static class Pending {
+        final String batch;
+        final long sent = System.currentTimeMillis();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        KVPipeline via;     // connection it was last sent on
+        int sends = 0;
+
+        Pending(String batch) {
+            this.batch = batch;
+        }
+    }
+
+    private String destination;     // role of the replica, PREPLICA or SREPLICA
+    private ServerMetaData replica;
+    private KVPipeline pipeline;
+    // Updates not acked yet, oldest first
+    private final ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+    private volatile long lastAckLatency = 0;
+    private final AtomicLong failures = new AtomicLong();
+
+    public ReplicationChannel(String destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * Point the channel to another replica, null when there is none. The
+     * current connection is closed if the replica changed.
+     */
+    public synchronized void setReplica(ServerMetaData replica) {
+        if (this.replica != null && replica != null
+                && this.replica.getServerAddr().equals(replica.getServerAddr())
+                && this.replica.getServerPort() == replica.getServerPort()) {
+            this.replica = replica;
+            return;
+        }
+        close();
+        this.replica = replica;
+    }
+
+    public synchronized ServerMetaData getReplica() {
+        return replica;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * Send a batch of updates, an empty value deletes, and wait for the ack
+     * @return  true if the replica applied the batch within REPLICATION_TIMEOUT
+     */
+    public boolean send(String batch) {
+        try {
+            return sendAsync(batch).get(KVConstants.REPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queue a batch of updates behind the ones already sent
+     *
+     * @return  future completed with true once the replica applied the
+     *          batch, false if it could not
+     */
+    public CompletableFuture<Boolean> sendAsync(final String batch) {
+        final Pending update = new Pending(batch);
+        update.result.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean success, Throwable ex) {
+                lastAckLatency = System.currentTimeMillis() - update.sent;
+                if (success == null || !success) failures.incrementAndGet();
+            }
+        });
+        synchronized (this) {
+            Pending oldest = inFlight.peekFirst();
+            if (pipeline != null && oldest != null
+                    && System.currentTimeMillis() - oldest.sent > KVConstants.REPLICATION_TIMEOUT) {
+                logger.error("No ack from " + destination + " " + describe() + " in "
+                        + KVConstants.REPLICATION_TIMEOUT + " ms, reconnecting");
+                KVPipeline hung = pipeline;
+                pipeline = null;
+                hung.close();
+            }
+            inFlight.addLast(update);
+            flush();
+        }
+        return update.result;
+    }
+
+    // Send the updates not sent on the current connection yet, in order. The
+    // connection is only opened if there is one. A send failing right away
+    // flushes again from its callback, hence the copy of the queue.
+    private synchronized void flush() {
+        KVPipeline current = null;
+        boolean connected = false;
+        for (Pending update : new ArrayList<Pending>(inFlight)) {
+            if (!inFlight.contains(update)) continue;
+            if (update.via != null && update.via == pipeline && pipeline.isOpen()) continue;
+            if (!connected) {
+                connected = true;
+                try {
+                    current = connection();
+                } catch (IOException e) {
+                    logger.error("Unable to connect to " + destination + " " + describe() + ": " + e);
+                }
+            }
+            if (current == null || update.sends >= MAX_SENDS) {
+                inFlight.remove(update);
+                update.result.complete(false);
+                continue;
+            }
+            transmit(update, current);
+        }
+    }
+
+    private void transmit(final Pending update, final KVPipeline current) {
+        update.via = current;
+        update.sends++;
+        current.send(BinaryMessage.OP_REPLICA_BATCH, destination, update.batch).whenComplete(
+                new BiConsumer<BinaryMessage, Throwable>() {
+            @Override
+            public void accept(BinaryMessage reply, Throwable ex) {
+                if (ex == null) {
+                    synchronized (ReplicationChannel.this) {
+                        inFlight.remove(update);
+                    }
+                    update.result.complete(reply.getKey().equals("UPDATE_SUCCESS"));
+                    return;
+                }
+                logger.error("Unable to replicate to " + destination + " " + describe() + ": " + ex);
+                synchronized (ReplicationChannel.this) {
+                    if (current == pipeline) {
+                        pipeline = null;
+                    }
+                    flush();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return  future completed with true once the given number of sends
+     *          succeeded, or with false once so many failed that they cannot
+     */
+    public static CompletableFuture<Boolean> acks(List<CompletableFuture<Boolean>> sends, final int needed) {
+        if (needed <= 0) return CompletableFuture.completedFuture(true);
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        final int[] counts = new int[2];    // successes, failures
+        final int total = sends.size();
+        for (CompletableFuture<Boolean> send : sends) {
+            send.whenComplete(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean success, Throwable ex) {
+                    synchronized (counts) {
+                        if (success != null && success) counts[0]++;
+                        else counts[1]++;
+                        if (counts[0] >= needed) done.complete(true);
+                        else if (total - counts[1] < needed) done.complete(false);
+                    }
+                }
+            });
+        }
+        return done;
+    }
+
+    /**
+     * @return  milliseconds the oldest update not acked yet has been waiting,
+     *          0 if the replica is up to date
+     */
+    public synchronized long getLagMillis() {
+        Pending oldest = inFlight.peekFirst();
+        return (oldest == null) ? 0 : System.currentTimeMillis() - oldest.sent;
+    }
+
+    /**
+     * @return  updates sent and not acked yet
+     */
+    public synchronized int getPendingUpdates() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return  milliseconds from send to ack of the last update acked
+     */
+    public long getLastAckLatency() {
+        return lastAckLatency;
+    }
+
+    /**
+     * @return  updates the replica did not apply since the server started
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private synchronized KVPipeline connection() throws IOException {
+        if (replica == null) return null;
+        if (pipeline == null || !pipeline.isOpen()) {
+            pipeline = new KVPipeline(replica.getServerAddr(), replica.getServerPort());
+            pipeline.connect((int) KVConstants.REPLICATION_TIMEOUT);
+            logger.info("Replication channel to " + destination + " " + describe() + " opened");
+        }
+        return pipeline;
+    }
+
+    private synchronized String describe() {
+        return (replica == null) ? "none" : replica.getServerAddr() + ":" + replica.getServerPort();
+    }
+
+    /**
+     * Close the connection, the updates not acked yet fail
+     */
+    public synchronized void close() {
+        KVPipeline closing = pipeline;
+        pipeline = null;
+        if (closing != null) {
+            closing.close();
+        }
+        for (Pending update : inFlight) {
+            update.result.complete(false);
+        }
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,547 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import common.messages.BinaryMessage;
+import common.messages.KVBatch;
+import common.messages.KVMessage;
+import common.messages.KVReplyMessage;
+import common.messages.TextMessage;
+import common.messages.KVMessage.AckLevel;
+import common.messages.KVMessage.StatusType;
+import common.KVConstants;
+
+import org.apache.log4j.*;
+
+
+/**
+ * Serves the requests of clients, other servers and the ECS independently of
+ * how they reach the server. Every request is answered with the list of
+ * messages to send back, so the same handler is shared by the thread per
+ * connection front end (ClientConnection) and the selector based one
+ * (NioServer). It keeps no per connection state and is thread safe as far as
+ * the KVServer is.
+ */
+public class RequestHandler {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_KEY_LENGTH = 20;
+    private static final int MAX_VALUE_LENGTH = 122880; //120KB
+    // Replies to "PROTOCOL|BINARY|<version>"
+    public static final String PROTOCOL_BINARY = "PROTOCOL_BINARY" + KVConstants.DELIM + BinaryMessage.VERSION;
+    public static final String PROTOCOL_TEXT = "PROTOCOL_TEXT";
+
+    private KVServer server;
+
+    public RequestHandler(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @return  true if msgContent is "PROTOCOL|BINARY|<version>" with a
+     *          version this server speaks
+     */
+    public static boolean acceptsBinary(String[] msgContent) {
+        return msgContent.length > 2 && msgContent[0].equals("PROTOCOL") && msgContent[1].equals("BINARY")
+                && msgContent[2].equals(Byte.toString(BinaryMessage.VERSION));
+    }
+
+    /**
+     * Serve a text protocol message, "PROTOCOL" is left to the connection
+     * @return  the replies in the order they are to be sent, may be empty
+     */
+    public List<TextMessage> handleText(String msg) {
+        List<TextMessage> replies = new ArrayList<>();
+        // Unmarshalling of received message
+        String[] msgContent = msg.split(KVConstants.SPLIT_DELIM);
+        String command = msgContent[0];
+        // Key cannot contain DELIM, but value can
+        // So combine all strings from msgContent[2] till end to get value
+        List<String> valueParts = new LinkedList<>();
+        for (int i = 2; i < msgContent.length; ++i) {
+            valueParts.add(msgContent[i]);
+        }
+        String value = String.join(KVConstants.DELIM, valueParts);
+        String key = null;
+        boolean success = true;
+        if (command.equals("ECS")) {
+            String[] ecsCmd = Arrays.copyOfRange(msgContent, 1, msgContent.length);
+            handleECSCmd(ecsCmd, replies);
+        }
+        else if (command.equals("MOVE_KVPAIRS")) {
+            // Receiving KVPairs from another server
+            String destination = msgContent[1];
+            if (msgContent.length >= 2) {
+                logger.debug("handle move kvpairs....");
+                success = server.handleMoveKVPairs(destination, value);
+                String res = success ? "MOVE_SUCCESS" : "MOVE_FAILED";
+                replies.add(new TextMessage(res));
+                logger.info(res);
+            }
+        }
+        else if (command.equals("UPDATE")) {
+            // Add / Update / Delete of a single KVPair
+            String destination = msgContent[1];
+            String action = msgContent[2];
+            String updateKey = msgContent[3];
+            List<String> updateValueParts = new LinkedList<>();
+            for (int i = 4; i < msgContent.length; ++i) {
+                updateValueParts.add(msgContent[i]);
+            }
+            String updateValue = String.join(KVConstants.DELIM, updateValueParts);
+            success = server.handleUpdateKVPair(destination, action, updateKey, updateValue);
+            String res = success ? "UPDATE_SUCCESS" : "UPDATE_FAILED";
+            logger.info(res);
+            replies.add(new TextMessage(res));
+        }
+        else if (command.equals("GET_METADATA")) {
+            // Sent by a client after SERVER_NOT_RESPONSIBLE
+            String metaFetchStatus = server.getMetaDataFromFile();
+            replies.add(new TextMessage(metaFetchStatus));
+            if(!metaFetchStatus.equals("METADATA_FETCH_ERROR")) {
+                replies.add(new TextMessage(server.getServerReplicas()));
+            }
+        }
+        else if (command.equals("REPLICATION_STATUS")) {
+            // Lag of this server's replicas, for monitoring
+            replies.add(new TextMessage("REPLICATION_STATUS" + KVConstants.DELIM + server.getReplicationStatus()));
+        }
+        else if (command.equals("CACHE_STATS")) {
+            // Bytes used by the cache and counters of each segment, for monitoring
+            replies.add(new TextMessage("CACHE_STATS" + KVConstants.DELIM + server.getCacheStats()));
+        }
+        else {
+            if(msgContent.length > 1){
+                key = msgContent[1];
+            }
+            //Just a guard
+            if(key == null) {
+                logger.debug("Error! key is null!!");
+                return replies;
+            }
+            KVReplyMessage reply = handleRequest(command, key, value);
+            if (reply == null) {
+                return replies;
+            }
+            if (reply.getStatus() == StatusType.GET_SUCCESS) {
+                replies.add(new TextMessage(reply.getStatusString() + KVConstants.DELIM + reply.getValue()));
+            }
+            else {
+                replies.add(new TextMessage(reply.getStatusString()));
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Serve a binary protocol frame
+     * @return  the reply frame, carrying the request id of the request
+     */
+    public BinaryMessage handleBinary(BinaryMessage request) {
+        int requestId = request.getRequestId();
+        if (request.getOpcode() == BinaryMessage.OP_GET_METADATA) {
+            String metaData = server.getMetaDataFromFile();
+            if (metaData.equals("METADATA_FETCH_ERROR")) {
+                return new BinaryMessage(BinaryMessage.OP_METADATA_ERROR, requestId, null, null);
+            }
+            return new BinaryMessage(BinaryMessage.OP_METADATA, requestId, metaData, server.getServerReplicas());
+        }
+        if (request.getOpcode() == BinaryMessage.OP_BATCH) {
+            return handleBatch(request);
+        }
+        if (request.getOpcode() == BinaryMessage.OP_REPLICA_BATCH) {
+            return handleReplicaBatch(request);
+        }
+        if (RangeReceiver.isMoveRequest(request)) {
+            return server.getRangeReceiver().handle(request);
+        }
+        StatusType status = request.getStatus();
+        KVReplyMessage result = null;
+        if (status == StatusType.PUT || status == StatusType.GET) {
+            result = handleRequest(status.name(), request.getKey(), request.getValue(), request.getAckLevel());
+        }
+        if (result == null) {
+            result = new KVReplyMessage(request.getKey(), null, StatusType.PUT_ERROR);
+        }
+        String value = (result.getStatus() == StatusType.GET_SUCCESS) ? result.getValue() : null;
+        return new BinaryMessage(result.getStatus(), requestId, request.getKey(), value);
+    }
+
+    /**
+     * Serve a batch of GETs and PUTs. The server state is checked once for
+     * the whole batch and all the PUTs it accepts are written to storage
+     * and sent to the replicas together, under the locks of all their keys.
+     */
+    private BinaryMessage handleBatch(BinaryMessage request) {
+        int requestId = request.getRequestId();
+        List<KVMessage> entries;
+        try {
+            entries = KVBatch.decode(request.getValue());
+        } catch (IOException ex) {
+            logger.error("Invalid batch " + request + ": " + ex);
+            return new BinaryMessage(BinaryMessage.OP_BATCH_REPLY, requestId, null, null);
+        }
+        Set<String> putKeys = new HashSet<>();
+        for (KVMessage entry : entries) {
+            if (entry.getStatus() == StatusType.PUT) putKeys.add(entry.getKey());
+        }
+        KVReplyMessage[] replies = new KVReplyMessage[entries.size()];
+        CompletableFuture<Boolean> replicated = null;
+
+        server.lockKeys(putKeys);
+        try {
+            boolean stopped = server.isStopped();
+            boolean writeLocked = server.isWriteLocked();
+            boolean readLocked = server.isReadLocked();
+            Map<String, String> toWrite = new LinkedHashMap<>();
+            // Keys stored by the puts of this batch so far
+            Set<String> stored = new HashSet<>();
+            Set<String> deleted = new HashSet<>();
+            for (int i = 0; i < entries.size(); i++) {
+                KVMessage entry = entries.get(i);
+                String key = entry.getKey();
+                String value = entry.getValue();
+                if (stopped) {
+                    replies[i] = new KVReplyMessage(key, null, StatusType.SERVER_STOPPED);
+                }
+                else if (entry.getStatus() == StatusType.GET) {
+                    replies[i] = (readLocked) ? new KVReplyMessage(key, null, StatusType.SERVER_STOPPED)
+                            : handleRequest("GET", key, value);
+                }
+                else if (entry.getStatus() != StatusType.PUT) {
+                    replies[i] = new KVReplyMessage(key, null, StatusType.PUT_ERROR);
+                }
+                else if (!server.isResponsible(key)) {
+                    replies[i] = new KVReplyMessage(key, null, StatusType.SERVER_NOT_RESPONSIBLE);
+                }
+                else if (writeLocked) {
+                    replies[i] = new KVReplyMessage(key, null, StatusType.SERVER_WRITE_LOCK);
+                }
+                else if (!errorCheck(key, value)) {
+                    replies[i] = new KVReplyMessage(key, null, StatusType.PUT_ERROR);
+                }
+                else {
+                    server.recordRequest(key);
+                    boolean inStorage = !deleted.contains(key) && (stored.contains(key) || server.inStorage(key));
+                    boolean delete = value.equals("") || value.equals("null");
+                    if (delete) {
+                        replies[i] = new KVReplyMessage(key, null,
+                                inStorage ? StatusType.DELETE_SUCCESS : StatusType.DELETE_ERROR);
+                        if (!inStorage) continue;
+                        stored.remove(key);
+                        deleted.add(key);
+                        toWrite.put(key, "");
+                    }
+                    else {
+                        replies[i] = new KVReplyMessage(key, value,
+                                inStorage ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS);
+                        stored.add(key);
+                        deleted.remove(key);
+                        toWrite.put(key, value);
+                    }
+                }
+            }
+            if (!toWrite.isEmpty()) {
+                try {
+                    replicated = server.writeAllKV(toWrite, request.getAckLevel());
+                    logger.info("Success batch of " + toWrite.size() + " puts on server");
+                }
+                catch (Exception ex) {
+                    logger.error("PUT Error! Unable to write batch of " + toWrite.size() + " keys " + ex);
+                    for (int i = 0; i < replies.length; i++) {
+                        if (toWrite.containsKey(replies[i].getKey()) && entries.get(i).getStatus() == StatusType.PUT) {
+                            StatusType status = replies[i].getStatus();
+                            boolean delete = status == StatusType.DELETE_SUCCESS || status == StatusType.DELETE_ERROR;
+                            replies[i] = new KVReplyMessage(replies[i].getKey(), null,
+                                    delete ? StatusType.DELETE_ERROR : StatusType.PUT_ERROR);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            server.unlockKeys(putKeys);
+        }
+
+        if (replicated != null && !awaitReplication(replicated)) {
+            // Written here but not acked as the ack level asks, reported as failed
+            for (int i = 0; i < replies.length; i++) {
+                StatusType status = replies[i].getStatus();
+                if (entries.get(i).getStatus() != StatusType.PUT) continue;
+                if (status == StatusType.PUT_SUCCESS || status == StatusType.PUT_UPDATE) {
+                    replies[i] = new KVReplyMessage(replies[i].getKey(), null, StatusType.PUT_ERROR);
+                }
+                else if (status == StatusType.DELETE_SUCCESS) {
+                    replies[i] = new KVReplyMessage(replies[i].getKey(), null, StatusType.DELETE_ERROR);
+                }
+            }
+        }
+        return new BinaryMessage(BinaryMessage.OP_BATCH_REPLY, requestId, null,
+                KVBatch.encode(Arrays.asList(replies)));
+    }
+
+    // False if the replicas did not ack a write as its ack level asks
+    private boolean awaitReplication(CompletableFuture<Boolean> replicated) {
+        try {
+            return server.awaitReplication(replicated);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Apply a batch of updates sent by this server's coordinator
+     */
+    private BinaryMessage handleReplicaBatch(BinaryMessage request) {
+        boolean success;
+        try {
+            Map<String, String> pairs = new LinkedHashMap<>();
+            for (KVMessage entry : KVBatch.decode(request.getValue())) {
+                pairs.put(entry.getKey(), entry.getValue());
+            }
+            success = server.handleUpdateKVPairs(request.getKey(), pairs);
+        } catch (IOException ex) {
+            logger.error("Invalid replica batch " + request + ": " + ex);
+            success = false;
+        }
+        String res = success ? "UPDATE_SUCCESS" : "UPDATE_FAILED";
+        logger.info(res);
+        return new BinaryMessage(BinaryMessage.OP_BATCH_REPLY, request.getRequestId(), res, null);
+    }
+
+    /**
+     * Serve a GET or PUT from a client, independently of the protocol it came in
+     * @return  the reply to send, null if the command is unknown
+     */
+    public KVReplyMessage handleRequest(String command, String key, String value) {
+        return handleRequest(command, key, value, null);
+    }
+
+    /**
+     * @param ack   replication ack level of a PUT, null for the server default
+     */
+    public KVReplyMessage handleRequest(String command, String key, String value, AckLevel ack) {
+        if (server.isStopped()) {
+            logger.info("SERVER_STOPPED cannot handle client requests at the moment.");
+            return new KVReplyMessage(key, null, StatusType.SERVER_STOPPED);
+        }
+        // Check if server is responsible for this key
+        if ((command.equals("PUT") && !server.isResponsible(key)) ||
+            (command.equals("GET") && !server.serverOrReplicasResponsible(key))) {
+            return new KVReplyMessage(key, null, StatusType.SERVER_NOT_RESPONSIBLE);
+        }
+        server.recordRequest(key);
+        if (command.equals("PUT")) {
+            return handlePutCmd(key, value, ack);
+        }
+        else if (command.equals("GET")) {
+            if(server.isReadLocked()) {
+                logger.info("SERVER_READ_LOCKED cannot handle client requests at the moment.");
+                return new KVReplyMessage(key, null, StatusType.SERVER_STOPPED);
+            }
+            return handleGetCmd(key);
+        }
+        logger.error("Received invalid message type from client.");
+        System.out.println("Received invalid message type from client.");
+        return null;
+    }
+
+    private boolean errorCheck (String key, String value) {
+        boolean result = true;
+        if (key.length() < 1) {
+            logger.error("Server Error: minimum key length allowed is 1 but key has length " + key.length());
+            result = false;
+        }
+        if (key.length() > MAX_KEY_LENGTH) {
+            logger.error("Server Error: maximum key length allowed is " + MAX_KEY_LENGTH + " but key has length " + key.length());
+            result = false;
+        }
+        if (value.length() > MAX_VALUE_LENGTH) {
+            logger.error("Server Error: maximum value length allowed is 120K Bytes but value has length " + value.length());
+            result = false;
+        }
+        if (key.contains(" ")) {
+            logger.error("Server Error: Key should not contain space");
+            result = false;
+        }
+        if (key.contains(KVConstants.DELIM)) {
+            logger.error("Server Error: Key should not contain delimiter " + KVConstants.DELIM);
+            result = false;
+        }
+        if (key.contains("\n")) {
+            logger.error("Server Error: Key should not contain a newline");
+            result = false;
+        }
+        return result;
+    }
+
+    private void handleECSCmd (String[] msg, List<TextMessage> replies) {
+        boolean success;
+        try {
+            switch(msg[0]) {
+                case "WRITE_UNLOCK":
+                    server.unlockWrite();
+                    replies.add(new TextMessage("UNLOCK_SUCCESS"));
+                    return;
+                case "WRITE_LOCK":
+                    server.lockWrite();
+                    replies.add(new TextMessage("LOCK_SUCCESS"));
+                    return;
+                case "SETUP_NODE":
+                    server.setupCache(msg[2], msg[1]);
+                    replies.add(new TextMessage("SETUP_SUCCESS"));
+                    return;
+                case "START_NODE":
+                    server.start();
+                    replies.add(new TextMessage("START_SUCCESS"));
+                    return;
+                case "STOP_NODE":
+                    server.stop();
+                    replies.add(new TextMessage("STOP_SUCCESS"));
+                    return;
+                case "SHUTDOWN_NODE":
+                    server.shutdown();
+                    replies.add(new TextMessage("SHUTDOWN_SUCCESS"));
+                    return;
+                case "MOVE_ALL_KVPAIRS":
+                case "MOVE_KVPAIRS":
+                    //targetRange in msg[1], msg[2]
+                    System.out.println("Updated metadata. Now moving data");
+                    String[] targetRange = Arrays.copyOfRange(msg, 2, 2);
+                    String targetName = msg[1];
+                    //Passed along rather than set on the server, a server being
+                    //removed moves to several targets at once
+                    success = server.moveData(targetRange, targetName, msg[0].equals("MOVE_ALL_KVPAIRS"));
+                    if(success) {
+                        replies.add(new TextMessage("MOVE_SUCCESS"));
+                    } else {
+                        replies.add(new TextMessage("MOVE_FAILED"));
+                    }
+                    return;
+                case "GET_LOAD":
+                    replies.add(new TextMessage("LOAD_REPORT" + KVConstants.DELIM + server.getLoadReport()));
+                    return;
+                case "UPDATE_METADATA":
+                    success = server.updateMetaData();
+                    if(success) {
+                        replies.add(new TextMessage("METADATA_UPDATE_SUCCESS"));
+                    } else {
+                        replies.add(new TextMessage("METADATA_UPDATE_FAILED"));
+                    }
+                    return;
+                case "UPDATE_REPLICAS":
+                    System.out.println("Here at UPDATE_REPLICAS");
+                    String primaryReplica = msg[1];
+                    String secondaryReplica = msg[2];
+                    System.out.println("Replicas received: " + primaryReplica + " " + secondaryReplica);
+                    success = server.updateReplicas(primaryReplica, secondaryReplica, true);
+                    if(success) {
+                        System.out.println("REPLICAS UPDATED");
+                        replies.add(new TextMessage("REPLICA_UPDATE_SUCCESS"));
+                    } else {
+                        System.out.println("REPLICAS NOT UPDATED");
+                        replies.add(new TextMessage("REPLICA_UPDATE_FAILED"));
+                    }
+                    return;
+                default:
+                    logger.error("Unknown ECS cmd!");
+                    return;
+            }
+        }
+        catch (Exception ex) {
+            logger.error("ERROR! could not handle ECS cmd " + msg[0] + " " + ex);
+        }
+    }
+
+    /**
+     * The write lock check, the lookup deciding the status and the write are
+     * done under the lock of the key, the replicas are waited for after it
+     * is released.
+     */
+    private KVReplyMessage handlePutCmd (String key, String value, AckLevel ack) {
+        String result = "PUT_ERROR";
+        CompletableFuture<Boolean> replicated = null;
+
+        server.lockKey(key);
+        try {
+            if(server.isWriteLocked()){
+                logger.info("SERVER_WRITE_LOCK: server locked, write operation failed");
+                return new KVReplyMessage(key, null, StatusType.SERVER_WRITE_LOCK);
+            }
+            //Done in KVServer;
+            if (errorCheck(key, value)) {
+                // If Value is not null or empty, insert in $ and disk
+                if (value != null && !value.equals("") && !value.equals("null")) {
+                    try {
+                        result = (server.inStorage(key)) ? "PUT_UPDATE" : "PUT_SUCCESS";
+                        replicated = server.writeKV(key, value, ack);
+                        logger.info("Success " + result + " with key " + key + " and value "
+                            + value + " on server");
+                    }
+                    catch (Exception ex) {
+                        result = "PUT_ERROR";
+                        logger.error("PUT Error! Unable to add key " + key + " and value "
+                            + value + " to server " + ex);
+                        ex.printStackTrace();
+                    }
+                }
+                else {
+                    // Delete the value from $ and disk
+                    try {
+                        result = (server.inStorage(key)) ? "DELETE_SUCCESS" : "DELETE_ERROR";
+                        if(result.equals("DELETE_SUCCESS"))
+                            replicated = server.writeKV(key, "", ack);
+                        logger.info("Success " + result + " with key " + key + " on server");
+                    }
+                    catch (Exception ex) {
+                        result = "DELETE_ERROR";
+                        logger.error("DELETE Error! Unable to delete key " + key + " from server");
+                    }
+                }
+            }
+        }
+        finally {
+            server.unlockKey(key);
+        }
+
+        if (replicated != null && !awaitReplication(replicated)) {
+            result = result.startsWith("DELETE") ? "DELETE_ERROR" : "PUT_ERROR";
+        }
+        return new KVReplyMessage(key, value, result);
+    }
+
+    private KVReplyMessage handleGetCmd (String key) {
+        String result = "GET_ERROR";
+        String value = null;
+        if (errorCheck(key, "")) {
+            //Done in KVServer;
+            try {
+                value = server.getKV(key);
+                result = (value.equals(""))? "GET_ERROR": "GET_SUCCESS";
+                if(result.equals("GET_ERROR")) {
+                    logger.info("GET_ERROR: Unable to fetch the value for the key " + key + " on server");
+                }
+                else {
+                    logger.info("Successfully fetched the value " + value + " for the key " + key + " on server");
+                }
+            }
+            catch (Exception ex) {
+                result = "GET_ERROR";
+                logger.info("GET_ERROR: Unable to fetch the value for the key " + key + " on server");
+            }
+        }
+
+        return new KVReplyMessage(key, result.equals("GET_SUCCESS") ? value : null, result);
+    }
+}
@@ -0,0 +1,180 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+import cache.KVCache;
+import common.KVConstants;
+import common.messages.KVMessage.AckLevel;
+import app_kvServer.IKVServer.ServerMode;
+import storage.IKVStorage.ReadMode;
+import storage.KVStorage;
+import storage.KVLogWriter.FsyncPolicy;
+
+/**
+ * Tunables of a KVServer, read from an optional config file with one
+ * "<option> <value>" pair per line. Lines starting with # are ignored and
+ * options that are missing fall back to the defaults in KVConstants.
+ */
+public class ServerConfig {
+    private static Logger logger = Logger.getRootLogger();
+    private HashMap<String, String> options = new HashMap<String, String>();
+
+    public ServerConfig(String fileName) {
+        Path configFile = Paths.get(fileName);
+        if(!Files.exists(configFile)) {
+            logger.info("No server config " + fileName + ", using defaults");
+            return;
+        }
+        try {
+            for(String line : Files.readAllLines(configFile, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) continue;
+                String[] option = line.split(KVConstants.CONFIG_DELIM, 2);
+                if(option.length == 2) {
+                    options.put(option[0], option[1].trim());
+                }
+            }
+        } catch (IOException io) {
+            logger.error("Unable to open server config " + fileName + ": " + io);
+        }
+    }
+
+    public String getString(String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        if(value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        if(value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public double getCompactionRatio() {
+        return getDouble("compaction_ratio", KVConstants.COMPACTION_RATIO);
+    }
+
+    public long getCompactionMinSize() {
+        return getLong("compaction_min_size", KVConstants.COMPACTION_MIN_SIZE);
+    }
+
+    public long getCompactionInterval() {
+        return getLong("compaction_interval", KVConstants.COMPACTION_INTERVAL);
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        String policy = getString("fsync_policy", KVConstants.FSYNC_POLICY);
+        try {
+            return FsyncPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            logger.error("Invalid fsync policy: " + policy);
+            return FsyncPolicy.valueOf(KVConstants.FSYNC_POLICY);
+        }
+    }
+
+    public long getFsyncInterval() {
+        return getLong("fsync_interval", KVConstants.FSYNC_INTERVAL);
+    }
+
+    public String getStorageStrategy() {
+        String strategy = getString("storage_strategy", KVConstants.STORAGE_STRATEGY).toUpperCase();
+        if (!KVStorage.isValidStrategy(strategy)) {
+            logger.error("Invalid storage strategy: " + strategy);
+            return KVConstants.STORAGE_STRATEGY;
+        }
+        return strategy;
+    }
+
+    public ReadMode getReadMode() {
+        String mode = getString("storage_read_mode", KVConstants.STORAGE_READ_MODE);
+        try {
+            return ReadMode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            logger.error("Invalid storage read mode: " + mode);
+            return ReadMode.valueOf(KVConstants.STORAGE_READ_MODE);
+        }
+    }
+
+    public ServerMode getServerMode() {
+        String mode = getString("server_mode", KVConstants.SERVER_MODE);
+        try {
+            return ServerMode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            logger.error("Invalid server mode: " + mode);
+            return ServerMode.valueOf(KVConstants.SERVER_MODE);
+        }
+    }
+
+    public int getNioEventLoops() {
+        return (int) getLong("nio_event_loops", KVConstants.NIO_EVENT_LOOPS);
+    }
+
+    public int getNioWorkers() {
+        return (int) getLong("nio_workers", KVConstants.NIO_WORKERS);
+    }
+
+    public int getNioQueueSize() {
+        return (int) getLong("nio_queue_size", KVConstants.NIO_QUEUE_SIZE);
+    }
+
+    public AckLevel getReplicationAck() {
+        String ack = getString("replication_ack", KVConstants.REPLICATION_ACK);
+        try {
+            return AckLevel.valueOf(ack.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            logger.error("Invalid replication ack level: " + ack);
+            return AckLevel.valueOf(KVConstants.REPLICATION_ACK);
+        }
+    }
+
+    public int getLockStripes() {
+        return (int) getLong("lock_stripes", KVConstants.LOCK_STRIPES);
+    }
+
+    /**
+     * @return  positions of each server on the hash ring, read by the ECS
+     */
+    public int getVirtualNodes() {
+        int tokens = (int) getLong("virtual_nodes", KVConstants.VIRTUAL_NODES);
+        if (tokens < 1) {
+            logger.error("Invalid number of virtual nodes: " + tokens);
+            return KVConstants.VIRTUAL_NODES;
+        }
+        return tokens;
+    }
+
+    /**
+     * @return  number of entries or byte budget of the replica cache
+     */
+    public String getReplicaCacheSize() {
+        String size = getString("replica_cache_size", KVConstants.REPLICA_CACHE_SIZE);
+        if (!KVCache.isValidSize(size)) {
+            logger.error("Invalid replica cache size: " + size);
+            return KVConstants.REPLICA_CACHE_SIZE;
+        }
+        return size;
+    }
+}
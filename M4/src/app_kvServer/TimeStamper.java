@@ -2,16 +2,19 @@ package app_kvServer;
 
 import ecs.ZKImplementation;
 import common.KVConstants;
+import java.util.Arrays;
 import org.apache.zookeeper.KeeperException;
 
 public class TimeStamper implements Runnable {
     private ZKImplementation zkImplServer;
     private String zkPath;
+    private KVServer server;
     private boolean isRunning = false;
 
-    public TimeStamper(ZKImplementation zkImplServer, String zkPath) {
+    public TimeStamper(ZKImplementation zkImplServer, String zkPath, KVServer server) {
         this.zkImplServer = zkImplServer;
         this.zkPath = zkPath;
+        this.server = server;
         this.isRunning = true;
     }
 
@@ -28,11 +31,18 @@ public class TimeStamper implements Runnable {
     }
 
     private void updateTimeStamp() {
-        //Update timestamp on the server's Znode
+        //Update timestamp and request rates on the server's Znode
         try {
             String data = zkImplServer.readData(this.zkPath);
             String[] info = data.split(KVConstants.SPLIT_DELIM);
+            if(info.length <= KVConstants.ZNODE_REQUEST_RATES) {
+                info = Arrays.copyOf(info, KVConstants.ZNODE_REQUEST_RATES + 1);
+                for(int i = 0; i < info.length; i++) {
+                    if(info[i] == null) info[i] = KVConstants.ZERO_STRING;
+                }
+            }
             info[3] = getCurrentTimeString();
+            info[KVConstants.ZNODE_REQUEST_RATES] = server.rollRequestRates();
             data = String.join(KVConstants.DELIM, info);
             zkImplServer.updateData(this.zkPath, data);
         } catch (KeeperException e) {
@@ -6,11 +6,23 @@ public interface IKVCache {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        SEGMENTED,  // LRU segments locked independently, for many reader threads
+        TINYLFU     // LRU with frequency based admission, resists scans
     };
     
     public int getCacheSize();
 
+    /**
+     * @return  budget of the cache in bytes, 0 if sized by number of entries
+     */
+    public long getMaxBytes();
+
+    /**
+     * @return  estimated bytes taken by the cached entries
+     */
+    public long getUsedBytes();
+
     public CacheStrategy getStrategy();
 
     public void insert(String key, String value);
@@ -1,14 +1,35 @@
 package cache;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class KVCache implements IKVCache {
-    private static int cacheSize;
-    private static CacheStrategy strategy;
+    // Per instance, several servers and caches may share a JVM
+    private final int cacheSize;
+    private final CacheStrategy strategy;
+
+    // Heap taken by an entry besides its chars: the map entry, two Strings
+    // and their arrays
+    public static final int ENTRY_OVERHEAD = 96;
+    // "<n>" entries or "<n>B", "<n>KB", "<n>MB", "<n>GB" bytes
+    private static final Pattern SIZE = Pattern.compile("(\\d+)([KMG]?B)?", Pattern.CASE_INSENSITIVE);
+
+    private long maxBytes;      // 0 when sized by number of entries
 
     public KVCache(int cacheSize, String strategy){
-        KVCache.cacheSize = cacheSize;
-        KVCache.strategy = CacheStrategy.valueOf(strategy);
+        this(cacheSize, 0, strategy);
+    }
+
+    /**
+     * @param maxBytes  budget of the entries in bytes, see weigh, or 0 to
+     *                  hold cacheSize entries instead
+     */
+    public KVCache(int cacheSize, long maxBytes, String strategy){
+        this.cacheSize = cacheSize;
+        this.strategy = CacheStrategy.valueOf(strategy);
+        this.maxBytes = maxBytes;
     }
-    
+
     public static boolean isValidStrategy(String strategy) {
         for (CacheStrategy c : CacheStrategy.values()) {
             if (c.name().equals(strategy)) {
@@ -18,28 +39,109 @@ public class KVCache implements IKVCache {
         return false;
     }
 
+    public static boolean isValidSize(String size) {
+        return SIZE.matcher(size).matches();
+    }
+
+    /**
+     * @return  the budget in bytes of a size with a unit, -1 for a number
+     *          of entries
+     * @throws NumberFormatException if the size is not valid
+     */
+    public static long parseBytes(String size) {
+        Matcher m = SIZE.matcher(size);
+        if (!m.matches()) {
+            throw new NumberFormatException("Invalid cache size " + size);
+        }
+        if (m.group(2) == null) return -1;
+        long bytes = Long.parseLong(m.group(1));
+        switch (m.group(2).toUpperCase()) {
+            case "GB":
+                return bytes << 30;
+            case "MB":
+                return bytes << 20;
+            case "KB":
+                return bytes << 10;
+            default:
+                return bytes;
+        }
+    }
+
     public static KVCache createKVCache(int cacheSize, String strategy) {
+        return createKVCache(cacheSize, 0, strategy);
+    }
+
+    /**
+     * @param size  number of entries, or a budget with a unit such as "64MB"
+     * @throws NumberFormatException if the size is not valid
+     */
+    public static KVCache createKVCache(String size, String strategy) {
+        long bytes = parseBytes(size);
+        if (bytes < 0) {
+            return createKVCache(Integer.parseInt(size), 0, strategy);
+        }
+        return createKVCache(0, bytes, strategy);
+    }
+
+    private static KVCache createKVCache(int cacheSize, long maxBytes, String strategy) {
         //TODO add other types of cache
         switch(strategy) {
             case "FIFO":
-                return new KVCacheFIFO(cacheSize);
+                return new KVCacheFIFO(cacheSize, maxBytes);
             case "LRU":
-                return new KVCacheLRU(cacheSize);
+                return new KVCacheLRU(cacheSize, maxBytes);
             case "LFU":
-                return new KVCacheLFU(cacheSize);
+                return new KVCacheLFU(cacheSize, maxBytes,
+                        KVCacheLFU.defaultAgingPeriod(cacheSize, maxBytes));
+            case "SEGMENTED":
+                return new KVCacheSegmented(cacheSize, maxBytes);
+            case "TINYLFU":
+                return new KVCacheTinyLFU(cacheSize, maxBytes);
             default:
-                return new KVCacheFIFO(cacheSize);
+                return new KVCacheFIFO(cacheSize, maxBytes);
         }
     }
 
+    /**
+     * @return  estimate of the heap taken by a cached entry
+     */
+    public static long weigh(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
+    // Nothing can be cached
+    protected boolean isDisabled() {
+        return getCacheSize() == 0 && maxBytes == 0;
+    }
+
+    // An entry of this weight fits in an empty cache
+    protected boolean fits(long weight) {
+        return maxBytes == 0 || weight <= maxBytes;
+    }
+
+    // The cache holds more than its size or budget
+    protected boolean isOverBudget(int entries, long bytes) {
+        return (maxBytes > 0) ? bytes > maxBytes : entries > getCacheSize();
+    }
+
     @Override
     public CacheStrategy getStrategy(){
-        return KVCache.strategy;
+        return this.strategy;
     }
 
     @Override
     public int getCacheSize(){
-        return KVCache.cacheSize;
+        return this.cacheSize;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return 0;
     }
 
     @Override
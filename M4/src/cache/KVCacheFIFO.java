@@ -14,41 +14,53 @@ public class KVCacheFIFO extends KVCache {
     private LinkedList<String> fifo = new LinkedList<String>();
     private Map<String, String> kvp_map = new HashMap<String, String>();
 
+    private long usedBytes = 0;
+
     public KVCacheFIFO(int cacheSize) {
-        super(cacheSize, "FIFO");
+        this(cacheSize, 0);
+    }
+
+    public KVCacheFIFO(int cacheSize, long maxBytes) {
+        super(cacheSize, maxBytes, "FIFO");
     }
 
     @Override
     public synchronized void insert(String key, String value){
         if(value.equals("")) return;
         System.out.println("inserting into cache... " + key + " " + value);
-        if(this.getCacheSize() == 0) {
+        if(this.isDisabled()) {
             System.out.println("cache sizeis 0");
             return;
         }
+        long weight = weigh(key, value);
+        if (!fits(weight)) {
+            // never cached, but an older value must not stay
+            delete(key);
+            return;
+        }
 
         // check if it already exists
-        if (kvp_map.containsKey(key)) {
+        String old = kvp_map.put(key, value);
+        if (old != null) {
             //update the value
-            kvp_map.put(key, value);
-            return;
+            usedBytes += weight - weigh(key, old);
+        } else {
+            fifo.add(key);
+            usedBytes += weight;
         }
-            
-        // if it doesn't exist, cache it
+
         // if the cache is full, evict according to replacement policy
-        if(fifo.size() == this.getCacheSize()) {
+        while (isOverBudget(fifo.size(), usedBytes)) {
             //FIFO replacement
             String first = fifo.removeFirst();
-            kvp_map.remove(first);
+            usedBytes -= weigh(first, kvp_map.remove(first));
         }
-        fifo.add(key);
-        kvp_map.put(key, value);
     }
 
     @Override
     public synchronized void delete(String key) {
         if (kvp_map.containsKey(key)) {
-            kvp_map.remove(key);
+            usedBytes -= weigh(key, kvp_map.remove(key));
 
             if (fifo.contains(key))
                 fifo.remove(key);
@@ -71,6 +83,12 @@ public class KVCacheFIFO extends KVCache {
     public synchronized void clearCache(){
         fifo.clear(); 
         kvp_map.clear();
+        usedBytes = 0;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return usedBytes;
     }
 
     @Override
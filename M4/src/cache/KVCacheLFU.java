@@ -2,66 +2,211 @@ package cache;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
 
+/**
+ * O(1) LFU cache. Keys with the same use count share a bucket, and the
+ * buckets form a list ordered by count, so a hit moves its key to the next
+ * bucket and an eviction takes the oldest key of the first bucket without
+ * looking at the others.
+ *
+ * With aging on, every count is halved once the cache has seen agingPeriod
+ * uses, so keys that were hot a long time ago eventually lose to the ones
+ * that are hot now.
+ */
 public class KVCacheLFU extends KVCache {
 
-    private Map<String, String>  kvp_map = new HashMap<String, String>();
-    private Map<String, Integer> kfp_map = new HashMap<String, Integer>();
+    // Uses between two agings, as a multiple of the cache size
+    public static final int AGING_FACTOR = 16;
+    // Bytes of an entry to turn a byte budget into an aging period
+    static final int TYPICAL_ENTRY = 256;
+
+    private static class Entry {
+        String key;
+        String value;
+        Bucket bucket;
+        Entry prev, next;
+
+        Entry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // Keys used count times, least recently added first
+    private static class Bucket {
+        int count;
+        Entry head, tail;
+        Bucket prev, next;
+
+        Bucket(int count) {
+            this.count = count;
+        }
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            entry.prev = tail;
+            entry.next = null;
+            if (tail == null) head = entry;
+            else tail.next = entry;
+            tail = entry;
+        }
+
+        void remove(Entry entry) {
+            if (entry.prev == null) head = entry.next;
+            else entry.prev.next = entry.next;
+            if (entry.next == null) tail = entry.prev;
+            else entry.next.prev = entry.prev;
+            entry.prev = entry.next = null;
+        }
+
+        boolean isEmpty() {
+            return head == null;
+        }
+    }
+
+    private Map<String, Entry> kvp_map = new HashMap<String, Entry>();
+    private Bucket lowest;      // bucket of the least frequently used keys
+    private long agingPeriod;   // 0 disables aging
+    private long uses = 0;
+    private long usedBytes = 0;
 
     public KVCacheLFU(int cacheSize) {
-        super(cacheSize, "LFU");
+        this(cacheSize, defaultAgingPeriod(cacheSize, 0));
+    }
+
+    /**
+     * @param agingPeriod   uses after which all counts are halved, 0 never
+     */
+    public KVCacheLFU(int cacheSize, long agingPeriod) {
+        this(cacheSize, 0, agingPeriod);
+    }
+
+    /**
+     * @param maxBytes  budget in bytes instead of cacheSize entries, 0 none
+     */
+    public KVCacheLFU(int cacheSize, long maxBytes, long agingPeriod) {
+        super(cacheSize, maxBytes, "LFU");
+        this.agingPeriod = agingPeriod;
+    }
+
+    /**
+     * @return  default aging period, a byte budget is taken as entries of
+     *          TYPICAL_ENTRY bytes
+     */
+    static long defaultAgingPeriod(int cacheSize, long maxBytes) {
+        long entries = (maxBytes > 0) ? Math.max(1, maxBytes / TYPICAL_ENTRY) : cacheSize;
+        return AGING_FACTOR * entries;
+    }
+
+    // Insert a bucket for count after prev, or first if prev is null
+    private Bucket addBucket(Bucket prev, int count) {
+        Bucket bucket = new Bucket(count);
+        bucket.prev = prev;
+        bucket.next = (prev == null) ? lowest : prev.next;
+        if (bucket.next != null) bucket.next.prev = bucket;
+        if (prev == null) lowest = bucket;
+        else prev.next = bucket;
+        return bucket;
     }
 
-    private synchronized String findLFU(){
-        Iterator<Map.Entry<String,Integer>> map_it = kfp_map.entrySet().iterator();
+    private void removeBucket(Bucket bucket) {
+        if (bucket.prev == null) lowest = bucket.next;
+        else bucket.prev.next = bucket.next;
+        if (bucket.next != null) bucket.next.prev = bucket.prev;
+    }
 
-        //Iterate over the frequency hashmap, find the lowest value
-        Map.Entry<String, Integer> lfu = map_it.next();
-        while (map_it.hasNext()){
-            Map.Entry<String, Integer> next = map_it.next();
+    private void unlink(Entry entry) {
+        Bucket bucket = entry.bucket;
+        bucket.remove(entry);
+        if (bucket.isEmpty()) removeBucket(bucket);
+    }
 
-            if (next.getValue() < lfu.getValue()) {
-                lfu = next;
+    // Count one more use of the entry
+    private void use(Entry entry) {
+        Bucket bucket = entry.bucket;
+        Bucket next = bucket.next;
+        if (next == null || next.count != bucket.count + 1) {
+            next = addBucket(bucket, bucket.count + 1);
+        }
+        unlink(entry);
+        next.add(entry);
+        if (agingPeriod > 0 && ++uses >= agingPeriod) {
+            age();
+        }
+    }
+
+    // Halve every count, merging the buckets that end up with the same one
+    private void age() {
+        uses = 0;
+        for (Bucket bucket = lowest; bucket != null; bucket = bucket.next) {
+            bucket.count = Math.max(1, bucket.count / 2);
+        }
+        Bucket bucket = lowest;
+        while (bucket != null && bucket.next != null) {
+            Bucket next = bucket.next;
+            if (next.count != bucket.count) {
+                bucket = next;
+                continue;
+            }
+            // Keys of the busier bucket go last, they are evicted after
+            for (Entry entry = next.head; entry != null; ) {
+                Entry following = entry.next;
+                bucket.add(entry);
+                entry = following;
             }
+            removeBucket(next);
         }
-        return lfu.getKey();
     }
 
     @Override
     public synchronized void insert(String key, String value){
         if(value.equals("")) return;
-        if(this.getCacheSize() == 0) return;
+        if(this.isDisabled()) return;
+        long weight = weigh(key, value);
+        if (!fits(weight)) {
+            // never cached, but an older value must not stay
+            delete(key);
+            return;
+        }
         // check if it already exists
-        if (kvp_map.containsKey(key)) {
+        Entry entry = kvp_map.get(key);
+        if (entry != null) {
             //update the value
-            kvp_map.put(key, value);
-            kfp_map.put(key, kfp_map.get(key) + 1);
+            usedBytes += weight - weigh(key, entry.value);
+            entry.value = value;
+            use(entry);
+            evict(entry);
             return;
         }
-            
+
         // if it doesn't exist, cache it
-        // if the cache is full, evict according to replacement policy
-        if(kvp_map.size() == this.getCacheSize()) {
-            //LFU replacement            
-            String lfu = findLFU();
+        entry = new Entry(key, value);
+        Bucket first = (lowest != null && lowest.count == 1) ? lowest : addBucket(null, 1);
+        first.add(entry);
+        kvp_map.put(key, entry);
+        usedBytes += weight;
+        evict(entry);
+    }
 
-            kfp_map.remove(lfu);
-            kvp_map.remove(lfu);
+    // if the cache is full, evict according to replacement policy, sparing
+    // the entry just written
+    private void evict(Entry written) {
+        while (isOverBudget(kvp_map.size(), usedBytes)) {
+            //LFU replacement
+            Entry lfu = lowest.head;
+            if (lfu == written) lfu = (lfu.next != null) ? lfu.next : lowest.next.head;
+            unlink(lfu);
+            kvp_map.remove(lfu.key);
+            usedBytes -= weigh(lfu.key, lfu.value);
         }
-        kvp_map.put(key, value);
-        kfp_map.put(key, 1);
     }
 
     @Override
     public synchronized void delete(String key){
-        if( kvp_map.containsKey(key)) {
-            kvp_map.remove(key);
-        }
-        if( kfp_map.containsKey(key)) {
-            kfp_map.remove(key);
+        Entry entry = kvp_map.remove(key);
+        if (entry != null) {
+            unlink(entry);
+            usedBytes -= weigh(key, entry.value);
         }
     }
 
@@ -72,32 +217,40 @@ public class KVCacheLFU extends KVCache {
 
     @Override
     public synchronized String getValue(String key){
-        if(hasKey(key)) {
-            kfp_map.put(key, kfp_map.get(key) + 1);
-            return kvp_map.get(key);
-        }
-        return "";
+        Entry entry = kvp_map.get(key);
+        if (entry == null) return "";
+        use(entry);
+        return entry.value;
+    }
+
+    /**
+     * @return  use count of a cached key, 0 if it is not cached
+     */
+    public synchronized int getCount(String key) {
+        Entry entry = kvp_map.get(key);
+        return (entry == null) ? 0 : entry.bucket.count;
     }
 
     @Override
     public synchronized void clearCache(){
         kvp_map.clear();
-        kfp_map.clear();
+        lowest = null;
+        uses = 0;
+        usedBytes = 0;
     }
 
     @Override
-    public void print() {
-        System.out.println("LFU kvp: ");
-        Set<Entry<String,String>> kvp_set = kvp_map.entrySet();
-        for(Entry<String, String> entry: kvp_set) {
-            System.out.println("Key="+entry.getKey()+", Value="+entry.getValue());
-        }
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
 
-        System.out.println("LFU kfp: ");
-        Set<Entry<String,Integer>> kfp_set = kfp_map.entrySet();
-        for(Entry<String, Integer> entry: kfp_set) {
-            System.out.println("Key="+entry.getKey()+", Value="+entry.getValue());
+    @Override
+    public synchronized void print() {
+        System.out.println("LFU kvp, least frequently used first: ");
+        for (Bucket bucket = lowest; bucket != null; bucket = bucket.next) {
+            for (Entry entry = bucket.head; entry != null; entry = entry.next) {
+                System.out.println("Key=" + entry.key + ", Value=" + entry.value + ", Uses=" + bucket.count);
+            }
         }
     }
 }
-
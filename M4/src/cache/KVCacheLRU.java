@@ -1,53 +1,55 @@
 package cache;
 
-import java.util.LinkedList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.Set;
 
 public class KVCacheLRU extends KVCache {
-    // Using a linked list implementation of a queue
-    // Maintians FIFO order but allows random deletion
-    private LinkedList<String> fifo = new LinkedList<String>();
-    private Map<String, String> kvp_map = new HashMap<String, String>();
+    // Access ordered map: every get or put of a key moves it to the tail, so
+    // the head is always the least recently used key and every operation is O(1)
+    private LinkedHashMap<String, String> kvp_map;
 
+    private long usedBytes = 0;
 
     public KVCacheLRU(int cacheSize) {
-        super(cacheSize, "LRU");
+        this(cacheSize, 0);
+    }
+
+    public KVCacheLRU(int cacheSize, long maxBytes) {
+        super(cacheSize, maxBytes, "LRU");
+        kvp_map = new LinkedHashMap<String, String>(16, 0.75f, true);
     }
 
     @Override
     public synchronized void insert(String key, String value){
         if(value.equals("")) return;
-        if(this.getCacheSize() == 0) {
+        if(this.isDisabled()) {
             return;
         }
-        // check if it already exists
-        if (kvp_map.containsKey(key)) {
-            //update the key's position in the FIFO
-            fifo.remove(key);
+        long weight = weigh(key, value);
+        if (!fits(weight)) {
+            // never cached, but an older value must not stay
+            delete(key);
+            return;
         }
-            
-        // if it doesn't exist, cache it
-        // if the cache is full, evict according to replacement policy
-        if(fifo.size() == this.getCacheSize()) {
-            //LRU replacement
-            String first = fifo.removeFirst();
-            kvp_map.remove(first);
+        String old = kvp_map.put(key, value);
+        usedBytes += weight - ((old == null) ? 0 : weigh(key, old));
+        // LRU replacement from the head until the entries fit again, the key
+        // just put is at the tail
+        Iterator<Entry<String, String>> lru = kvp_map.entrySet().iterator();
+        while (isOverBudget(kvp_map.size(), usedBytes)) {
+            Entry<String, String> eldest = lru.next();
+            usedBytes -= weigh(eldest.getKey(), eldest.getValue());
+            lru.remove();
         }
-        fifo.add(key);
-        kvp_map.put(key, value);
     }
 
     @Override
     public synchronized void delete(String key) {
-        if( kvp_map.containsKey(key)) {
-            kvp_map.remove(key);
-
-            if( fifo.contains(key))
-                fifo.remove(key);
+        String old = kvp_map.remove(key);
+        if (old != null) {
+            usedBytes -= weigh(key, old);
         }
     }
 
@@ -58,29 +60,28 @@ public class KVCacheLRU extends KVCache {
 
     @Override
     public synchronized String getValue(String key){
-        if(hasKey(key))
-            return kvp_map.get(key);
-        return "";
+        // get counts as a use
+        String value = kvp_map.get(key);
+        return (value == null) ? "" : value;
     }
 
     @Override
     public synchronized void clearCache(){
-        fifo.clear(); 
         kvp_map.clear();
+        usedBytes = 0;
     }
 
     @Override
-    public void print(){
-        System.out.println("LRU queue: ");
-        Iterator<String> i = fifo.iterator();
-        while (i.hasNext()) {
-            System.out.println(i.next());
-        }
-        System.out.println("LRU kvp: ");
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized void print(){
+        System.out.println("LRU kvp, least recently used first: ");
         Set<Entry<String,String>> kvp_set = kvp_map.entrySet();
         for(Entry<String, String> entry: kvp_set) {
             System.out.println("Key="+entry.getKey()+", Value="+entry.getValue());
         }
     }
 }
-
@@ -0,0 +1,237 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache for the KVServer read path. Keys are spread over segments
+ * by hash and every segment is an LRU cache of its own with its own lock, so
+ * requests for keys of different segments never wait for each other. Each
+ * segment counts its hits, misses and evictions.
+ */
+public class KVCacheSegmented extends KVCache {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * Counters of one segment, a snapshot taken by getStats
+     */
+    public static class SegmentStats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int size;
+        public final long bytes;
+
+        SegmentStats(long hits, long misses, long evictions, int size, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final int capacity;
+        final long maxBytes;    // 0 when sized by capacity
+        long hits, misses, evictions, usedBytes;
+        final LinkedHashMap<String, String> entries =
+                new LinkedHashMap<String, String>(16, 0.75f, true);
+
+        Segment(int capacity, long maxBytes) {
+            this.capacity = capacity;
+            this.maxBytes = maxBytes;
+        }
+
+        boolean isOverBudget() {
+            return (maxBytes > 0) ? usedBytes > maxBytes : entries.size() > capacity;
+        }
+
+        void put(String key, String value) {
+            String old = entries.put(key, value);
+            usedBytes += weigh(key, value) - ((old == null) ? 0 : weigh(key, old));
+            // the key just put is the most recently used, it goes last
+            Iterator<Map.Entry<String, String>> lru = entries.entrySet().iterator();
+            while (isOverBudget()) {
+                Map.Entry<String, String> eldest = lru.next();
+                usedBytes -= weigh(eldest.getKey(), eldest.getValue());
+                lru.remove();
+                evictions++;
+            }
+        }
+
+        void remove(String key) {
+            String old = entries.remove(key);
+            if (old != null) usedBytes -= weigh(key, old);
+        }
+    }
+
+    // Least budget of a segment, smaller byte budgets get fewer segments
+    public static final long MIN_SEGMENT_BYTES = 4096;
+
+    private final Segment[] segments;
+
+    public KVCacheSegmented(int cacheSize) {
+        this(cacheSize, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * The size is split evenly over the segments, a cache smaller than the
+     * number of segments gets one segment per entry
+     */
+    public KVCacheSegmented(int cacheSize, int segments) {
+        this(cacheSize, 0, segments);
+    }
+
+    public KVCacheSegmented(int cacheSize, long maxBytes) {
+        this(cacheSize, maxBytes, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * A byte budget is split the same way, with at least MIN_SEGMENT_BYTES
+     * per segment
+     */
+    public KVCacheSegmented(int cacheSize, long maxBytes, int segments) {
+        super(cacheSize, maxBytes, "SEGMENTED");
+        long units = (maxBytes > 0) ? maxBytes / MIN_SEGMENT_BYTES : cacheSize;
+        int count = (int) Math.max(1, Math.min(segments, units));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // The first cacheSize % count segments take one more entry
+            int capacity = cacheSize / count + ((i < cacheSize % count) ? 1 : 0);
+            long bytes = maxBytes / count + ((i < maxBytes % count) ? 1 : 0);
+            this.segments[i] = new Segment(capacity, bytes);
+        }
+    }
+
+    private Segment segmentOf(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public void insert(String key, String value) {
+        if (value.equals("")) return;
+        if (this.isDisabled()) return;
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            if (segment.maxBytes > 0 && weigh(key, value) > segment.maxBytes) {
+                // never cached, but an older value must not stay
+                segment.remove(key);
+                return;
+            }
+            segment.put(key, value);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            segment.remove(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            return segment.entries.containsKey(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public String getValue(String key) {
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            String value = segment.entries.get(key);
+            if (value == null) {
+                segment.misses++;
+                return "";
+            }
+            segment.hits++;
+            return value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearCache() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.entries.clear();
+                segment.usedBytes = 0;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return  counters of every segment
+     */
+    public List<SegmentStats> getStats() {
+        List<SegmentStats> stats = new ArrayList<SegmentStats>(segments.length);
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                stats.add(new SegmentStats(segment.hits, segment.misses, segment.evictions,
+                        segment.entries.size(), segment.usedBytes));
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                used += segment.usedBytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public void print() {
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            segment.lock.lock();
+            try {
+                System.out.println("Segment " + i + " hits=" + segment.hits + " misses=" + segment.misses
+                        + " evictions=" + segment.evictions + ", least recently used first: ");
+                for (Entry<String, String> entry : segment.entries.entrySet()) {
+                    System.out.println("Key=" + entry.getKey() + ", Value=" + entry.getValue());
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+}
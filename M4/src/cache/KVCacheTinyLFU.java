@@ -0,0 +1,202 @@
+package cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * LRU cache behind a TinyLFU admission filter. Every lookup is counted in a
+ * small count-min sketch, and once the cache is full a new key only takes
+ * the place of the least recently used keys if it was looked up more often
+ * than each of them. A scan of cold keys is then counted once per key and
+ * never flushes the hot ones.
+ *
+ * The sketch halves its counters every SAMPLE_FACTOR lookups per entry, so
+ * keys that stop being used lose their weight. Unlike W-TinyLFU there is no
+ * admission window, a new key needs two lookups to beat a key used once.
+ */
+public class KVCacheTinyLFU extends KVCache {
+
+    // Lookups between two halvings of the sketch, as a multiple of the size
+    public static final int SAMPLE_FACTOR = 10;
+
+    /**
+     * Count-min sketch of 4 rows of 4 bit counters, 16 counters to a long
+     */
+    static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb2c5e6a9, 0x8f1bbcdb, 0xe3779b97};
+        private static final long HALF_MASK = 0x7777777777777777L;
+        private final long[] table;
+        private final int width;        // counters in a row, a power of two
+        private final long sampleSize;
+        private long additions = 0;
+
+        // Counters in a row for each entry, fewer collide more often
+        private static final int COUNTERS_PER_ENTRY = 4;
+
+        FrequencySketch(long entries) {
+            int w = 64;
+            while (w < COUNTERS_PER_ENTRY * entries && w < (1 << 26)) w <<= 1;
+            this.width = w;
+            this.table = new long[4 * w / 16];
+            this.sampleSize = SAMPLE_FACTOR * Math.max(entries, 1);
+        }
+
+        // Index of the counter of the key in a row
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= (h >>> 17);
+            return row * width + (h & (width - 1));
+        }
+
+        private int counter(int index) {
+            return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xf);
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                if (counter(index) < 15) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, counter(indexOf(hash, row)));
+            }
+            return frequency;
+        }
+
+        // Halve every counter
+        void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & HALF_MASK;
+            }
+            additions /= 2;
+        }
+
+        void clear() {
+            Arrays.fill(table, 0);
+            additions = 0;
+        }
+    }
+
+    // Access ordered, the head is the least recently used key
+    private LinkedHashMap<String, String> kvp_map = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long usedBytes = 0;
+    private long rejected = 0;
+
+    public KVCacheTinyLFU(int cacheSize) {
+        this(cacheSize, 0);
+    }
+
+    public KVCacheTinyLFU(int cacheSize, long maxBytes) {
+        super(cacheSize, maxBytes, "TINYLFU");
+        // a byte budget is taken as entries of a typical size
+        long entries = (maxBytes > 0) ? maxBytes / KVCacheLFU.TYPICAL_ENTRY : cacheSize;
+        this.sketch = new FrequencySketch(entries);
+    }
+
+    @Override
+    public synchronized void insert(String key, String value){
+        if(value.equals("")) return;
+        if(this.isDisabled()) return;
+        long weight = weigh(key, value);
+        if (!fits(weight)) {
+            // never cached, but an older value must not stay
+            delete(key);
+            return;
+        }
+        String old = kvp_map.get(key);
+        if (old == null && !admit(key, weight)) {
+            rejected++;
+            return;
+        }
+        kvp_map.put(key, value);
+        usedBytes += weight - ((old == null) ? 0 : weigh(key, old));
+        // the key just put is at the tail
+        Iterator<Entry<String, String>> lru = kvp_map.entrySet().iterator();
+        while (isOverBudget(kvp_map.size(), usedBytes)) {
+            Entry<String, String> eldest = lru.next();
+            usedBytes -= weigh(eldest.getKey(), eldest.getValue());
+            lru.remove();
+        }
+    }
+
+    // A new key is admitted if there is room, or if it is more frequent than
+    // every key that would be evicted to make room
+    private boolean admit(String key, long weight) {
+        int frequency = sketch.frequency(key);
+        int entries = kvp_map.size() + 1;
+        long bytes = usedBytes + weight;
+        Iterator<Entry<String, String>> lru = kvp_map.entrySet().iterator();
+        while (isOverBudget(entries, bytes)) {
+            Entry<String, String> victim = lru.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) return false;
+            entries--;
+            bytes -= weigh(victim.getKey(), victim.getValue());
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        String old = kvp_map.remove(key);
+        if (old != null) {
+            usedBytes -= weigh(key, old);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasKey(String key){
+        return kvp_map.containsKey(key);
+    }
+
+    @Override
+    public synchronized String getValue(String key){
+        // every lookup counts, hit or miss, inserts do not
+        sketch.increment(key);
+        String value = kvp_map.get(key);
+        return (value == null) ? "" : value;
+    }
+
+    /**
+     * @return  new keys not admitted since the cache was created
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized void clearCache(){
+        kvp_map.clear();
+        sketch.clear();
+        usedBytes = 0;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized void print(){
+        System.out.println("TinyLFU kvp, least recently used first: ");
+        Set<Entry<String,String>> kvp_set = kvp_map.entrySet();
+        for(Entry<String, String> entry: kvp_set) {
+            System.out.println("Key=" + entry.getKey() + ", Value=" + entry.getValue()
+                    + ", Frequency=" + sketch.frequency(entry.getKey()));
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package client;
 
+import java.util.Collection;
+import java.util.Map;
+
 import common.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -46,4 +49,21 @@ public interface KVCommInterface {
      */
 
     public KVMessage get(String key) throws Exception;
+
+    /**
+     * Inserts, updates or deletes (empty value) several data records, sending
+     * one batch per storage server.
+     * @param pairs the keys and the values indexed by them.
+     * @return the reply for every key.
+     * @throws Exception if the batches cannot be sent.
+     */
+    public Map<String, KVMessage> putAll(Map<String, String> pairs) throws Exception;
+
+    /**
+     * Retrieves several data records, sending one batch per storage server.
+     * @param keys the keys that identify the records.
+     * @return the reply for every key.
+     * @throws Exception if the batches cannot be sent.
+     */
+    public Map<String, KVMessage> getAll(Collection<String> keys) throws Exception;
 }
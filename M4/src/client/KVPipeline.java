@@ -0,0 +1,233 @@
+package client;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import common.KVConstants;
+import common.messages.BinaryMessage;
+import common.messages.BinaryMessageReader;
+import common.messages.TextMessage;
+
+/**
+ * Pipelined binary protocol connection to one KVServer. Requests are sent
+ * without waiting for the replies to the previous ones: a writer thread sends
+ * whatever has been queued with a single flush, and a reader thread completes
+ * the future of each reply. Replies are matched to requests by request id, so
+ * they may come back in any order.
+ */
+public class KVPipeline {
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Requests sent but not answered yet, callers block beyond this
+    private static final int MAX_IN_FLIGHT = 1024;
+
+    private String address;
+    private int port;
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private volatile boolean isOpen = false;
+    private int nextRequestId = 0;
+    private LinkedBlockingQueue<BinaryMessage> queue = new LinkedBlockingQueue<BinaryMessage>();
+    private Map<Integer, CompletableFuture<BinaryMessage>> pending =
+            new ConcurrentHashMap<Integer, CompletableFuture<BinaryMessage>>();
+    private Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+
+    public KVPipeline(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Connect and switch the connection to the binary protocol
+     * @throws IOException if the server cannot be reached or does not speak
+     *          the binary protocol
+     */
+    public void connect() throws IOException {
+        connect(0);
+    }
+
+    /**
+     * @param timeout   milliseconds to connect and switch protocol in, 0 to
+     *                  wait as long as it takes
+     */
+    public void connect(int timeout) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(address, port), timeout);
+        socket.setSoTimeout(timeout);
+        socket.setTcpNoDelay(true);
+        input = socket.getInputStream();
+        output = socket.getOutputStream();
+        // Connection ack, then the protocol reply
+        readLine();
+        output.write(new TextMessage("PROTOCOL" + KVConstants.DELIM + "BINARY"
+                + KVConstants.DELIM + BinaryMessage.VERSION).getMsgBytes());
+        output.flush();
+        String reply = readLine();
+        if (!reply.startsWith("PROTOCOL_BINARY")) {
+            socket.close();
+            throw new IOException("Server " + address + ":" + port + " does not support the binary protocol");
+        }
+        // replies may take any time once pipelined, callers bound their waits
+        socket.setSoTimeout(0);
+        isOpen = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }).start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }).start();
+        logger.info("Pipelined connection to " + address + ":" + port);
+    }
+
+    // Text messages end with LF CR, stop after the CR so no frame is consumed
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int read = input.read();
+        while (read != 13) {
+            if (read == -1) throw new IOException("Connection to " + address + ":" + port + " closed");
+            if (read > 31 && read < 127) line.append((char) read);
+            read = input.read();
+        }
+        return line.toString();
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Queue a request, blocking only if too many are in flight
+     * @return  future completed with the reply, or exceptionally if the
+     *          connection is lost first
+     */
+    public CompletableFuture<BinaryMessage> send(byte opcode, String key, String value) {
+        return send(opcode, (byte) 0, key, value);
+    }
+
+    public CompletableFuture<BinaryMessage> send(byte opcode, byte flags, String key, String value) {
+        CompletableFuture<BinaryMessage> future = new CompletableFuture<BinaryMessage>();
+        if (!isOpen) {
+            future.completeExceptionally(new IOException("Pipeline to " + address + ":" + port + " is closed"));
+            return future;
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        BinaryMessage request;
+        synchronized (this) {
+            request = new BinaryMessage(opcode, flags, nextRequestId++, key, value);
+        }
+        pending.put(request.getRequestId(), future);
+        queue.add(request);
+        // The connection may have been lost meanwhile
+        if (!isOpen && pending.remove(request.getRequestId()) != null) {
+            window.release();
+            future.completeExceptionally(new IOException("Pipeline to " + address + ":" + port + " is closed"));
+        }
+        return future;
+    }
+
+    private void write() {
+        OutputStream out = new BufferedOutputStream(output, BUFFER_SIZE);
+        List<BinaryMessage> batch = new ArrayList<BinaryMessage>();
+        try {
+            while (isOpen) {
+                BinaryMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch);
+                for (BinaryMessage request : batch) {
+                    request.writeTo(out);
+                }
+                out.flush();
+                logger.debug("Sent " + batch.size() + " pipelined requests to " + address + ":" + port);
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            logger.error("Unable to send to " + address + ":" + port + ": " + e);
+            fail(e);
+        }
+    }
+
+    private void read() {
+        BinaryMessageReader reader = new BinaryMessageReader(input);
+        try {
+            while (isOpen) {
+                BinaryMessage reply = reader.read();
+                CompletableFuture<BinaryMessage> future = pending.remove(reply.getRequestId());
+                if (future == null) {
+                    logger.error("Reply to unknown request " + reply);
+                    continue;
+                }
+                window.release();
+                future.complete(reply);
+            }
+        } catch (IOException e) {
+            if (isOpen) {
+                logger.error("Connection to " + address + ":" + port + " lost: " + e);
+            }
+            fail(e);
+        }
+    }
+
+    // Close the connection and fail every request still waiting for a reply
+    private void fail(Exception cause) {
+        isOpen = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error("Unable to close connection to " + address + ":" + port);
+        }
+        for (Integer requestId : new ArrayList<Integer>(pending.keySet())) {
+            CompletableFuture<BinaryMessage> future = pending.remove(requestId);
+            if (future != null) {
+                window.release();
+                future.completeExceptionally(cause);
+            }
+        }
+        queue.clear();
+    }
+
+    /**
+     * Close the connection, requests still in flight fail
+     */
+    public void close() {
+        if (isOpen) {
+            fail(new IOException("Pipeline to " + address + ":" + port + " closed"));
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package client;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import java.math.BigInteger;
 import java.net.Socket;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.LinkedList;
@@ -14,6 +18,9 @@ import java.util.List;
 import java.util.TreeMap;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
 import java.net.UnknownHostException;
 import java.io.IOException;
@@ -40,11 +47,24 @@ public class KVStore implements KVCommInterface {
     private TreeMap<Integer, ServerMetaData> pReplicas;
     private TreeMap<Integer, ServerMetaData> sReplicas;
     private Random rand;
+    // Binary protocol: requested by the caller, then negotiated per connection
+    private boolean binaryProtocol = false;
+    private boolean binary = false;
+    private BinaryMessageReader binaryReader;
+    private OutputStream binaryOutput;
+    private int nextRequestId = 0;
+    // Pipelined connections used by putAsync and getAsync, by address:port
+    private Map<String, KVPipeline> pipelines = new HashMap<String, KVPipeline>();
 
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
     private static final int MAX_KEY_LENGTH = 20; 
     private static final int MAX_VALUE_LENGTH = 122880; //120KB
+    // Times an async request follows SERVER_NOT_RESPONSIBLE to another server
+    private static final int MAX_ASYNC_RETRIES = 3;
+    // Batches are split once their keys and values reach this many chars
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+    private static final int BATCH_ENTRY_OVERHEAD = 32;
 
     /**
      * Initialize KVStore with address and port of KVServer
@@ -158,6 +178,44 @@ public class KVStore implements KVCommInterface {
         // Receive the connection ack message
         TextMessage reply = receiveMessage();
         logger.info(reply.getMsg());
+        if (binaryProtocol) {
+            negotiateBinaryProtocol();
+        }
+    }
+
+    /**
+     * Use the binary protocol on the connections made from now on, if the
+     * server supports it. Only meant for client requests, server to server
+     * messages keep using TextMessage.
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    private void negotiateBinaryProtocol() throws IOException {
+        sendMessage(new TextMessage("PROTOCOL" + KVConstants.DELIM + "BINARY" + KVConstants.DELIM + BinaryMessage.VERSION));
+        TextMessage reply = receiveMessage();
+        if (reply.getMsg().startsWith("PROTOCOL_BINARY")) {
+            this.binaryReader = new BinaryMessageReader(input);
+            this.binaryOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+            this.binary = true;
+        }
+        else {
+            logger.info("Server does not support the binary protocol, using text");
+        }
+    }
+
+    private BinaryMessage sendBinaryRequest(BinaryMessage request) throws IOException {
+        request.writeTo(binaryOutput);
+        binaryOutput.flush();
+        logger.debug("Send frame:\t " + request);
+        BinaryMessage reply = binaryReader.read();
+        logger.debug("Receive frame:\t " + reply);
+        return reply;
     }
 
     @Override
@@ -176,6 +234,7 @@ public class KVStore implements KVCommInterface {
     private void tearDownConnection() 
             throws IOException {
         setRunning(false);
+        this.binary = false;
         logger.info("Tearing down the connection ...");
         if (clientSocket != null) {
             input.close();
@@ -229,18 +288,26 @@ public class KVStore implements KVCommInterface {
         // that KVStore has and connect to it
         connectToResponsibleServer(key, KVConstants.PUT_CMD);
 
-        // step 3 - send a PUT request to the server
-        // Marshall the sending message
-        String msg = KVConstants.PUT_CMD + KVConstants.DELIM + key;
-        if (value != null && !value.equals("")) {
-            msg = msg + KVConstants.DELIM + value;
+        // step 3 - send a PUT request to the server and get its response
+        KVReplyMessage kvreply;
+        if (binary) {
+            BinaryMessage reply = sendBinaryRequest(
+                    new BinaryMessage(KVMessage.StatusType.PUT, nextRequestId++, key, value));
+            KVMessage.StatusType status = reply.getStatus();
+            kvreply = new KVReplyMessage(key, value, (status == null) ? KVMessage.StatusType.PUT_ERROR : status);
         }
-        TextMessage message = new TextMessage(msg);
-        sendMessage(message);
+        else {
+            // Marshall the sending message
+            String msg = KVConstants.PUT_CMD + KVConstants.DELIM + key;
+            if (value != null && !value.equals("")) {
+                msg = msg + KVConstants.DELIM + value;
+            }
+            TextMessage message = new TextMessage(msg);
+            sendMessage(message);
 
-        // step 3 - get the server's response and forward it to the client
-        TextMessage reply = receiveMessage();
-        KVReplyMessage kvreply = new KVReplyMessage(key, value, reply.getMsg());
+            TextMessage reply = receiveMessage();
+            kvreply = new KVReplyMessage(key, value, reply.getMsg());
+        }
         
         // step 4 - retry put if possible
         switch(kvreply.getStatus()){
@@ -264,6 +331,17 @@ public class KVStore implements KVCommInterface {
         }
 
         connectToResponsibleServer(key, KVConstants.GET_CMD);
+        if (binary) {
+            BinaryMessage reply = sendBinaryRequest(
+                    new BinaryMessage(KVMessage.StatusType.GET, nextRequestId++, key, null));
+            if (reply.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
+                return new KVReplyMessage(key, reply.getValue(), KVMessage.StatusType.GET_SUCCESS);
+            }
+            else if (reply.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                return retryRequest(key, null, KVConstants.GET_CMD);
+            }
+            return new KVReplyMessage(key, null, KVMessage.StatusType.GET_ERROR);
+        }
         // step 2 - send a PUT request to the server
         TextMessage message = new TextMessage(KVConstants.GET_CMD + KVConstants.DELIM + key);
         sendMessage(message);
@@ -292,6 +370,249 @@ public class KVStore implements KVCommInterface {
         }
     }
 
+    /**
+     * Pipelined put: the request is sent without waiting for the replies to
+     * earlier requests, so a caller can issue many and wait for them at the
+     * end. Uses binary protocol connections of its own, one per server, that
+     * are kept open until closePipelines.
+     *
+     * @return  future completed with the reply, or exceptionally if the
+     *          connection to the server is lost
+     */
+    public CompletableFuture<KVMessage> putAsync(String key, String value) {
+        return putAsync(key, value, null);
+    }
+
+    /**
+     * Pipelined put acked once it reached the given number of copies
+     * @param ack   ack level of this put, null for the server default
+     */
+    public CompletableFuture<KVMessage> putAsync(String key, String value, KVMessage.AckLevel ack) {
+        if (!errorCheck(key, value)) {
+            return CompletableFuture.completedFuture((KVMessage) new KVReplyMessage(key, value, KVMessage.StatusType.PUT_ERROR));
+        }
+        return sendAsync(KVMessage.StatusType.PUT, BinaryMessage.flagsOf(ack), key, value, MAX_ASYNC_RETRIES);
+    }
+
+    /**
+     * Pipelined get, see putAsync
+     */
+    public CompletableFuture<KVMessage> getAsync(String key) {
+        if (!errorCheck(key, "")) {
+            return CompletableFuture.completedFuture((KVMessage) new KVReplyMessage(key, null, KVMessage.StatusType.GET_ERROR));
+        }
+        return sendAsync(KVMessage.StatusType.GET, (byte) 0, key, null, MAX_ASYNC_RETRIES);
+    }
+
+    /**
+     * Close the connections of putAsync and getAsync, requests still in
+     * flight fail
+     */
+    public synchronized void closePipelines() {
+        for (KVPipeline pipeline : pipelines.values()) {
+            pipeline.close();
+        }
+        pipelines.clear();
+    }
+
+    private CompletableFuture<KVMessage> sendAsync(final KVMessage.StatusType command, final byte flags,
+            final String key, final String value, final int retries) {
+        final KVPipeline pipeline;
+        try {
+            pipeline = getPipeline(key);
+        } catch (IOException e) {
+            CompletableFuture<KVMessage> failed = new CompletableFuture<KVMessage>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        // Follow-up work runs off the reader thread of the pipeline
+        return pipeline.send(BinaryMessage.opcodeOf(command), flags, key, value).thenComposeAsync(
+                new Function<BinaryMessage, CompletionStage<KVMessage>>() {
+            @Override
+            public CompletionStage<KVMessage> apply(BinaryMessage reply) {
+                if (reply.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE && retries > 0) {
+                    logger.debug("SERVER is not responsible for " + key + ", fetching metadata");
+                    return fetchMetaDataAsync(pipeline).thenComposeAsync(
+                            new Function<Void, CompletionStage<KVMessage>>() {
+                        @Override
+                        public CompletionStage<KVMessage> apply(Void ignored) {
+                            return sendAsync(command, flags, key, value, retries - 1);
+                        }
+                    });
+                }
+                return CompletableFuture.completedFuture(
+                        asyncReply(command, key, value, reply.getStatus(), reply.getValue()));
+            }
+        });
+    }
+
+    // Reply handed to the caller, mapped the same way as by put and get
+    private KVMessage asyncReply(KVMessage.StatusType command, String key, String value,
+            KVMessage.StatusType status, String replyValue) {
+        if (command == KVMessage.StatusType.PUT) {
+            return new KVReplyMessage(key, value, (status == null) ? KVMessage.StatusType.PUT_ERROR : status);
+        }
+        if (status == KVMessage.StatusType.GET_SUCCESS) {
+            return new KVReplyMessage(key, replyValue, status);
+        }
+        return new KVReplyMessage(key, null, KVMessage.StatusType.GET_ERROR);
+    }
+
+    private CompletableFuture<Void> fetchMetaDataAsync(KVPipeline pipeline) {
+        return pipeline.send(BinaryMessage.OP_GET_METADATA, null, null).thenApply(
+                new Function<BinaryMessage, Void>() {
+            @Override
+            public Void apply(BinaryMessage reply) {
+                if (reply.getOpcode() == BinaryMessage.OP_METADATA) {
+                    synchronized (KVStore.this) {
+                        updateMetaData(reply.getKey());
+                        if (!reply.getValue().equals("REPLICA_FETCH_ERROR")) {
+                            updateReplicaInformation(reply.getValue());
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private synchronized ServerMetaData getCoordinator(String key) throws IOException {
+        ServerMetaData coordinator = ringNetwork.get(getResponsibleServer(key));
+        if (coordinator == null) {
+            throw new IOException("No server responsible for " + key);
+        }
+        return coordinator;
+    }
+
+    // Pipeline to the coordinator of the key, connected on first use
+    private KVPipeline getPipeline(String key) throws IOException {
+        return getPipeline(getCoordinator(key));
+    }
+
+    private synchronized KVPipeline getPipeline(ServerMetaData coordinator) throws IOException {
+        String name = coordinator.getServerAddr() + KVConstants.HASH_DELIM + coordinator.getServerPort();
+        KVPipeline pipeline = pipelines.get(name);
+        if (pipeline == null || !pipeline.isOpen()) {
+            pipeline = new KVPipeline(coordinator.getServerAddr(), coordinator.getServerPort());
+            pipeline.connect();
+            pipelines.put(name, pipeline);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Put every pair, an empty value deletes the key. Keys are grouped by
+     * responsible server and sent as one batch message per server, all
+     * servers at once, over the connections of putAsync.
+     *
+     * @return  reply for every key, in the order of the map
+     */
+    @Override
+    public Map<String, KVMessage> putAll(Map<String, String> pairs) throws Exception {
+        List<KVMessage> requests = new ArrayList<KVMessage>(pairs.size());
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            requests.add(new KVReplyMessage(pair.getKey(), pair.getValue(), KVMessage.StatusType.PUT));
+        }
+        return sendBatches(requests);
+    }
+
+    /**
+     * Get every key, batched as in putAll
+     * @return  reply for every key, in the order of the collection
+     */
+    @Override
+    public Map<String, KVMessage> getAll(Collection<String> keys) throws Exception {
+        List<KVMessage> requests = new ArrayList<KVMessage>(keys.size());
+        for (String key : keys) {
+            requests.add(new KVReplyMessage(key, null, KVMessage.StatusType.GET));
+        }
+        return sendBatches(requests);
+    }
+
+    private Map<String, KVMessage> sendBatches(List<KVMessage> requests) throws Exception {
+        Map<String, KVMessage> replies = new LinkedHashMap<String, KVMessage>();
+        List<KVMessage> toSend = new ArrayList<KVMessage>();
+        for (KVMessage request : requests) {
+            String value = (request.getValue() == null) ? "" : request.getValue();
+            if (errorCheck(request.getKey(), value)) {
+                replies.put(request.getKey(), null);
+                toSend.add(request);
+            }
+            else {
+                KVMessage.StatusType error = (request.getStatus() == KVMessage.StatusType.PUT)
+                        ? KVMessage.StatusType.PUT_ERROR : KVMessage.StatusType.GET_ERROR;
+                replies.put(request.getKey(), new KVReplyMessage(request.getKey(), request.getValue(), error));
+            }
+        }
+
+        for (int attempt = 0; !toSend.isEmpty(); attempt++) {
+            // One batch per server, split further to keep frames small. The
+            // ranges of a server with virtual nodes share its connection
+            Map<KVPipeline, List<KVMessage>> byServer = new LinkedHashMap<KVPipeline, List<KVMessage>>();
+            for (KVMessage request : toSend) {
+                KVPipeline coordinator = getPipeline(request.getKey());
+                List<KVMessage> group = byServer.get(coordinator);
+                if (group == null) {
+                    group = new ArrayList<KVMessage>();
+                    byServer.put(coordinator, group);
+                }
+                group.add(request);
+            }
+            List<KVPipeline> batchPipelines = new ArrayList<KVPipeline>();
+            List<List<KVMessage>> batches = new ArrayList<List<KVMessage>>();
+            List<CompletableFuture<BinaryMessage>> futures = new ArrayList<CompletableFuture<BinaryMessage>>();
+            for (Map.Entry<KVPipeline, List<KVMessage>> group : byServer.entrySet()) {
+                KVPipeline pipeline = group.getKey();
+                List<KVMessage> batch = new ArrayList<KVMessage>();
+                int batchBytes = 0;
+                for (KVMessage request : group.getValue()) {
+                    int bytes = request.getKey().length()
+                            + ((request.getValue() == null) ? 0 : request.getValue().length()) + BATCH_ENTRY_OVERHEAD;
+                    if (!batch.isEmpty() && batchBytes + bytes > MAX_BATCH_BYTES) {
+                        batchPipelines.add(pipeline);
+                        batches.add(batch);
+                        futures.add(pipeline.send(BinaryMessage.OP_BATCH, null, KVBatch.encode(batch)));
+                        batch = new ArrayList<KVMessage>();
+                        batchBytes = 0;
+                    }
+                    batch.add(request);
+                    batchBytes += bytes;
+                }
+                batchPipelines.add(pipeline);
+                batches.add(batch);
+                futures.add(pipeline.send(BinaryMessage.OP_BATCH, null, KVBatch.encode(batch)));
+            }
+
+            List<KVMessage> retry = new ArrayList<KVMessage>();
+            KVPipeline notResponsible = null;
+            for (int i = 0; i < batches.size(); i++) {
+                List<KVMessage> batch = batches.get(i);
+                List<KVMessage> results = KVBatch.decode(futures.get(i).get().getValue());
+                if (results.size() != batch.size()) {
+                    throw new IOException("Batch reply of " + results.size() + " entries to "
+                            + batch.size() + " requests");
+                }
+                for (int j = 0; j < batch.size(); j++) {
+                    KVMessage request = batch.get(j);
+                    KVMessage.StatusType status = results.get(j).getStatus();
+                    if (status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE && attempt < MAX_ASYNC_RETRIES) {
+                        retry.add(request);
+                        notResponsible = batchPipelines.get(i);
+                        continue;
+                    }
+                    replies.put(request.getKey(), asyncReply(request.getStatus(), request.getKey(),
+                            request.getValue(), status, results.get(j).getValue()));
+                }
+            }
+            if (notResponsible != null) {
+                logger.debug(retry.size() + " keys sent to a server not responsible, fetching metadata");
+                fetchMetaDataAsync(notResponsible).get();
+            }
+            toSend = retry;
+        }
+        return replies;
+    }
+
     private void debugPrint(String m) {
         System.out.println("DEBUG KVSTORE: " + m);
     }
@@ -303,6 +624,18 @@ public class KVStore implements KVCommInterface {
         String status = (value == null) ? "DELETE_ERROR" : "PUT_ERROR";
         status = (request.equals(KVConstants.GET_CMD)) ? "GET_ERROR" : status;
 
+        if (binary) {
+            BinaryMessage reply = sendBinaryRequest(
+                    new BinaryMessage(BinaryMessage.OP_GET_METADATA, nextRequestId++, null, null));
+            if (reply.getOpcode() != BinaryMessage.OP_METADATA) {
+                return new KVReplyMessage(key, value, status);
+            }
+            updateMetaData(reply.getKey());
+            if (!reply.getValue().equals("REPLICA_FETCH_ERROR")) {
+                updateReplicaInformation(reply.getValue());
+            }
+            return (request.equals(KVConstants.PUT_CMD)) ? put(key, value) : get(key);
+        }
         sendMessage(new TextMessage("GET_METADATA"));
         TextMessage reply = receiveMessage();
         if(reply.getMsg().equals("METADATA_FETCH_ERROR")) {
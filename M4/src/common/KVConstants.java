@@ -26,7 +26,50 @@ public class KVConstants {
     public static final String COORDINATOR = "COORDINATOR";
     public static final String SERVER = "SERVER_";
     public static final double MIN_STDEV = 1.6;
+    // Load reports, keys sampled and cut points per range of a server
+    public static final int LOAD_SAMPLE = 4096;
+    public static final int LOAD_CUTS = 128;
+    // Servers sending keys at once while the load is balanced
+    public static final int BALANCE_PARALLEL_MOVES = 2;
+    // Hot spots: a server serving HOT_SPOT_FACTOR times the average request
+    // rate, once the ring serves HOT_SPOT_MIN_RATE requests per second
+    public static final double HOT_SPOT_FACTOR = 1.5;
+    public static final double HOT_SPOT_MIN_RATE = 50;
+    // Weight of the request rate share of a range against its key share
+    public static final double BALANCE_REQUEST_WEIGHT = 2;
+    public static final String STORAGE_STRATEGY = "SEGMENTED";
+    // Data files of a SEGMENTED storage, a power of two
+    public static final int STORAGE_SEGMENTS = 64;
+    public static final String STORAGE_READ_MODE = "CHANNEL";
+    // Server config and storage compaction
+    public static final String SERVER_CONFIG = "kvserver.config";
+    public static final double COMPACTION_RATIO = 0.5;
+    public static final long COMPACTION_MIN_SIZE = 4096;
+    public static final long COMPACTION_INTERVAL = 1000;
+    // Group commit of storage writes
+    public static final String FSYNC_POLICY = "INTERVAL";
+    public static final long FSYNC_INTERVAL = 100;
+    // Server front end
+    public static final String SERVER_MODE = "THREADED";
+    public static final int NIO_EVENT_LOOPS = 2;
+    public static final int NIO_WORKERS = 8;
+    public static final int NIO_QUEUE_SIZE = 1024;
+    // Replication
+    public static final String REPLICATION_ACK = "ALL";
+    // Milliseconds a write waits for the acks of its replicas
+    public static final long REPLICATION_TIMEOUT = 5000;
+    // Stripes of the per key write locks
+    public static final int LOCK_STRIPES = 1024;
+    // Cache of the keys served from the replica storages, off by default
+    public static final String REPLICA_CACHE_SIZE = "0";
+    // Startup recovery
+    public static final long RECOVERY_PROGRESS_INTERVAL = 500;
+    public static final int ZNODE_INDEX_PROGRESS = 6;  // znode field holding index progress in percent
+    public static final int ZNODE_REQUEST_RATES = 7;   // znode field holding the request rates of the ranges
     // Consistent Hashing
     public static final BigInteger MIN_HASH = new BigInteger("00000000000000000000000000000000", 16);
     public static final BigInteger MAX_HASH = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16);
+    // Ring positions per server, token i > 0 is at md5(host:port#i)
+    public static final int VIRTUAL_NODES = 1;
+    public static final String TOKEN_DELIM = "#";
 } 
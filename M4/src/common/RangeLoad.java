@@ -0,0 +1,111 @@
+package common;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load of one range of a server as it reports it to the ECS: the keys of the
+ * range, their bytes and the requests per second made for them, with cut
+ * points to move a boundary of the range by a share of that load.
+ *
+ * Each cut is the hash of a key of the range with the number of keys and the
+ * requests per second of the range hashed below it, counted from the begin
+ * of the range. A range holding few keys has a cut per key, larger ones are
+ * cut at sampled keys. Marshalled as
+ * endHash|keys|bytes|requests|hash|keys|requests|hash|keys|requests...
+ */
+public class RangeLoad {
+
+    public static final BigInteger RING = KVConstants.MAX_HASH.add(BigInteger.ONE);
+    private static final int FIELDS = 4;
+    private static final int CUT_FIELDS = 3;
+
+    public final BigInteger endHash;
+    public final long keys;
+    public final long bytes;
+    public final double requests;
+    private final List<BigInteger> cutHashes;
+    private final List<Long> cutKeys;
+    private final List<Double> cutRequests;
+
+    public RangeLoad(BigInteger endHash, long keys, long bytes, double requests,
+            List<BigInteger> cutHashes, List<Long> cutKeys, List<Double> cutRequests) {
+        this.endHash = endHash;
+        this.keys = keys;
+        this.bytes = bytes;
+        this.requests = requests;
+        this.cutHashes = cutHashes;
+        this.cutKeys = cutKeys;
+        this.cutRequests = cutRequests;
+    }
+
+    public RangeLoad(String dataStr) {
+        String[] data = dataStr.split(KVConstants.SPLIT_DELIM);
+        this.endHash = new BigInteger(data[0], 16);
+        this.keys = Long.parseLong(data[1]);
+        this.bytes = Long.parseLong(data[2]);
+        this.requests = Double.parseDouble(data[3]);
+        this.cutHashes = new ArrayList<BigInteger>();
+        this.cutKeys = new ArrayList<Long>();
+        this.cutRequests = new ArrayList<Double>();
+        for (int i = FIELDS; i + CUT_FIELDS <= data.length; i += CUT_FIELDS) {
+            cutHashes.add(new BigInteger(data[i], 16));
+            cutKeys.add(Long.parseLong(data[i + 1]));
+            cutRequests.add(Double.parseDouble(data[i + 2]));
+        }
+    }
+
+    public String marshal() {
+        StringBuilder data = new StringBuilder();
+        data.append(endHash.toString(16)).append(KVConstants.DELIM).append(keys)
+                .append(KVConstants.DELIM).append(bytes).append(KVConstants.DELIM).append(requests);
+        for (int i = 0; i < cutHashes.size(); i++) {
+            data.append(KVConstants.DELIM).append(cutHashes.get(i).toString(16))
+                    .append(KVConstants.DELIM).append(cutKeys.get(i))
+                    .append(KVConstants.DELIM).append(cutRequests.get(i));
+        }
+        return data.toString();
+    }
+
+    public int cuts() {
+        return cutHashes.size();
+    }
+
+    public BigInteger cutHash(int cut) {
+        return cutHashes.get(cut);
+    }
+
+    /**
+     * @return  keys of the range hashed below the cut
+     */
+    public long keysBelow(int cut) {
+        return cutKeys.get(cut);
+    }
+
+    /**
+     * @return  requests per second for the keys of the range hashed below the cut
+     */
+    public double requestsBelow(int cut) {
+        return cutRequests.get(cut);
+    }
+
+    /**
+     * @return  distance of the hash from begin going up the ring
+     */
+    public static BigInteger offset(BigInteger hash, BigInteger begin) {
+        return hash.subtract(begin).mod(RING);
+    }
+
+    /**
+     * @return  number of hashes in [begin, end), the whole ring when end == begin
+     */
+    public static BigInteger size(BigInteger begin, BigInteger end) {
+        BigInteger size = offset(end, begin);
+        return size.signum() == 0 ? RING : size;
+    }
+
+    public static boolean contains(BigInteger begin, BigInteger end, BigInteger hash) {
+        return offset(hash, begin).compareTo(size(begin, end)) < 0;
+    }
+}
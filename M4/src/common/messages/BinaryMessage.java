@@ -0,0 +1,200 @@
+package common.messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import common.messages.KVMessage.AckLevel;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Frame of the binary protocol, negotiated on a connection in place of
+ * TextMessage. Every frame is a fixed header followed by the raw UTF-8 bytes
+ * of the key and of the value, so values are carried byte for byte and never
+ * have to be split on a delimiter.
+ *
+ *  magic (2) | version (1) | opcode (1) | flags (1) | request id (4) |
+ *  key length (4) | value length (4) | key | value
+ *
+ * KV requests and replies use the ordinal of their KVMessage.StatusType as
+ * opcode, the other opcodes are listed below. Batches of requests carry a
+ * KVBatch as value.
+ */
+public class BinaryMessage {
+
+    public static final short MAGIC = 0x4B56;  // "KV"
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 17;
+    // Largest payload accepted, room for a batch of about 1MB
+    public static final int MAX_PAYLOAD = 4 * 1024 * 1024;
+    // Opcodes that are not a KVMessage.StatusType
+    public static final byte OP_GET_METADATA = 64;      // request, no key or value
+    public static final byte OP_METADATA = 65;          // reply, key = metadata, value = replicas
+    public static final byte OP_METADATA_ERROR = 66;    // reply, metadata could not be read
+    public static final byte OP_BATCH = 67;             // request, value = KVBatch of PUT and GET
+    public static final byte OP_BATCH_REPLY = 68;       // reply, value = KVBatch of replies in order
+    public static final byte OP_REPLICA_BATCH = 69;     // request, key = replica role, value = KVBatch of PUT
+    // Range transfer between servers, see RangeSender. Requests carry
+    // "<destination>|<transfer id>" as key, chunks add "|<seq>|<crc32>" and
+    // the end adds "|<chunks>"
+    public static final byte OP_MOVE_BEGIN = 70;        // request, reply value = next chunk expected
+    public static final byte OP_MOVE_CHUNK = 71;        // request, value = KVBatch of PUT
+    public static final byte OP_MOVE_END = 72;          // request, all chunks sent
+    public static final byte OP_MOVE_REPLY = 73;        // reply, key = result, value = next chunk expected
+    // Flags of PUT and OP_BATCH requests, the low bits hold the AckLevel
+    // ordinal plus one, or 0 to leave the ack level to the server
+    public static final byte FLAG_ACK_MASK = 0x03;
+
+    private byte opcode;
+    private byte flags;
+    private int requestId;
+    private String key;
+    private String value;
+
+    public BinaryMessage(byte opcode, int requestId, String key, String value) {
+        this(opcode, (byte) 0, requestId, key, value);
+    }
+
+    public BinaryMessage(StatusType status, int requestId, String key, String value) {
+        this(opcodeOf(status), requestId, key, value);
+    }
+
+    public BinaryMessage(byte opcode, byte flags, int requestId, String key, String value) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.key = (key == null) ? "" : key;
+        this.value = (value == null) ? "" : value;
+    }
+
+    public static byte opcodeOf(StatusType status) {
+        return (byte) status.ordinal();
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return  status of a KV request or reply, null for the other opcodes
+     */
+    public StatusType getStatus() {
+        StatusType[] types = StatusType.values();
+        return (opcode >= 0 && opcode < types.length) ? types[opcode] : null;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public void setFlags(byte flags) {
+        this.flags = flags;
+    }
+
+    public static byte flagsOf(AckLevel ack) {
+        return (ack == null) ? 0 : (byte) (ack.ordinal() + 1);
+    }
+
+    /**
+     * @return  ack level asked for by a PUT or batch request, null if the
+     *          server default applies
+     */
+    public AckLevel getAckLevel() {
+        int ack = flags & FLAG_ACK_MASK;
+        return (ack == 0) ? null : AckLevel.values()[ack - 1];
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Write the frame with a single call, the stream is flushed by the caller
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+
+    /**
+     * @return  the whole frame, header included
+     */
+    public byte[] toBytes() {
+        byte[] key = this.key.getBytes(StandardCharsets.UTF_8);
+        byte[] value = this.value.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER_SIZE + key.length + value.length];
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        buf.putShort(MAGIC);
+        buf.put(VERSION);
+        buf.put(opcode);
+        buf.put(flags);
+        buf.putInt(requestId);
+        buf.putInt(key.length);
+        buf.putInt(value.length);
+        buf.put(key);
+        buf.put(value);
+        return frame;
+    }
+
+    /**
+     * Decode the frame at the position of a buffer that is filled
+     * incrementally, as by a non-blocking channel. The position is only
+     * moved past the frame once all of it has arrived.
+     *
+     * @return  the frame, null if it is not complete yet
+     * @throws IOException if the frame is malformed
+     */
+    public static BinaryMessage decode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buf.position();
+        short magic = buf.getShort(start);
+        byte version = buf.get(start + 2);
+        checkHeader(magic, version);
+        int keyLength = buf.getInt(start + 9);
+        int valueLength = buf.getInt(start + 13);
+        checkLengths(keyLength, valueLength);
+        if (buf.remaining() < HEADER_SIZE + keyLength + valueLength) {
+            return null;
+        }
+        byte opcode = buf.get(start + 3);
+        byte flags = buf.get(start + 4);
+        int requestId = buf.getInt(start + 5);
+        byte[] key = new byte[keyLength];
+        byte[] value = new byte[valueLength];
+        buf.position(start + HEADER_SIZE);
+        buf.get(key);
+        buf.get(value);
+        return new BinaryMessage(opcode, flags, requestId,
+                new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+    }
+
+    static void checkHeader(short magic, byte version) throws IOException {
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Invalid frame header, magic " + magic + " version " + version);
+        }
+    }
+
+    static void checkLengths(int keyLength, int valueLength) throws IOException {
+        // added as longs, two large lengths would wrap around as ints
+        if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame lengths " + keyLength + " / " + valueLength);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StatusType status = getStatus();
+        return "#" + requestId + " " + ((status == null) ? Byte.toString(opcode) : status.name())
+                + " <" + key + "> (" + value.length() + " chars)";
+    }
+}
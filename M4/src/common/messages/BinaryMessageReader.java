@@ -0,0 +1,57 @@
+package common.messages;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads BinaryMessage frames from a stream. Headers and payloads are read in
+ * bulk through a buffered stream into buffers that are reused across frames.
+ */
+public class BinaryMessageReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DataInputStream input;
+    private byte[] header = new byte[BinaryMessage.HEADER_SIZE];
+    private byte[] payload = new byte[BUFFER_SIZE];
+
+    public BinaryMessageReader(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+    }
+
+    /**
+     * @return  the next frame
+     * @throws EOFException if the stream ended
+     * @throws IOException if the frame is malformed
+     */
+    public BinaryMessage read() throws IOException {
+        input.readFully(header);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        short magic = buf.getShort();
+        byte version = buf.get();
+        BinaryMessage.checkHeader(magic, version);
+        byte opcode = buf.get();
+        byte flags = buf.get();
+        int requestId = buf.getInt();
+        int keyLength = buf.getInt();
+        int valueLength = buf.getInt();
+        BinaryMessage.checkLengths(keyLength, valueLength);
+        int length = keyLength + valueLength;
+        if (length > payload.length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        input.readFully(payload, 0, length);
+        return new BinaryMessage(opcode, flags, requestId,
+                new String(payload, 0, keyLength, StandardCharsets.UTF_8),
+                new String(payload, keyLength, valueLength, StandardCharsets.UTF_8));
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,72 @@
+package common.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Payload of the binary protocol batch frames, a list of KVMessages. Every
+ * message is encoded as its status, key and value, each prefixed by its
+ * length in chars ("3:PUT1:a5:hello"), so keys and values may hold any
+ * character, delimiters included.
+ */
+public class KVBatch {
+
+    private static final char LENGTH_DELIM = ':';
+
+    public static String encode(List<? extends KVMessage> messages) {
+        StringBuilder batch = new StringBuilder();
+        for (KVMessage message : messages) {
+            appendField(batch, message.getStatus().name());
+            appendField(batch, message.getKey());
+            appendField(batch, message.getValue());
+        }
+        return batch.toString();
+    }
+
+    private static void appendField(StringBuilder batch, String field) {
+        if (field == null) field = "";
+        batch.append(field.length()).append(LENGTH_DELIM).append(field);
+    }
+
+    /**
+     * @throws IOException if the batch is malformed
+     */
+    public static List<KVMessage> decode(String batch) throws IOException {
+        List<KVMessage> messages = new ArrayList<KVMessage>();
+        int[] position = new int[] {0};
+        while (position[0] < batch.length()) {
+            String status = readField(batch, position);
+            String key = readField(batch, position);
+            String value = readField(batch, position);
+            try {
+                messages.add(new KVReplyMessage(key, value, StatusType.valueOf(status)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid status in batch: " + status);
+            }
+        }
+        return messages;
+    }
+
+    private static String readField(String batch, int[] position) throws IOException {
+        int delim = batch.indexOf(LENGTH_DELIM, position[0]);
+        if (delim < 0) {
+            throw new IOException("Truncated batch at " + position[0]);
+        }
+        int length;
+        try {
+            length = Integer.parseInt(batch.substring(position[0], delim));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid field length in batch at " + position[0]);
+        }
+        // compared before adding, a large length would overflow the end
+        if (length < 0 || length > batch.length() - delim - 1) {
+            throw new IOException("Truncated batch at " + position[0]);
+        }
+        int end = delim + 1 + length;
+        position[0] = end;
+        return batch.substring(delim + 1, end);
+    }
+}
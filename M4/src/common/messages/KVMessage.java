@@ -17,6 +17,12 @@ public interface KVMessage {
         SERVER_NOT_RESPONSIBLE  /* Request not successful, server not responsible for key */
     }
 
+    public static enum AckLevel {
+        LOCAL,  /* Put - acked once written by the coordinator */
+        ONE,    /* Put - acked once one replica has it too */
+        ALL     /* Put - acked once every replica has it */
+    }
+
     /**
      * @return the key that is associated with this message, 
      *      null if not key is associated.
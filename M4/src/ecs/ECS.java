@@ -2,19 +2,16 @@ package ecs;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.Map;
 import java.util.HashMap;
 import java.math.BigInteger;
 import java.net.Socket;
-import java.util.Iterator;
 import java.io.IOException;
 import java.lang.InterruptedException;
 import java.net.SocketException;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.File;
@@ -25,6 +22,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import java.lang.Process;
@@ -33,6 +36,7 @@ import org.apache.zookeeper.KeeperException;
 
 import common.*;
 import common.messages.TextMessage;
+import app_kvServer.ServerConfig;
 
 import java.util.concurrent.TimeUnit;
 
@@ -45,13 +49,14 @@ public class ECS implements IECS {
     private Path metaDataFile;
     private Socket ECSSocket;
 
+    // Every position of the servers, a server with virtual nodes has one
+    // entry per token and the node of token 0 is the one of allAvailableServers
     private TreeMap<BigInteger, IECSNode> ringNetwork;
     // IECSNode and status {"Available", "Taken"} - TODO: Convert to an ENUM
     private HashMap<IECSNode, String> allAvailableServers;
     private static Logger logger = Logger.getRootLogger();
-    private OutputStream output; 
-    private InputStream input;
     private String lastRemovedName = null;
+    private int virtualNodes;
     private String ugmachine;
     //For the autotester
     private String zkHostname;
@@ -73,6 +78,7 @@ public class ECS implements IECS {
         this.ringNetwork = new TreeMap<BigInteger, IECSNode>();
         this.allAvailableServers = new HashMap<IECSNode, String>();
         this.ZKImpl = new ZKImplementation();
+        this.virtualNodes = new ServerConfig(KVConstants.SERVER_CONFIG).getVirtualNodes();
         try {
             if (Files.exists(Paths.get(metaFile))) {
                 Files.delete(Paths.get(metaFile));
@@ -128,8 +134,51 @@ public class ECS implements IECS {
         return found;
     }
 
+    /**
+     * @return  number of servers on the ring, whatever their tokens
+     */
     public int ringNetworkSize() {
-        return this.ringNetwork.size();
+        return getNodes().size();
+    }
+
+    // Hash of a position of the server, token 0 being md5(host:port)
+    private static BigInteger tokenHash(IECSNode node, int token) {
+        String position = node.getNodeHost() + KVConstants.HASH_DELIM + node.getNodePort();
+        if (token > 0) {
+            position = position + KVConstants.TOKEN_DELIM + token;
+        }
+        return md5.encode(position);
+    }
+
+    // Put every token of the server on the ring, the node itself holds token 0
+    private IECSNode addToRing(IECSNode node) {
+        IECSNode added = updateHash(tokenHash(node, 0), node);
+        for (int i = 1; added != null && i < virtualNodes; i++) {
+            updateHash(tokenHash(node, i),
+                    new ECSNode(node.getNodeName(), node.getNodeHost(), node.getNodePort(), null, null));
+        }
+        return added;
+    }
+
+    // Ring entries of the server, one per token
+    private List<IECSNode> getTokens(IECSNode node) {
+        List<IECSNode> tokens = new ArrayList<IECSNode>();
+        for (IECSNode token : ringNetwork.values()) {
+            if (token.getNodeName().equals(node.getNodeName())) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    // Node of token 0 of the server that holds the ring entry
+    private IECSNode primaryOf(IECSNode token) {
+        for (IECSNode node : allAvailableServers.keySet()) {
+            if (node.getNodeName().equals(token.getNodeName())) {
+                return node;
+            }
+        }
+        return token;
     }
 
     public int availableServersCount() {
@@ -231,180 +280,219 @@ public class ECS implements IECS {
         return success;
     }
 
-    private Integer getNumKeysResponsible(IECSNode node) {
-        // For now, just get the key count directly by reading the server
-        // coordinator file
-        // Ideally, should send a message to server and get the data through messages
-        // Oh well
-        String serverFile = KVConstants.SERVER + node.getNodePort();
-        int numLines = 0;
+    /**
+     * Ask the server for the load of each of its ranges
+     * @param loads     gets the load of each range, by its end hash
+     */
+    public boolean sendLoadRequest(IECSNode node, Map<BigInteger, RangeLoad> loads) {
+        TextMessage message = new TextMessage("ECS" + KVConstants.DELIM + "GET_LOAD");
+        String prefix = "LOAD_REPORT" + KVConstants.DELIM;
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(serverFile));
-            String line = reader.readLine();
-            while ( line != null ) {
-                if (line.trim().length() == 0) {
-                    line = reader.readLine();
-                    continue;
-                }
-                numLines++;
-                line = reader.readLine();
+            String response = sendNodeMessage(message, node).getMsg();
+            if(!response.startsWith(prefix)) {
+                logger.error("ERROR: No load reported by KVServer: " + node.getNodeName());
+                return false;
             }
-            reader.close();
-        } catch (FileNotFoundException e) {
-            logger.error("File not found: " + serverFile);
-        } catch (IOException e) {
-            logger.error("IOException while trying to read file: " + serverFile);
+            for(String range : response.substring(prefix.length()).split(KVConstants.NEWLINE_DELIM)) {
+                if(range.isEmpty()) continue;
+                RangeLoad load = new RangeLoad(range);
+                loads.put(load.endHash, load);
+            }
+        } catch (IOException | NumberFormatException ex) {
+            logger.error("LOAD_ERROR: Load request to KVServer " + node.getNodeName() + " failed: " + ex);
+            return false;
+        }
+        return true;
+    }
+
+    // Load of every ring entry by its end hash, asked to all servers at once
+    private Map<BigInteger, RangeLoad> getLoads() {
+        final Map<BigInteger, RangeLoad> loads = new ConcurrentHashMap<BigInteger, RangeLoad>();
+        List<Callable<Boolean>> requests = new ArrayList<Callable<Boolean>>();
+        for (final IECSNode node : getNodes().values()) {
+            requests.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return sendLoadRequest(node, loads);
+                }
+            });
         }
-        return numLines;
+        runInParallel(requests);
+        return loads;
     }
 
     // Std Dev = sqrt (1/(N-1) * sum ((Xi - Xbar)^2))
     // Xi: Number of keys that server i is responsible for
     // Xbar : Ideal number of keys that server i should be responsible for
-    private double getStdDevServerLoad() {
+    private double getStdDevServerLoad(List<RangeLoad> loads) {
         int totalServers = ringNetworkSize();
         assert(totalServers > 1);
-        HashMap<String, Integer> serverLoads = new HashMap<String, Integer>();
-        IECSNode node;
-        int totalKeys = 0;
-        for (Map.Entry<BigInteger, IECSNode> entry : ringNetwork.entrySet()) {
-            node = entry.getValue();
-            Integer numKeysResponsible = getNumKeysResponsible(node);
-            serverLoads.put(node.getNodeName(), numKeysResponsible);
-            totalKeys += numKeysResponsible;
-            logger.debug(node.getNodeName() + " : " + numKeysResponsible);
+        HashMap<String, Long> serverLoads = new HashMap<String, Long>();
+        long totalKeys = 0;
+        int i = 0;
+        for (IECSNode entry : ringNetwork.values()) {
+            RangeLoad load = loads.get(i++);
+            Long serverLoad = serverLoads.get(entry.getNodeName());
+            serverLoads.put(entry.getNodeName(), (serverLoad == null ? 0 : serverLoad) + load.keys);
+            totalKeys += load.keys;
         }
         double avgLoad = (double)totalKeys/totalServers, result = 0;
-        for (Map.Entry<String, Integer> entry : serverLoads.entrySet()) {
-            int serverLoad = entry.getValue();
+        for (Map.Entry<String, Long> entry : serverLoads.entrySet()) {
+            long serverLoad = entry.getValue();
+            logger.debug(entry.getKey() + " : " + serverLoad);
             result += (serverLoad - avgLoad)*(serverLoad - avgLoad);
         }
         result /= (double)(totalServers - 1);
         return Math.sqrt(result);
     }
 
-    // Get the encoded md5 hash for all keys in the network and return in
-    // descending order
-    private ArrayList<BigInteger> getAllKeysHash() {
-        ArrayList<BigInteger> keysHash = new ArrayList<BigInteger>();
-        IECSNode node;
-        String serverFile, line, key;
-        for (Map.Entry<BigInteger, IECSNode> entry : ringNetwork.entrySet()) {
-            node = entry.getValue();
-            serverFile = KVConstants.SERVER + node.getNodePort();
+    /**
+     * @return  requests per second of each server, summed over the ranges
+     *          it publishes in its znode next to its timestamp
+     */
+    public Map<String, Double> getRequestRates() {
+        Map<String, Double> rates = new HashMap<String, Double>();
+        for (IECSNode node : getNodes().values()) {
+            double rate = 0;
             try {
-                BufferedReader reader = new BufferedReader(new FileReader(serverFile));
-                line = reader.readLine();
-                while (line != null) {
-                    if (line.trim().length() == 0) {
-                        line = reader.readLine();
-                        continue;
+                String[] info = ZKImpl.readData(getZKPath(node.getNodeName())).split(KVConstants.SPLIT_DELIM);
+                if (info.length > KVConstants.ZNODE_REQUEST_RATES) {
+                    for (String range : info[KVConstants.ZNODE_REQUEST_RATES].split(KVConstants.NEWLINE_DELIM)) {
+                        String[] entry = range.split(KVConstants.HASH_DELIM);
+                        if (entry.length == 2) {
+                            rate += Double.parseDouble(entry[1]);
+                        }
                     }
-                    key = line.split(KVConstants.SPLIT_DELIM)[0];
-                    keysHash.add(md5.encode(key));
-                    line = reader.readLine();
                 }
-                reader.close();
-            } catch (FileNotFoundException e) {
-                logger.error("File not found: " + serverFile);
-            } catch (IOException e) {
-                logger.error("IOException while trying to read file: " + serverFile);
+            } catch (KeeperException | InterruptedException e) {
+                logger.error("Could not read the request rates of " + node.getNodeName() + ": " + e);
+            } catch (NumberFormatException e) {
+                logger.error("Invalid request rates of " + node.getNodeName() + ": " + e);
             }
+            rates.put(node.getNodeName(), rate);
         }
-        Collections.sort(keysHash, Collections.reverseOrder());
-        return keysHash;
+        return rates;
     }
 
+    // True when a server serves HOT_SPOT_FACTOR times the average request rate
+    private boolean hasHotSpot() {
+        Map<String, Double> rates = getRequestRates();
+        double total = 0, max = 0;
+        String hottest = null;
+        for (Map.Entry<String, Double> rate : rates.entrySet()) {
+            total += rate.getValue();
+            if (rate.getValue() > max) {
+                max = rate.getValue();
+                hottest = rate.getKey();
+            }
+        }
+        if (total < KVConstants.HOT_SPOT_MIN_RATE || max <= KVConstants.HOT_SPOT_FACTOR * total / rates.size()) {
+            return false;
+        }
+        logger.info("Hot spot on " + hottest + ": " + max + " of " + total + " requests per second");
+        return true;
+    }
+
+    /**
+     * Balance the servers from the load they report: their keys, and their
+     * requests once the ring serves HOT_SPOT_MIN_RATE requests per second so
+     * that hot ranges are split across their neighbours. Only the boundaries
+     * that need to move are moved, and at most BALANCE_PARALLEL_MOVES
+     * servers send keys at once.
+     */
     public boolean balanceServerLoad() {
         int numServers = ringNetworkSize();
         // No need to balance load
         if (numServers == 0 || numServers == 1) {
             return true;
         }
-        double initStdDev = getStdDevServerLoad();
-        ArrayList<BigInteger> keysHash = getAllKeysHash();
-        int numKeys = keysHash.size();
-        // Check that there is at least 1 key per server
-        boolean atLeastOneKey = ((int) Math.floor((double)numKeys/numServers) >= 1);
+        List<IECSNode> entries = new ArrayList<IECSNode>(ringNetwork.values());
+        Map<BigInteger, RangeLoad> reported = getLoads();
+        List<RangeLoad> loads = new ArrayList<RangeLoad>();
+        for (IECSNode entry : entries) {
+            RangeLoad load = reported.get(entry.getNodeHashRange()[1]);
+            if (load == null) {
+                // Not balanced until every server reports its current ranges
+                logger.error("No load reported for the range of " + entry.getNodeName()
+                        + " ending at " + entry.getNodeHashRange()[1].toString(16));
+                return true;
+            }
+            loads.add(load);
+        }
+        double initStdDev = getStdDevServerLoad(loads);
         printDebug("Initial StdDev : " + initStdDev);
-        boolean success = true;
-        if (initStdDev >= KVConstants.MIN_STDEV && atLeastOneKey) {
-            logger.debug("Initial ringNetwork:");
-            printRing();
-            int keysPerServer = (int) Math.rint((float)numKeys/numServers);
-            int assignedServers = 0;
-            Map.Entry<BigInteger, IECSNode> entry = null;
-            BigInteger serverEndHash = null, serverBeginHash = null;
-            BigInteger prevEndHash = null, firstEndHash = null;
-            int firstKeyIdx = 0, lastKeyIdx;
-            // Need this to keep track of original server locations
-            TreeMap<BigInteger, IECSNode> origRingNetwork = new TreeMap<BigInteger, IECSNode>();
-            origRingNetwork = (TreeMap<BigInteger, IECSNode>) ringNetwork.clone();
-            IECSNode node;
-            while (assignedServers < (numServers - 1)) {
-                // First server
-                if (assignedServers == 0) {
-                    entry = ringNetwork.lastEntry();
-                    serverEndHash = entry.getKey();
-                    // Get the first key index lower than the first server
-                    for (int i = 0; i < numKeys; ++i) {
-                        int res = keysHash.get(i).compareTo(serverEndHash);
-                        // If current key hash is less than the first server hash
-                        if (res == -1) {
-                            firstKeyIdx = i;
-                            break;
-                        }
-                    }
-                    prevEndHash = serverEndHash;
-                    firstEndHash = serverEndHash;
+        if (initStdDev < KVConstants.MIN_STDEV && !hasHotSpot()) {
+            return true;
+        }
+        // Keys and requests count by their share of the ring, so the same
+        // ring is balanced whichever of the two was found uneven
+        long totalKeys = 0;
+        double totalRequests = 0;
+        for (RangeLoad load : loads) {
+            totalKeys += load.keys;
+            totalRequests += load.requests;
+        }
+        double keyWeight = (totalKeys == 0) ? 0 : 1.0 / totalKeys;
+        double requestWeight = (totalRequests < KVConstants.HOT_SPOT_MIN_RATE) ? 0
+                : KVConstants.BALANCE_REQUEST_WEIGHT / totalRequests;
+        List<LoadBalancer.Move> moves = new LoadBalancer(keyWeight, requestWeight).plan(loads);
+        if (moves.isEmpty()) {
+            return true;
+        }
+        logger.debug("Initial ringNetwork:");
+        printRing();
+        // Move the boundaries, every server on either side gets the new ranges
+        List<IECSNode> updated = new ArrayList<IECSNode>();
+        List<IECSNode[]> transfers = new ArrayList<IECSNode[]>();
+        for (LoadBalancer.Move move : moves) {
+            IECSNode node = entries.get(move.entry);
+            IECSNode nextNode = entries.get((move.entry + 1) % entries.size());
+            ringNetwork.remove(node.getNodeHashRange()[1]);
+            node.setNodeEndHash(move.boundary);
+            nextNode.setNodeBeginHash(move.boundary);
+            ringNetwork.put(move.boundary, node);
+            IECSNode src = primaryOf(entries.get(move.from));
+            IECSNode dst = primaryOf(entries.get(move.to));
+            logger.debug("Moving " + move.keys + " keys from " + src.getNodeName() + " to " + dst.getNodeName());
+            for (IECSNode server : new IECSNode[] {src, dst}) {
+                if (!nodeInList(server, updated)) {
+                    updated.add(server);
                 }
-
-                lastKeyIdx = (firstKeyIdx + keysPerServer - 1)%numKeys;
-                serverBeginHash = keysHash.get(lastKeyIdx).subtract(BigInteger.ONE);
-                node = entry.getValue();
-                node.setNodeBeginHash(serverBeginHash);
-                node.setNodeEndHash(serverEndHash);
-                ringNetwork.remove(prevEndHash);
-                ringNetwork.put(serverEndHash, node);
-                assignedServers++;
-                firstKeyIdx = (lastKeyIdx + 1)%numKeys;
-                entry = origRingNetwork.lowerEntry(prevEndHash);
-                serverEndHash = serverBeginHash;
-                prevEndHash = entry.getKey();
             }
-            // For the last server
-            node = entry.getValue();
-            node.setNodeBeginHash(firstEndHash);
-            node.setNodeEndHash(serverBeginHash);
-            ringNetwork.remove(prevEndHash);
-            ringNetwork.put(serverBeginHash, node);
-            logger.debug("Final ringNetwork:");
-            printRing();
-
-            try {
-                deleteMetaDataFile();
-                updateMetaDataFile();
-            } catch (IOException e) {
-                logger.error("Unable to update metadata file");
+            // Tokens of the same server need no data moved
+            boolean known = src.getNodeName().equals(dst.getNodeName());
+            for (IECSNode[] transfer : transfers) {
+                known = known || (transfer[0] == src && transfer[1] == dst);
             }
-
-            // Send UPDATE_METDATA msg to every server
-            for (Map.Entry<BigInteger, IECSNode> server : ringNetwork.entrySet()) {
-                IECSNode curNode = server.getValue();
-                success = sendMetaDataUpdate(curNode);
+            if (!known) {
+                transfers.add(new IECSNode[] {src, dst});
             }
+        }
+        logger.debug("Final ringNetwork:");
+        printRing();
 
-            for (Map.Entry<BigInteger, IECSNode> dst : ringNetwork.entrySet()) {
-                for (Map.Entry<BigInteger, IECSNode> src : ringNetwork.entrySet()) {
-                    // Get keys from every other server
-                    if (src.getKey() != dst.getKey()) {
-                        success = success & sendMoveKVPairs(src.getValue(), dst.getValue(), false);
-                    }
+        boolean success = true;
+        try {
+            updateMetaDataFile();
+        } catch (IOException e) {
+            logger.error("Unable to update metadata file");
+            return false;
+        }
+        // Send UPDATE_METDATA msg to every server whose ranges changed
+        for (IECSNode node : updated) {
+            success = success & sendMetaDataUpdate(node);
+        }
+        // Each source sends the keys in the ranges of its destination
+        List<Callable<Boolean>> moveTasks = new ArrayList<Callable<Boolean>>();
+        for (final IECSNode[] transfer : transfers) {
+            moveTasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return sendMoveKVPairs(transfer[0], transfer[1], true);
                 }
-            }
-            double finalStdDev = getStdDevServerLoad();
-            logger.debug("Final StdDev: " + finalStdDev);
+            });
         }
+        success = success & runInParallel(moveTasks, KVConstants.BALANCE_PARALLEL_MOVES);
         return success;
     }
 
@@ -454,6 +542,10 @@ public class ECS implements IECS {
                 String data = ZKImpl.readData(getZKPath(node.getNodeName()));
                 String[] splitData = data.split(KVConstants.SPLIT_DELIM);
                 data = splitData[0]+KVConstants.DELIM +splitData[1]+KVConstants.DELIM +splitData[2]+KVConstants.DELIM +splitData[3]+joinedReplicaPorts;
+                // Keep the fields after the replica ports, such as index progress
+                for (int i = 4 + KVConstants.NUM_REPLICAS; i < splitData.length; ++i) {
+                    data = data + KVConstants.DELIM + splitData[i];
+                }
                 ZKImpl.updateData(getZKPath(node.getNodeName()), data);
             } catch (KeeperException e) {
                 System.out.println("Error cannot update znode replicas");
@@ -535,6 +627,38 @@ public class ECS implements IECS {
         return success;
     }
 
+    /**
+     * Ask every source to move its KVPairs to dstNode, all at once
+     */
+    public boolean sendMoveKVPairs(Collection<IECSNode> srcNodes, final IECSNode dstNode, final boolean moveAll) {
+        List<Callable<Boolean>> moves = new ArrayList<Callable<Boolean>>();
+        for (final IECSNode srcNode : srcNodes) {
+            moves.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return sendMoveKVPairs(srcNode, dstNode, moveAll);
+                }
+            });
+        }
+        return runInParallel(moves);
+    }
+
+    /**
+     * Ask srcNode to move its KVPairs to every destination, all at once
+     */
+    public boolean sendMoveKVPairs(final IECSNode srcNode, Collection<IECSNode> dstNodes, final boolean moveAll) {
+        List<Callable<Boolean>> moves = new ArrayList<Callable<Boolean>>();
+        for (final IECSNode dstNode : dstNodes) {
+            moves.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return sendMoveKVPairs(srcNode, dstNode, moveAll);
+                }
+            });
+        }
+        return runInParallel(moves);
+    }
+
     public IECSNode findAvailableServer() {
         for(Map.Entry<IECSNode, String> entry : allAvailableServers.entrySet()) {
             if(entry.getValue().equals("AVAILABLE")) {
@@ -548,9 +672,12 @@ public class ECS implements IECS {
     }
  
     public IECSNode addNode(String cacheStrategy, int cacheSize) {
+        return addNode(cacheStrategy, Integer.toString(cacheSize));
+    }
+
+    public IECSNode addNode(String cacheStrategy, String cacheSize) {
         //Select node from available, update hashing, add to hashRing and alert all servers to upate metaData 
-        IECSNode currNode = new ECSNode(), nextNode = new ECSNode();
-        BigInteger serverHash = new BigInteger("0", 16);
+        IECSNode currNode = new ECSNode();
         boolean success = true;
         try { 
             // Find an available server
@@ -563,40 +690,39 @@ public class ECS implements IECS {
                 logger.error("ERROR. Unable to launch KVServer :" + currNode.getNodeName() + " Host: " + currNode.getNodeHost()+ " Port: " + currNode.getNodePort());
                 return null;
             }
-            // Update hashes of current and next server on the ring network
-            serverHash = md5.encode(currNode.getNodeHost() + KVConstants.HASH_DELIM + currNode.getNodePort());
-            currNode = updateHash(serverHash, currNode);
+            Map<String, String> replicasBefore = getReplicaSets();
+            // Update hashes of the tokens of the server and of the ones after them
+            currNode = addToRing(currNode);
             // Now update the metadata file, write to metaDataFile and alert nodes to update their metaData
             updateMetaDataFile();
-            // Update meta data for the node AFTER the added node
-            // Move KVpairs from nextNode to addedNode
-            nextNode = findNextNode(serverHash);
-            if(nextNode == null) {
-                logger.error("Could not find next node while adding a new node!!");
-                return null;
+            // The servers AFTER each token give it a part of their range
+            List<IECSNode> donors = new ArrayList<IECSNode>();
+            for(IECSNode token : getTokens(currNode)) {
+                IECSNode nextNode = findNextNode(token.getNodeHashRange()[1]);
+                if(nextNode == null) {
+                    logger.error("Could not find next node while adding a new node!!");
+                    return null;
+                }
+                nextNode = primaryOf(nextNode);
+                if(!nextNode.getNodeName().equals(currNode.getNodeName()) && !nodeInList(nextNode, donors)) {
+                    donors.add(nextNode);
+                }
             }
 
             // Send metadata update and setup cache config
             success = sendMetaDataUpdate(currNode);
             success = success & setupNodesCacheConfigOneNode(currNode, cacheStrategy, cacheSize);
-            if(nextNode != currNode) {
-                success = success & sendMetaDataUpdate(nextNode);
-                success = success & sendMoveKVPairs(nextNode, currNode, false);
-            } else {
+            if(donors.isEmpty()) {
                 logger.debug("nextNode is the same as currNode");
             }
-
-            // Updating replicas of previous nodes and currNode
-            IECSNode prevNode = findPrevNode(currNode);
-            if(prevNode != currNode) {
-                success = success & sendReplicas(prevNode);
+            for(IECSNode donor : donors) {
+                success = success & sendMetaDataUpdate(donor);
             }
+            // Move KVpairs from every donor to the added node at once
+            success = success & sendMoveKVPairs(donors, currNode, false);
 
-            IECSNode prevPrevNode = findPrevNode(prevNode);
-            if(prevPrevNode != currNode) {
-                success = success & sendReplicas(prevPrevNode);
-            }
-            success = success & sendReplicas(currNode);
+            // Updating replicas of the servers whose successors changed and of currNode
+            success = success & sendChangedReplicas(replicasBefore, Collections.<IECSNode>emptyList());
 
             if(!success) {
                 logger.error("in addNode: unable to update metaData in Servers");
@@ -609,20 +735,82 @@ public class ECS implements IECS {
         return currNode; 
     }
 
+    /**
+     * Replicas of a server are the next servers after its token 0, tokens
+     * of a server already chosen or of the server itself are skipped
+     */
     ArrayList<IECSNode> getReplicas(IECSNode currNode) {
         ArrayList<IECSNode> replicas = new ArrayList<IECSNode>();
         // Give end hash of own server
-        IECSNode primaryReplica = findNextNode(currNode.getNodeHashRange()[1]);
-        if (!primaryReplica.getNodeName().equals(currNode.getNodeName())) {
-            replicas.add(primaryReplica);
-            IECSNode secondaryReplica = findNextNode(primaryReplica.getNodeHashRange()[1]);
-            if(!secondaryReplica.getNodeName().equals(currNode.getNodeName())) {
-                replicas.add(secondaryReplica);
+        BigInteger hash = currNode.getNodeHashRange()[1];
+        for (int i = 1; i < ringNetwork.size() && replicas.size() < KVConstants.NUM_REPLICAS; ++i) {
+            IECSNode nextNode = findNextNode(hash);
+            hash = nextNode.getNodeHashRange()[1];
+            if (!nextNode.getNodeName().equals(currNode.getNodeName()) && !nodeInList(nextNode, replicas)) {
+                replicas.add(primaryOf(nextNode));
             }
         }
         return replicas;
     }
 
+    // Server name -> names of its replicas
+    private Map<String, String> getReplicaSets() {
+        Map<String, String> replicaSets = new HashMap<String, String>();
+        for (IECSNode node : getNodes().values()) {
+            replicaSets.put(node.getNodeName(), getReplicaNames(getReplicas(node)));
+        }
+        return replicaSets;
+    }
+
+    // Send the replicas of every server on the ring, but the excluded ones,
+    // whose replicas are not the ones it had before
+    private boolean sendChangedReplicas(Map<String, String> replicasBefore, Collection<IECSNode> excluded) {
+        List<Callable<Boolean>> updates = new ArrayList<Callable<Boolean>>();
+        for (final IECSNode node : getNodes().values()) {
+            String replicas = getReplicaNames(getReplicas(node));
+            if (nodeInList(node, excluded) || replicas.equals(replicasBefore.get(node.getNodeName()))) {
+                continue;
+            }
+            updates.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return sendReplicas(node);
+                }
+            });
+        }
+        return runInParallel(updates);
+    }
+
+    // Run the tasks at once, one thread each
+    private boolean runInParallel(List<Callable<Boolean>> tasks) {
+        return runInParallel(tasks, tasks.size());
+    }
+
+    /**
+     * Run the tasks, at most threads of them at once
+     * @return  true if every task succeeded
+     */
+    private boolean runInParallel(List<Callable<Boolean>> tasks, int threads) {
+        if (tasks.isEmpty()) return true;
+        boolean success = true;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            for (Future<Boolean> result : pool.invokeAll(tasks)) {
+                success = success & result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for the servers: " + e);
+            success = false;
+        } catch (ExecutionException e) {
+            logger.error("Request to a server failed: " + e.getCause());
+            success = false;
+        } finally {
+            pool.shutdown();
+        }
+        return success;
+    }
+
     String getReplicaPorts(ArrayList<IECSNode> replicas) {
         String joinedReplicas = "";
         for (int i = 0; i < KVConstants.NUM_REPLICAS; ++i) {
@@ -690,11 +878,8 @@ public class ECS implements IECS {
                         counter++;
                         entry.setValue("TAKEN");
                         IECSNode node = entry.getKey();
-                        BigInteger serverHash = md5.encode(node.getNodeHost() +
-                                                    KVConstants.HASH_DELIM +
-                                                    Integer.toString(node.getNodePort()));
                         //Setup begin and end hashing for server 
-                        node = updateHash(serverHash, node);
+                        node = addToRing(node);
                         //Add chosen node to collection
                         chosenNode = node;
                         break;
@@ -710,7 +895,7 @@ public class ECS implements IECS {
         return chosenNode; 
     }
 
-    public boolean setupNodesCacheConfigOneNode(IECSNode node, String cacheStrategy, int cacheSize) {
+    public boolean setupNodesCacheConfigOneNode(IECSNode node, String cacheStrategy, String cacheSize) {
         TextMessage message = new TextMessage("ECS" + KVConstants.DELIM + "SETUP_NODE" + KVConstants.DELIM + cacheStrategy + KVConstants.DELIM + cacheSize);
         TextMessage response;
         boolean success = true;
@@ -733,7 +918,7 @@ public class ECS implements IECS {
         return success;
     }
 
-    public Collection<IECSNode> setupNodesCacheConfig(Collection<IECSNode> nodes, String cacheStrategy, int cacheSize) {
+    public Collection<IECSNode> setupNodesCacheConfig(Collection<IECSNode> nodes, String cacheStrategy, String cacheSize) {
         Collection<IECSNode> nodesResult = new ArrayList<IECSNode>();
         TextMessage message = new TextMessage("ECS" + KVConstants.DELIM + "SETUP_NODE" + KVConstants.DELIM + cacheStrategy + KVConstants.DELIM + cacheSize);
         TextMessage response;
@@ -812,7 +997,7 @@ public class ECS implements IECS {
         return zNodeData[0];
     }
 
-    public boolean launchKVServer(IECSNode node, String cacheStrategy, int cacheSize) {
+    public boolean launchKVServer(IECSNode node, String cacheStrategy, String cacheSize) {
         boolean success = true;
         Process proc;
         logger.info("Launching <" + node.getNodeHost() + ", " + node.getNodePort() + ">");
@@ -867,90 +1052,78 @@ public class ECS implements IECS {
         if(nodes.size() == 0) return true;
         logger.debug("In Remove Nodes");
         //Need to let the node know to stop
-        BigInteger currNodeHash;
-        IECSNode nextNode = null, currNode = null, prevNode = null, prevPrevNode = null;
-        boolean onlyOneNode = false;
         boolean success = true;
         for(IECSNode server: nodes) {
-            Iterator<Map.Entry<BigInteger, IECSNode>> iter = ringNetwork.entrySet().iterator();
-            while( iter.hasNext()) {
-                Map.Entry<BigInteger, IECSNode> entry = iter.next();
-                if(server.getNodeName().equals(entry.getValue().getNodeName())) {
-
-                    //Found the node we want to remove
-                    currNodeHash = entry.getKey();
-                    currNode = entry.getValue();
-                    nextNode = findNextNode(currNodeHash);
-                    if(nextNode == null) {
-                        logger.error("ERROR: There should be at least one node in the network!! found none!");
-                        return false;
-                    }
-                    onlyOneNode = (nextNode.getNodeHashRange()[1] == currNodeHash);
-                    nextNode.setNodeBeginHash(currNode.getNodeHashRange()[0]);
-
-                    prevNode = findPrevNode(currNode);
-                    prevPrevNode = findPrevNode(prevNode);
-
-                    try {
-                        //Need to remove node from network before updating all the metadata
-                        iter.remove();
-                        //Update the changed hashRange to the ring
-                        if(!onlyOneNode) {
-                            ringNetwork.put(nextNode.getNodeHashRange()[1], nextNode);
-                        }
-                        else {
-                            //TODO keep track of the name of the last node dying so we can start
-                            // with it initially
-                            //TODO whenever the ring is empty start up the node whose name is in the file
-                            try {
-                                String lastNode = currNode.getNodeName() + KVConstants.DELIM +
-                                                  currNode.getNodeHost() + KVConstants.DELIM +
-                                                  currNode.getNodePort();
-                                Path file = Paths.get(ECS.lastRemovedFile);
-                                Files.write(file, lastNode.getBytes());
-                            } catch (Exception e) {
-                                logger.error("could not write last removed node to lastRemovedFile");
-                                logger.error(e);
-                            }
-                        }
+            List<IECSNode> tokens = getTokens(server);
+            if(tokens.isEmpty()) continue;
+            //Found the node we want to remove
+            IECSNode currNode = primaryOf(tokens.get(0));
+            Map<String, String> replicasBefore = getReplicaSets();
+            //Need to remove node from network before updating all the metadata,
+            //the range of each token goes to the node after it
+            for(IECSNode token : tokens) {
+                BigInteger tokenHash = token.getNodeHashRange()[1];
+                ringNetwork.remove(tokenHash);
+                IECSNode nextNode = findNextNode(tokenHash);
+                if(nextNode != null) {
+                    nextNode.setNodeBeginHash(token.getNodeHashRange()[0]);
+                }
+            }
+            boolean onlyOneNode = ringNetwork.isEmpty();
+            //Servers that take over a range of the removed one
+            List<IECSNode> nextNodes = new ArrayList<IECSNode>();
+            for(IECSNode token : tokens) {
+                if(onlyOneNode) break;
+                IECSNode nextNode = primaryOf(findNextNode(token.getNodeHashRange()[1]));
+                //Only move data to a nextNode if
+                // a- we are removing functioning nodes OR
+                // b- we are removing crashed nodes AND nextNode hasn't crashed (it is not in the list of crashed nodes nodesCrashed
+                if(!nodeInList(nextNode, nextNodes) && (!nodesCrashed || !nodeInList(nextNode, nodes))) {
+                    nextNodes.add(nextNode);
+                }
+            }
+            if(onlyOneNode) {
+                //TODO whenever the ring is empty start up the node whose name is in the file
+                try {
+                    String lastNode = currNode.getNodeName() + KVConstants.DELIM +
+                                      currNode.getNodeHost() + KVConstants.DELIM +
+                                      currNode.getNodePort();
+                    Path file = Paths.get(ECS.lastRemovedFile);
+                    Files.write(file, lastNode.getBytes());
+                } catch (Exception e) {
+                    logger.error("could not write last removed node to lastRemovedFile");
+                    logger.error(e);
+                }
+            }
 
-                        updateMetaDataFile();
-                        //Only move data to the nextNode if
-                        // 1-  currNode != nextNode
-                        // 2a- we are removing functioning nodes OR
-                        // 2b- we are removing crashed nodes AND nextNode hasn't crashed (it is not in the list of crashed nodes nodesCrashed
-                        if(!onlyOneNode &&
-                            ( !nodesCrashed || (nodesCrashed && !nodeInList(nextNode, nodes)))) {
-                            // Update meta data for the node AFTER the removed node
-                            // Move KVpairs from removedNode to nextNode
-                            success = sendMetaDataUpdate(nextNode);
-                            if(!nodesCrashed) {
-                                //if currNode has crashed, we can't ask it to move its data over!
-                                success = success & sendMoveKVPairs(currNode, nextNode, true);
-                            }
-                        }
-                        if (prevNode != currNode && (!nodesCrashed ||  (nodesCrashed && !nodeInList(prevNode, nodes)))) {
-                            success = success & sendReplicas(prevNode);
-                        }
-                        if (prevPrevNode != currNode && (!nodesCrashed ||  (nodesCrashed && !nodeInList(prevPrevNode, nodes)))) {
-                            success = success & sendReplicas(prevPrevNode);
-                        }
-                    } catch (IOException io) {
-                        logger.error("ERROR: Unable to update metaData with nodes removed");
-                        success = false;
-                    }
-                    if(nodesCrashed) {
-                        //if currNode has crashed, we cannot expect to be able to send it stop
-                        //and shutdown msgs through the shutDownOneNode() function. Just put the
-                        //node back as an available server.
-                        allAvailableServers.put(currNode, "AVAILABLE");
-                    } else {
-                        success = success & shutDownOneNode(currNode);
-                    }
-                    success = success & removeZKNode(currNode);
+            try {
+                updateMetaDataFile();
+                // Update meta data for the nodes AFTER the removed node
+                for(IECSNode nextNode : nextNodes) {
+                    success = success & sendMetaDataUpdate(nextNode);
                 }
-                
+                if(!nodesCrashed) {
+                    //if currNode has crashed, we can't ask it to move its data over!
+                    // Move KVpairs from removedNode to every nextNode at once
+                    success = success & sendMoveKVPairs(currNode, nextNodes, true);
+                }
+                if(!onlyOneNode) {
+                    success = success & sendChangedReplicas(replicasBefore,
+                            nodesCrashed ? nodes : Collections.<IECSNode>emptyList());
+                }
+            } catch (IOException io) {
+                logger.error("ERROR: Unable to update metaData with nodes removed");
+                success = false;
+            }
+            if(nodesCrashed) {
+                //if currNode has crashed, we cannot expect to be able to send it stop
+                //and shutdown msgs through the shutDownOneNode() function. Just put the
+                //node back as an available server.
+                allAvailableServers.put(currNode, "AVAILABLE");
+            } else {
+                success = success & shutDownOneNode(currNode);
             }
+            success = success & removeZKNode(currNode);
         }
         return success;
     }
@@ -1005,11 +1178,14 @@ public class ECS implements IECS {
     }
     
     // Return a map of all nodes.
-    // Server Name -> IECSNode
+    // Server Name -> IECSNode of its token 0
     public Map<String, IECSNode> getNodes() {
         Map<String, IECSNode> map = new HashMap<String, IECSNode>();
         for(Map.Entry<BigInteger, IECSNode> entry: ringNetwork.entrySet()) {
-            map.put(entry.getValue().getNodeName(), entry.getValue());
+            String name = entry.getValue().getNodeName();
+            if(!map.containsKey(name)) {
+                map.put(name, primaryOf(entry.getValue()));
+            }
         }
         return map;
     }
@@ -1022,18 +1198,23 @@ public class ECS implements IECS {
             serverNode = ringNetwork.firstEntry().getValue();
         }
         serverNode = ringNetwork.higherEntry(encodedKey).getValue();
-        return serverNode;
+        return primaryOf(serverNode);
     }
 
+    /**
+     * Send the message on a connection of its own, so that messages to
+     * several servers can be sent at once
+     */
     public TextMessage sendNodeMessage(TextMessage message, IECSNode node)
                 throws IOException {
         TextMessage response = new TextMessage(""); 
+        Socket socket;
         try {
-            connectNode(node);
+            socket = openSocket(node);
         } catch (IOException e) {
             try{
                 TimeUnit.SECONDS.sleep(4);
-                connectNode(node);
+                socket = openSocket(node);
             } catch (IOException ex) {
                 logger.error("Failed to connect to server <" + node.getNodeHost() + ":" + node.getNodePort() + ">. KVServer launch script may have failed.");
                 logger.error(ex);
@@ -1044,24 +1225,37 @@ public class ECS implements IECS {
                 return response;
             }
         }
-        sendMessage(message);
-        //Receives a connection confirmation message is right
         try {
-            response = receiveMessage();
-            //Receive the response regarding the message sent
-            response = receiveMessage();
-        } catch (SocketException e) {
-            logger.error("Timeout while waiting for server's response! " + e);
+            sendMessage(socket, message);
+            //Receives a connection confirmation message is right
+            try {
+                response = receiveMessage(socket);
+                //Receive the response regarding the message sent
+                response = receiveMessage(socket);
+            } catch (SocketException e) {
+                logger.error("Timeout while waiting for server's response! " + e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException io) {
+                logger.error("ERROR: Unable to close ECS socket");
+            }
         }
-        disconnect();
         return response;
     }
 
     public void connectNode(IECSNode server) 
             throws IOException {
-        this.ECSSocket = new Socket(server.getNodeHost(), server.getNodePort());
-        this.ECSSocket.setSoTimeout(KVConstants.LAUNCH_TIMEOUT);
+        this.ECSSocket = openSocket(server);
+    }
+
+    private Socket openSocket(IECSNode server)
+            throws IOException {
+        Socket socket = new Socket(server.getNodeHost(), server.getNodePort());
+        socket.setSoTimeout(KVConstants.LAUNCH_TIMEOUT);
         logger.info("ECS Connection to name: " + server.getNodeName() + " successful");
+        return socket;
     }
 
 
@@ -1086,23 +1280,28 @@ public class ECS implements IECS {
      */
     public void sendMessage(TextMessage msg)
             throws IOException {
-        output = this.ECSSocket.getOutputStream();
+        sendMessage(this.ECSSocket, msg);
+    }
+
+    private void sendMessage(Socket socket, TextMessage msg)
+            throws IOException {
+        OutputStream output = socket.getOutputStream();
         byte[] msgBytes = msg.getMsgBytes();
         output.write(msgBytes, 0, msgBytes.length);
         output.flush();
         logger.info("SEND \t<" 
-                + ECSSocket.getInetAddress().getHostAddress() + ":" 
-                + ECSSocket.getPort() + ">: '" 
+                + socket.getInetAddress().getHostAddress() + ":" 
+                + socket.getPort() + ">: '" 
                 + msg.getMsg() +"'");
     }
 
-    private TextMessage receiveMessage()
+    private TextMessage receiveMessage(Socket socket)
             throws IOException {
         int index = 0;
         byte[] msgBytes = null, tmp = null;
         byte[] bufferBytes = new byte[BUFFER_SIZE];
         /* read first char from stream */
-        input = this.ECSSocket.getInputStream();
+        InputStream input = socket.getInputStream();
         byte read = (byte) input.read();    
 
         boolean reading = true;
@@ -1156,8 +1355,8 @@ public class ECS implements IECS {
         /* build final String */
         TextMessage msg = new TextMessage(msgBytes);
         logger.info("RECEIVE \t<" 
-                + ECSSocket.getInetAddress().getHostAddress() + ":" 
-                + ECSSocket.getPort() + ">: '" 
+                + socket.getInetAddress().getHostAddress() + ":" 
+                + socket.getPort() + ">: '" 
                 + msg.getMsg().trim() + "'");
         return msg;
     }
@@ -1189,8 +1388,8 @@ public class ECS implements IECS {
         //Shutdown ECS
         boolean success = true;
         if(ringNetwork.isEmpty()) return success;
-        for(Map.Entry<BigInteger, IECSNode> entry: ringNetwork.entrySet()) {
-            shutDownOneNode(entry.getValue());
+        for(IECSNode node : getNodes().values()) {
+            shutDownOneNode(node);
         }
 
         //clear the Hash Ring and the set of available nodes
@@ -13,6 +13,8 @@ public interface IECS {
 
     public IECSNode addNode(String cacheStrategy, int cacheSize);
 
+    public IECSNode addNode(String cacheStrategy, String cacheSize);
+
     public boolean awaitNodes(int count, int timeout) throws Exception;
 
     public boolean removeNodes(Collection<IECSNode> nodeNames, boolean nodesCrashed);
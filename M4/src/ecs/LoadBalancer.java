@@ -0,0 +1,152 @@
+package ecs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.RangeLoad;
+
+/**
+ * Plans the boundary moves that balance the load of the ring entries, from
+ * the loads the servers report. Entry i holds the range that ends at its own
+ * end hash, the boundary after it is the one it shares with entry i + 1.
+ *
+ * The load of a range weighs its keys and its requests per second, so that a
+ * range with few but hot keys is split across its neighbours like a range
+ * with many keys. Giving the requests no weight balances the keys alone.
+ *
+ * Load only crosses boundaries between neighbours, so the load crossing
+ * boundary i is the excess of entries 0..i over the average less a
+ * constant. The median of those excesses is the constant that moves the
+ * least load, and an already balanced ring moves none. A move is cut short
+ * where the donor has no cut point, or when the donor would give away every
+ * key: the next round moves the rest.
+ */
+public class LoadBalancer {
+
+    // Flows below this share of the average load are left, so that the
+    // noise of the sampled loads moves no boundary
+    private static final double MIN_FLOW = 0.05;
+
+    public static class Move {
+        public final int entry;             // entry whose end moves
+        public final int from;              // entry the keys leave
+        public final int to;
+        public final BigInteger boundary;   // new end of entry
+        public final long keys;
+
+        Move(int entry, int from, int to, BigInteger boundary, long keys) {
+            this.entry = entry;
+            this.from = from;
+            this.to = to;
+            this.boundary = boundary;
+            this.keys = keys;
+        }
+    }
+
+    private final double keyWeight;
+    private final double requestWeight;
+
+    /**
+     * @param keyWeight       load of a key
+     * @param requestWeight   load of a request per second
+     */
+    public LoadBalancer(double keyWeight, double requestWeight) {
+        this.keyWeight = keyWeight;
+        this.requestWeight = requestWeight;
+    }
+
+    private double load(RangeLoad load) {
+        return keyWeight * load.keys + requestWeight * load.requests;
+    }
+
+    private double loadBelow(RangeLoad load, int cut) {
+        return keyWeight * load.keysBelow(cut) + requestWeight * load.requestsBelow(cut);
+    }
+
+    // First cut keeping at least keep of the load and one key below it
+    private int cutKeeping(RangeLoad load, double keep) {
+        for (int i = 0; i < load.cuts(); i++) {
+            if (load.keysBelow(i) > 0 && loadBelow(load, i) >= keep) return i;
+        }
+        return -1;
+    }
+
+    // Last cut giving away at most give of the load below it
+    private int cutGiving(RangeLoad load, double give) {
+        int cut = -1;
+        for (int i = 0; i < load.cuts() && loadBelow(load, i) <= give; i++) {
+            if (load.keysBelow(i) > 0) cut = i;
+        }
+        return cut;
+    }
+
+    /**
+     * @param loads   load of every entry of the ring, in ring order
+     * @return  moves of at least one key each, at most one per boundary
+     */
+    public List<Move> plan(List<RangeLoad> loads) {
+        List<Move> moves = new ArrayList<Move>();
+        int n = loads.size();
+        if (n < 2) return moves;
+        double total = 0;
+        for (RangeLoad load : loads) {
+            total += load(load);
+        }
+        double average = total / n;
+        double[] excess = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += load(loads.get(i)) - average;
+            excess[i] = sum;
+        }
+        double[] sorted = excess.clone();
+        Arrays.sort(sorted);
+        double median = sorted[n / 2];
+        // Load crossing boundary i, from entry i to entry i + 1 when positive
+        double[] flow = new double[n];
+        for (int i = 0; i < n; i++) {
+            flow[i] = excess[i] - median;
+            if (Math.abs(flow[i]) < MIN_FLOW * average) {
+                flow[i] = 0;
+            }
+        }
+        // What each entry gives to the entries after and before it, so that
+        // it keeps one key at least
+        double[] toNext = new double[n];
+        double[] toPrev = new double[n];
+        for (int i = 0; i < n; i++) {
+            RangeLoad load = loads.get(i);
+            double capacity = (load.keys == 0) ? 0 : load(load) * (load.keys - 1) / load.keys;
+            double after = Math.max(flow[i], 0);
+            double before = Math.max(-flow[(i + n - 1) % n], 0);
+            if (after + before > capacity) {
+                double scale = capacity / (after + before);
+                after *= scale;
+                before *= scale;
+            }
+            toNext[i] = after;
+            toPrev[i] = before;
+        }
+        for (int i = 0; i < n; i++) {
+            int next = (i + 1) % n;
+            RangeLoad load = loads.get(i);
+            if (toNext[i] > 0) {
+                int cut = cutKeeping(load, load(load) - toNext[i]);
+                long keys = (cut < 0) ? 0 : load.keys - load.keysBelow(cut);
+                if (keys > 0) {
+                    moves.add(new Move(i, i, next, load.cutHash(cut), keys));
+                }
+            }
+            else if (toPrev[next] > 0) {
+                RangeLoad nextLoad = loads.get(next);
+                int cut = cutGiving(nextLoad, toPrev[next]);
+                if (cut >= 0) {
+                    moves.add(new Move(i, next, i, nextLoad.cutHash(cut), nextLoad.keysBelow(cut)));
+                }
+            }
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,104 @@
+package storage;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+public interface IKVStorage {
+
+    public enum StorageStrategy {
+        LOG,        // a single data file
+        SEGMENTED   // a data file per slice of the hash ring
+    };
+
+    public enum ReadMode {
+        CHANNEL,    // positioned reads into a heap buffer
+        MMAP        // values decoded in place from a memory mapping
+    };
+
+    /**
+     * @return  path of the data file backing this storage
+     */
+    public String getFilePath();
+
+    public StorageStrategy getStrategy();
+
+    /**
+     * Choose how values are read from the data file
+     */
+    public void setReadMode(ReadMode readMode);
+
+    public ReadMode getReadMode();
+
+    /**
+     * Build the index from the data file, must be called before the storage is used
+     */
+    public void recover() throws IOException;
+
+    /**
+     * @return  bytes of the data file indexed so far by recover()
+     */
+    public long recoveredBytes();
+
+    /**
+     * Insert or update the key-value pair
+     */
+    public void put(String key, String value) throws IOException;
+
+    /**
+     * Insert, update or delete (empty value) every pair in order, committed
+     * together as one batch
+     */
+    public void putAll(Map<String, String> pairs) throws IOException;
+
+    /**
+     * @return  value associated with key, "" if the key is not stored
+     */
+    public String get(String key) throws IOException;
+
+    /**
+     * Remove the key-value pair, does nothing if the key is not stored
+     */
+    public void delete(String key) throws IOException;
+
+    public boolean hasKey(String key);
+
+    /**
+     * @return  snapshot of all keys currently stored
+     */
+    public List<String> keys();
+
+    /**
+     * @return  number of keys currently stored
+     */
+    public int size();
+
+    /**
+     * @return  md5 hashes of a sample of the stored keys, at most about
+     *          KVConstants.LOAD_SAMPLE, taken without listing the keys
+     */
+    public List<BigInteger> sampleHashes();
+
+    /**
+     * @return  fraction of the data file taken by records that are no longer live
+     */
+    public double garbageRatio();
+
+    /**
+     * @return  size of the data file in bytes
+     */
+    public long fileSize();
+
+    /**
+     * Rewrite the data file with only the live records
+     */
+    public void compact() throws IOException;
+
+    /**
+     * Remove every key-value pair and truncate the data file
+     */
+    public void clear() throws IOException;
+
+    public void close();
+}
@@ -0,0 +1,91 @@
+package storage;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the keys written to a data file, so that a lookup of a key
+ * the file does not hold is answered without taking the storage lock, which
+ * writers hold while they append to the file.
+ *
+ * Keys are only ever added: a deleted key stays "maybe present" until the
+ * filter is rebuilt from the index. Bits are set atomically, so mightContain
+ * may run concurrently with add. Adds are made under the storage lock.
+ */
+class KVBloomFilter {
+
+    // About 1% false positives with 10 bits and 7 hashes per key
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+    private static final int MIN_KEYS = 1024;
+
+    private final AtomicLongArray words;
+    private final int bitMask;      // bit count - 1, a power of two
+    private final int capacity;     // keys before the false positives rise
+    private int added = 0;
+
+    /**
+     * @param keys  keys the filter is sized for, at least MIN_KEYS
+     */
+    KVBloomFilter(int keys) {
+        int bits = 64;
+        long wanted = (long) Math.max(keys, MIN_KEYS) * BITS_PER_KEY;
+        while (bits < wanted && bits < (1 << 30)) bits <<= 1;
+        this.words = new AtomicLongArray(bits / 64);
+        this.bitMask = bits - 1;
+        this.capacity = bits / BITS_PER_KEY;
+    }
+
+    /**
+     * @return  filter of the keys with room for as many new ones
+     */
+    static KVBloomFilter of(Collection<String> keys) {
+        KVBloomFilter filter = new KVBloomFilter(2 * keys.size());
+        for (String key : keys) {
+            filter.add(key);
+        }
+        return filter;
+    }
+
+    // 64 bit FNV-1a of the chars, split in the two hashes the probes derive from
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    void add(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & bitMask;
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+        added++;
+    }
+
+    boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & bitMask;
+            if ((words.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return  true once more keys were added than the filter is sized for
+     */
+    boolean isFull() {
+        return added > capacity;
+    }
+}
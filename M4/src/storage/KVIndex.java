@@ -0,0 +1,293 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.KVConstants;
+
+/**
+ * In-memory index of a data file, mapping each live key to the location of
+ * its latest record. Keys are spread over shards by hash so that the index
+ * can be rebuilt in parallel: the file is cut into byte ranges that are
+ * scanned as separate fork-join tasks, then every shard merges the results of
+ * the ranges in file order, so that later records still win.
+ *
+ * Not thread safe, callers synchronize.
+ */
+class KVIndex {
+
+    private static final int SHARD_COUNT = 16;
+    private static final byte NEWLINE = '\n';
+    private static final byte DELIM = (byte) KVConstants.DELIM.charAt(0);
+    // Files are scanned in ranges of this many bytes
+    private static final long RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private List<Map<String, IndexEntry>> shards;
+
+    // Location of a single record inside the data file
+    static class IndexEntry {
+        final long offset;      // first byte of the record
+        final int keyLength;    // length of the key in bytes
+        final int length;       // length of the record in bytes, newline excluded
+
+        IndexEntry(long offset, int keyLength, int length) {
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+        }
+
+        long valueOffset() {
+            return offset + keyLength + 1;
+        }
+
+        int valueLength() {
+            return length - keyLength - 1;
+        }
+
+        boolean isTombstone() {
+            return valueLength() == 0;
+        }
+
+        IndexEntry moveTo(long newOffset) {
+            return new IndexEntry(newOffset, keyLength, length);
+        }
+    }
+
+    KVIndex() {
+        shards = newShards();
+    }
+
+    private static List<Map<String, IndexEntry>> newShards() {
+        List<Map<String, IndexEntry>> result = new ArrayList<Map<String, IndexEntry>>(SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            result.add(new HashMap<String, IndexEntry>());
+        }
+        return result;
+    }
+
+    private static int shardOf(String key) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % SHARD_COUNT;
+    }
+
+    private Map<String, IndexEntry> shard(String key) {
+        return shards.get(shardOf(key));
+    }
+
+    IndexEntry get(String key) {
+        return shard(key).get(key);
+    }
+
+    boolean containsKey(String key) {
+        return shard(key).containsKey(key);
+    }
+
+    IndexEntry put(String key, IndexEntry entry) {
+        return shard(key).put(key, entry);
+    }
+
+    IndexEntry remove(String key) {
+        return shard(key).remove(key);
+    }
+
+    int size() {
+        int size = 0;
+        for (Map<String, IndexEntry> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    List<String> keys() {
+        List<String> keys = new ArrayList<String>(size());
+        for (Map<String, IndexEntry> shard : shards) {
+            keys.addAll(shard.keySet());
+        }
+        return keys;
+    }
+
+    /**
+     * @return  copy of every key and entry
+     */
+    Map<String, IndexEntry> entries() {
+        Map<String, IndexEntry> entries = new HashMap<String, IndexEntry>(size() * 2);
+        for (Map<String, IndexEntry> shard : shards) {
+            entries.putAll(shard);
+        }
+        return entries;
+    }
+
+    /**
+     * @return  bytes on disk taken by the indexed records
+     */
+    long liveBytes() {
+        long bytes = 0;
+        for (Map<String, IndexEntry> shard : shards) {
+            for (IndexEntry entry : shard.values()) {
+                bytes += entry.length + 1;
+            }
+        }
+        return bytes;
+    }
+
+    void clear() {
+        shards = newShards();
+    }
+
+    /**
+     * Scan the first size bytes of a data file and index its records. When
+     * called from a fork-join worker the ranges are scanned on that pool.
+     *
+     * @param progress  incremented with the number of bytes scanned, may be null
+     */
+    static KVIndex build(FileChannel channel, long size, AtomicLong progress) throws IOException {
+        List<Range> ranges = new ArrayList<Range>();
+        for (long start = 0; start < size; start += RANGE_SIZE) {
+            ranges.add(new Range(channel, start, Math.min(start + RANGE_SIZE, size), size, progress));
+        }
+        try {
+            ForkJoinTask.invokeAll(ranges);
+            KVIndex index = new KVIndex();
+            List<Merge> merges = new ArrayList<Merge>(SHARD_COUNT);
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                merges.add(new Merge(index, ranges, i));
+            }
+            ForkJoinTask.invokeAll(merges);
+            return index;
+        }
+        catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // Records found in one byte range of the file, tombstones included
+    private static class Range extends RecursiveTask<List<Map<String, IndexEntry>>> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long start, end, size;
+        private final AtomicLong progress;
+
+        Range(FileChannel channel, long start, long end, long size, AtomicLong progress) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.size = size;
+            this.progress = progress;
+        }
+
+        @Override
+        protected List<Map<String, IndexEntry>> compute() {
+            try {
+                return scan();
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        // A range owns the records that start inside it, the last one may
+        // run past its end
+        private List<Map<String, IndexEntry>> scan() throws IOException {
+            List<Map<String, IndexEntry>> found = newShards();
+            ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            ByteArrayOutputStream key = new ByteArrayOutputStream();
+            long position = start;
+            long recordStart = start;
+            int keyLength = -1;
+            // Skip the tail of a record that started in the previous range
+            boolean skipping = start > 0 && readByte(start - 1) != NEWLINE;
+
+            scan:
+            while (position < size) {
+                buf.clear();
+                if (channel.read(buf, position) <= 0) break;
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    byte b = buf.get();
+                    if (b == NEWLINE) {
+                        // Blank lines and lines without a delimiter are skipped
+                        if (!skipping && keyLength > 0) {
+                            add(found, key, new IndexEntry(recordStart, keyLength, (int) (position - recordStart)));
+                        }
+                        skipping = false;
+                        key.reset();
+                        keyLength = -1;
+                        recordStart = ++position;
+                        if (recordStart >= end) break scan;
+                        continue;
+                    }
+                    if (!skipping && keyLength < 0) {
+                        if (b == DELIM) {
+                            keyLength = key.size();
+                        }
+                        else {
+                            key.write(b);
+                        }
+                    }
+                    position++;
+                }
+            }
+            // Last record of the file may not be terminated by a newline
+            if (position >= size && !skipping && keyLength > 0 && recordStart < end) {
+                add(found, key, new IndexEntry(recordStart, keyLength, (int) (size - recordStart)));
+            }
+            if (progress != null) {
+                progress.addAndGet(end - start);
+            }
+            return found;
+        }
+
+        private byte readByte(long at) throws IOException {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, at);
+            return one.get(0);
+        }
+
+        private void add(List<Map<String, IndexEntry>> found, ByteArrayOutputStream key, IndexEntry entry) {
+            String k = new String(key.toByteArray(), StandardCharsets.UTF_8);
+            found.get(shardOf(k)).put(k, entry);
+        }
+    }
+
+    // Replays the records of every range for one shard, in file order
+    private static class Merge extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final KVIndex index;
+        private final List<Range> ranges;
+        private final int shard;
+
+        Merge(KVIndex index, List<Range> ranges, int shard) {
+            this.index = index;
+            this.ranges = ranges;
+            this.shard = shard;
+        }
+
+        @Override
+        protected void compute() {
+            Map<String, IndexEntry> merged = index.shards.get(shard);
+            for (Range range : ranges) {
+                for (Map.Entry<String, IndexEntry> e : range.join().get(shard).entrySet()) {
+                    if (e.getValue().isTombstone()) {
+                        merged.remove(e.getKey());
+                    }
+                    else {
+                        merged.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package storage;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import common.md5;
+
+/**
+ * Sample of the keys of a data file with their md5 hashes, kept up to date
+ * as keys are added and removed, so that the load of the ranges of the ring
+ * is estimated without listing the index.
+ *
+ * A key is sampled at level l when the top l bits of a hash of its chars are
+ * zero, so a key is in or out of the sample whatever the order of the writes
+ * and a removed key is simply dropped. The level is raised whenever the
+ * sample grows past its limit, which halves it. Not thread safe, changes
+ * and reads are made under the storage lock.
+ */
+class KVKeySample {
+
+    private final int limit;
+    private int level = 0;
+    private final Map<String, BigInteger> hashes = new HashMap<String, BigInteger>();
+
+    /**
+     * @param limit  keys sampled before the level is raised
+     */
+    KVKeySample(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    static KVKeySample of(Collection<String> keys, int limit) {
+        KVKeySample sample = new KVKeySample(limit);
+        for (String key : keys) {
+            sample.add(key);
+        }
+        return sample;
+    }
+
+    // 64 bit FNV-1a of the chars, mixed so that its top bits are even
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean sampled(String key, int level) {
+        return level == 0 || (hash(key) >>> (64 - level)) == 0;
+    }
+
+    void add(String key) {
+        if (!sampled(key, level) || hashes.containsKey(key)) return;
+        hashes.put(key, md5.encode(key));
+        while (hashes.size() > limit && level < 63) {
+            level++;
+            Iterator<String> it = hashes.keySet().iterator();
+            while (it.hasNext()) {
+                if (!sampled(it.next(), level)) it.remove();
+            }
+        }
+    }
+
+    void remove(String key) {
+        hashes.remove(key);
+    }
+
+    int level() {
+        return level;
+    }
+
+    /**
+     * @return  hashes of the keys sampled at level, which is at least the
+     *          level of this sample
+     */
+    List<BigInteger> hashes(int level) {
+        List<BigInteger> result = new ArrayList<BigInteger>(hashes.size());
+        for (Map.Entry<String, BigInteger> e : hashes.entrySet()) {
+            if (level == this.level || sampled(e.getKey(), level)) {
+                result.add(e.getValue());
+            }
+        }
+        return result;
+    }
+}
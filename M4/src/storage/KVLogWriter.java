@@ -0,0 +1,233 @@
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Group-commit writer shared by the storages of a server. Puts and deletes
+ * from all connection threads are queued here; the writer thread drains the
+ * queue, appends every record of a batch to its data file with one write and
+ * then forces the files according to the fsync policy:
+ *
+ *  ALWAYS   - force after every batch, a put returns once it is on disk
+ *  INTERVAL - force at most once every fsyncInterval ms
+ *  NEVER    - leave flushing to the operating system
+ *
+ * Whatever the policy, the files are forced once the writer is stopped.
+ */
+public class KVLogWriter implements Runnable {
+
+    public enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    };
+
+    private static Logger logger = Logger.getRootLogger();
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private FsyncPolicy policy;
+    private long fsyncInterval;
+    private volatile boolean isRunning = false;
+    // Held to queue requests and to stop, so nothing is queued once the
+    // writer loop may have made its last drain
+    private final Object stateLock = new Object();
+    private LinkedBlockingQueue<WriteRequest> queue = new LinkedBlockingQueue<WriteRequest>();
+    // Storages written to since they were last forced
+    private Set<KVStorageLog> dirty = new LinkedHashSet<KVStorageLog>();
+    private long lastForce;
+    // Metrics, written by the writer thread only
+    private volatile long batchCount;
+    private volatile long recordCount;
+    private volatile long fsyncCount;
+    private volatile long fsyncNanos;
+    private volatile long maxFsyncNanos;
+
+    // A single put or delete (empty value) waiting to be committed
+    static class WriteRequest {
+        final KVStorageLog storage;
+        final String key;
+        final String value;
+        private CountDownLatch done = new CountDownLatch(1);
+        private IOException error;
+
+        WriteRequest(KVStorageLog storage, String key, String value) {
+            this.storage = storage;
+            this.key = key;
+            this.value = value;
+        }
+
+        void complete(IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for write of " + key);
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    public KVLogWriter(FsyncPolicy policy, long fsyncInterval) {
+        this.policy = policy;
+        this.fsyncInterval = fsyncInterval;
+        this.lastForce = System.currentTimeMillis();
+        this.isRunning = true;
+    }
+
+    public FsyncPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Queue the records together and block until all have been committed
+     */
+    void write(List<WriteRequest> requests) throws IOException {
+        synchronized (stateLock) {
+            if (!isRunning) {
+                throw new IOException("Log writer is stopped");
+            }
+            queue.addAll(requests);
+        }
+        for (WriteRequest request : requests) {
+            request.await();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<WriteRequest> batch = new ArrayList<WriteRequest>();
+        while (isRunning || !queue.isEmpty()) {
+            try {
+                long wait = (policy == FsyncPolicy.INTERVAL) ? fsyncInterval : 1000;
+                WriteRequest first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    commit(batch);
+                    batch.clear();
+                }
+                if (policy == FsyncPolicy.INTERVAL
+                        && System.currentTimeMillis() - lastForce >= fsyncInterval) {
+                    forceDirty();
+                }
+            } catch (InterruptedException e) {
+                logger.error("Log writer interrupted " + e);
+            }
+        }
+        // Anything queued while stopping is still committed
+        queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            commit(batch);
+        }
+        forceDirty();
+        logger.info("Log writer stopped. " + getMetrics());
+    }
+
+    private void commit(List<WriteRequest> batch) {
+        // Keep the order of the requests within each storage
+        Map<KVStorageLog, List<WriteRequest>> byStorage = new LinkedHashMap<KVStorageLog, List<WriteRequest>>();
+        for (WriteRequest request : batch) {
+            List<WriteRequest> requests = byStorage.get(request.storage);
+            if (requests == null) {
+                requests = new ArrayList<WriteRequest>();
+                byStorage.put(request.storage, requests);
+            }
+            requests.add(request);
+        }
+
+        Map<KVStorageLog, IOException> errors = new LinkedHashMap<KVStorageLog, IOException>();
+        for (Map.Entry<KVStorageLog, List<WriteRequest>> e : byStorage.entrySet()) {
+            try {
+                e.getKey().appendBatch(e.getValue());
+                dirty.add(e.getKey());
+            } catch (IOException ex) {
+                logger.error("Unable to write batch to " + e.getKey().getFilePath() + ": " + ex);
+                errors.put(e.getKey(), ex);
+            }
+        }
+
+        long fsyncTime = 0;
+        if (policy == FsyncPolicy.ALWAYS) {
+            long start = System.nanoTime();
+            errors.putAll(forceDirty());
+            fsyncTime = System.nanoTime() - start;
+        }
+
+        for (WriteRequest request : batch) {
+            request.complete(errors.get(request.storage));
+        }
+
+        batchCount++;
+        recordCount += batch.size();
+        logger.debug("Committed batch of " + batch.size() + " records to " + byStorage.size()
+                + " files, fsync " + TimeUnit.NANOSECONDS.toMicros(fsyncTime) + " us");
+    }
+
+    private Map<KVStorageLog, IOException> forceDirty() {
+        Map<KVStorageLog, IOException> errors = new LinkedHashMap<KVStorageLog, IOException>();
+        if (dirty.isEmpty()) return errors;
+        long start = System.nanoTime();
+        for (KVStorageLog storage : dirty) {
+            try {
+                storage.force();
+            } catch (IOException ex) {
+                logger.error("Unable to force " + storage.getFilePath() + ": " + ex);
+                errors.put(storage, ex);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        dirty.clear();
+        lastForce = System.currentTimeMillis();
+        fsyncCount++;
+        fsyncNanos += elapsed;
+        maxFsyncNanos = Math.max(maxFsyncNanos, elapsed);
+        return errors;
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public double getAverageBatchSize() {
+        return (batchCount == 0) ? 0 : (double) recordCount / batchCount;
+    }
+
+    public long getAverageFsyncMicros() {
+        return (fsyncCount == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(fsyncNanos / fsyncCount);
+    }
+
+    public long getMaxFsyncMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxFsyncNanos);
+    }
+
+    public String getMetrics() {
+        return "batches: " + batchCount + ", records: " + recordCount
+                + ", avg batch size: " + String.format("%.2f", getAverageBatchSize())
+                + ", fsyncs: " + fsyncCount + ", avg fsync: " + getAverageFsyncMicros() + " us"
+                + ", max fsync: " + getMaxFsyncMicros() + " us";
+    }
+
+    public void stop() {
+        synchronized (stateLock) {
+            this.isRunning = false;
+        }
+    }
+}
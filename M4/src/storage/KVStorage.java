@@ -0,0 +1,110 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public abstract class KVStorage implements IKVStorage {
+    private String filePath;
+    private StorageStrategy strategy;
+
+    public KVStorage(String filePath, String strategy) {
+        this.filePath = filePath;
+        this.strategy = StorageStrategy.valueOf(strategy);
+    }
+
+    public static boolean isValidStrategy(String strategy) {
+        for (StorageStrategy s : StorageStrategy.values()) {
+            if (s.name().equals(strategy)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static KVStorage createKVStorage(String filePath, String strategy) throws IOException {
+        return createKVStorage(filePath, strategy, null);
+    }
+
+    /**
+     * @param writer  group-commit writer for puts and deletes, null to write
+     *                from the calling thread
+     */
+    public static KVStorage createKVStorage(String filePath, String strategy, KVLogWriter writer) throws IOException {
+        KVStorage storage = openKVStorage(filePath, strategy, writer);
+        storage.recover();
+        return storage;
+    }
+
+    /**
+     * Open a storage without indexing its data file, recover() has to be
+     * called before it is used
+     */
+    public static KVStorage openKVStorage(String filePath, String strategy, KVLogWriter writer) throws IOException {
+        switch(strategy) {
+            case "LOG":
+                return new KVStorageLog(filePath, writer);
+            case "SEGMENTED":
+                return new KVStorageSegmented(filePath, writer);
+            default:
+                return new KVStorageLog(filePath, writer);
+        }
+    }
+
+    /**
+     * @return  true if the storage at filePath has data files, whatever its strategy
+     */
+    public static boolean exists(String filePath) {
+        return KVStorageSegmented.exists(filePath);
+    }
+
+    /**
+     * @return  live keys stored in the data files at filePath, for readers
+     *          outside the server such as the ECS
+     */
+    public static List<String> readKeys(String filePath) throws IOException {
+        List<String> keys = KVStorageSegmented.readKeys(filePath);
+        if (Files.exists(Paths.get(filePath))) {
+            keys.addAll(KVStorageLog.readKeys(filePath));
+        }
+        return keys;
+    }
+
+    /**
+     * @return  records of the data files at filePath as they are on disk,
+     *          from its single file or else its segment files
+     * @throws NoSuchFileException if there is no data file
+     */
+    public static List<String> readLines(String filePath) throws IOException {
+        Path path = Paths.get(filePath);
+        if (Files.exists(path)) {
+            return Files.readAllLines(path, StandardCharsets.UTF_8);
+        }
+        if (!exists(filePath)) {
+            throw new NoSuchFileException(filePath);
+        }
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < KVStorageSegmented.SEGMENTS; i++) {
+            Path segment = Paths.get(KVStorageSegmented.segmentPath(filePath, i));
+            if (Files.exists(segment)) {
+                lines.addAll(Files.readAllLines(segment, StandardCharsets.UTF_8));
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+    @Override
+    public StorageStrategy getStrategy() {
+        return this.strategy;
+    }
+}
@@ -0,0 +1,51 @@
+package storage;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background thread that compacts a storage once the share of dead records
+ * in its data file reaches the configured garbage ratio.
+ */
+public class KVStorageCompactor implements Runnable {
+    private static Logger logger = Logger.getRootLogger();
+    private List<KVStorage> storages;
+    private double garbageRatio;
+    private long minFileSize;
+    private long sleepTime;
+    private volatile boolean isRunning = false;
+
+    public KVStorageCompactor(List<KVStorage> storages, double garbageRatio, long minFileSize, long sleepTime) {
+        this.storages = storages;
+        this.garbageRatio = garbageRatio;
+        this.minFileSize = minFileSize;
+        this.sleepTime = sleepTime;
+        this.isRunning = true;
+    }
+
+    @Override
+    public void run() {
+        while(isRunning) {
+            for(KVStorage storage : storages) {
+                if(storage.fileSize() >= minFileSize && storage.garbageRatio() >= garbageRatio) {
+                    try {
+                        storage.compact();
+                    } catch (IOException e) {
+                        logger.error("Unable to compact " + storage.getFilePath() + ": " + e);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                logger.error("Compactor interrupted " + e);
+            }
+        }
+    }
+
+    public void stop() {
+        this.isRunning = false;
+    }
+}
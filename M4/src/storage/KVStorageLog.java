@@ -0,0 +1,572 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import common.KVConstants;
+import storage.KVIndex.IndexEntry;
+
+/**
+ * Log-structured storage engine. Every KV pair is a "key|value" line in the
+ * data file, newlines and backslashes of the value escaped with a backslash
+ * so that any value stays on one line. An in-memory index maps each key to
+ * the position of its line,
+ * so a lookup costs one positioned read instead of a scan of the whole file.
+ * The index is rebuilt from the data file by recover(), see KVIndex.
+ *
+ * Updates and deletes never rewrite the file: an update appends a new record
+ * and a delete appends a tombstone ("key|" with an empty value). The space held
+ * by records that are no longer live is reclaimed by compact().
+ *
+ * When a KVLogWriter is given, puts and deletes are committed in batches by
+ * its writer thread and flushed according to its fsync policy; otherwise
+ * they are written by the calling thread and never forced.
+ *
+ * In MMAP read mode values are decoded straight out of read-only mappings of
+ * the data file instead of being read into a heap buffer first. The file is
+ * mapped in windows of MAP_STEP bytes, and a window is only mapped again when
+ * a lookup hits a record appended to it after it was mapped. Values are
+ * decoded after releasing the storage lock.
+ *
+ * A Bloom filter of the written keys answers most lookups of missing keys
+ * without the storage lock. It is rebuilt from the index on recovery and
+ * compaction, and whenever it holds more keys than it was sized for. A
+ * sample of the keys for the load reports, see KVKeySample, is kept along.
+ */
+public class KVStorageLog extends KVStorage {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final char ESCAPE = '\\';
+    private static final long MAP_STEP = 64L * 1024 * 1024;
+
+    // Channel is only opened once the data file exists, so that an empty
+    // storage does not leave an empty file behind
+    private FileChannel channel;
+    private long fileEnd;
+    // Bytes on disk taken by live records, the rest of the file is garbage
+    private long liveBytes;
+    // Bumped whenever the data file is replaced or removed, so that a
+    // compaction running in the background can tell its copy is stale
+    private long generation;
+    private KVIndex index = new KVIndex();
+    private volatile KVBloomFilter bloom = new KVBloomFilter(0);
+    private final int sampleLimit;
+    private KVKeySample sample;
+    // Bytes of the data file scanned so far by recover()
+    private AtomicLong recoveredBytes = new AtomicLong();
+    private final Object compactLock = new Object();
+    private KVLogWriter writer;
+    private ReadMode readMode = ReadMode.CHANNEL;
+    // Mappings of the windows of the data file looked up so far, by window
+    private final List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+
+    public KVStorageLog(String filePath) throws IOException {
+        this(filePath, null);
+    }
+
+    public KVStorageLog(String filePath, KVLogWriter writer) throws IOException {
+        this(filePath, writer, KVConstants.LOAD_SAMPLE);
+    }
+
+    /**
+     * @param sampleLimit  keys sampled for sampleHashes()
+     */
+    KVStorageLog(String filePath, KVLogWriter writer, int sampleLimit) throws IOException {
+        super(filePath, "LOG");
+        this.writer = writer;
+        this.sampleLimit = sampleLimit;
+        this.sample = new KVKeySample(sampleLimit);
+        if (Files.exists(Paths.get(filePath))) {
+            openChannel();
+        }
+    }
+
+    private void openChannel() throws IOException {
+        this.channel = FileChannel.open(Paths.get(getFilePath()),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fileEnd = channel.size();
+        this.mapped.clear();
+    }
+
+    /**
+     * Rebuild the index by scanning the data file. The file is scanned in
+     * ranges on the fork-join pool of the calling thread, or the common pool.
+     */
+    @Override
+    public synchronized void recover() throws IOException {
+        recoveredBytes.set(0);
+        if (channel == null) {
+            index = new KVIndex();
+            bloom = new KVBloomFilter(0);
+            sample = new KVKeySample(sampleLimit);
+            liveBytes = 0;
+            return;
+        }
+        long start = System.currentTimeMillis();
+        index = KVIndex.build(channel, fileEnd, recoveredBytes);
+        List<String> keys = index.keys();
+        bloom = KVBloomFilter.of(keys);
+        sample = KVKeySample.of(keys, sampleLimit);
+        liveBytes = index.liveBytes();
+        logger.info("Indexed " + index.size() + " keys from " + getFilePath()
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public long recoveredBytes() {
+        return recoveredBytes.get();
+    }
+
+    /**
+     * @return  live keys of the data file at filePath, without opening it for writing
+     */
+    public static List<String> readKeys(String filePath) throws IOException {
+        FileChannel in = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        try {
+            return KVIndex.build(in, in.size(), null).keys();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private byte[] encodeRecord(String key, String value) {
+        return (key + KVConstants.DELIM + escape(value) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf('\n') < 0 && value.indexOf(ESCAPE) < 0) return value;
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n') {
+                escaped.append(ESCAPE).append('n');
+            }
+            else if (c == ESCAPE) {
+                escaped.append(ESCAPE).append(ESCAPE);
+            }
+            else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf(ESCAPE) < 0) return value;
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ESCAPE && i + 1 < value.length()) {
+                c = value.charAt(++i);
+                unescaped.append(c == 'n' ? '\n' : c);
+            }
+            else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Append the records of a batch with a single write and apply them to the
+     * index in order. Deletes of keys that are not stored are dropped.
+     */
+    synchronized void appendBatch(List<KVLogWriter.WriteRequest> batch) throws IOException {
+        if (channel == null) {
+            openChannel();
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        List<String> keys = new ArrayList<String>();
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        Map<String, Boolean> stored = new HashMap<String, Boolean>();
+        long offset = fileEnd;
+        for (KVLogWriter.WriteRequest request : batch) {
+            boolean tombstone = request.value.isEmpty();
+            Boolean wasStored = stored.get(request.key);
+            if (wasStored == null) {
+                wasStored = index.containsKey(request.key);
+            }
+            if (tombstone && !wasStored) continue;
+            stored.put(request.key, !tombstone);
+
+            byte[] record = encodeRecord(request.key, request.value);
+            int keyLength = request.key.getBytes(StandardCharsets.UTF_8).length;
+            keys.add(request.key);
+            entries.add(new IndexEntry(offset + records.size(), keyLength, record.length - 1));
+            records.write(record, 0, record.length);
+        }
+        if (records.size() == 0) return;
+
+        ByteBuffer buf = ByteBuffer.wrap(records.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+        fileEnd += records.size();
+
+        for (int i = 0; i < keys.size(); i++) {
+            IndexEntry entry = entries.get(i);
+            IndexEntry old = entry.isTombstone() ? index.remove(keys.get(i)) : index.put(keys.get(i), entry);
+            if (old != null) {
+                liveBytes -= old.length + 1;
+            }
+            if (!entry.isTombstone()) {
+                liveBytes += entry.length + 1;
+                bloom.add(keys.get(i));
+                if (old == null) sample.add(keys.get(i));
+            }
+            else if (old != null) {
+                sample.remove(keys.get(i));
+            }
+        }
+        if (bloom.isFull()) {
+            bloom = KVBloomFilter.of(index.keys());
+        }
+    }
+
+    private void write(String key, String value) throws IOException {
+        write(Collections.singletonList(new KVLogWriter.WriteRequest(this, key, value)));
+    }
+
+    private void write(List<KVLogWriter.WriteRequest> requests) throws IOException {
+        if (writer != null) {
+            writer.write(requests);
+        }
+        else {
+            appendBatch(requests);
+        }
+    }
+
+    /**
+     * Flush the data file to disk
+     */
+    void force() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            current = channel;
+        }
+        if (current == null) return;
+        try {
+            current.force(false);
+        }
+        catch (ClosedChannelException ex) {
+            // Swapped by a compaction or cleared, the new file is already forced
+        }
+    }
+
+    private String readValue(FileChannel channel, IndexEntry entry) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(entry.valueLength());
+        long position = entry.valueOffset();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of " + getFilePath() + " at " + position);
+            }
+        }
+        return unescape(new String(buf.array(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return  view of the value bytes inside the mapping of its window of the
+     *          data file, null if the value runs into the next window
+     */
+    private ByteBuffer mappedValue(IndexEntry entry) throws IOException {
+        long start = entry.valueOffset();
+        long end = start + entry.valueLength();
+        int window = (int) (start / MAP_STEP);
+        long windowStart = window * MAP_STEP;
+        if (end > windowStart + MAP_STEP) return null;
+        while (mapped.size() <= window) {
+            mapped.add(null);
+        }
+        MappedByteBuffer map = mapped.get(window);
+        if (map == null || windowStart + map.capacity() < end) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_STEP, fileEnd - windowStart));
+            mapped.set(window, map);
+        }
+        ByteBuffer value = map.duplicate();
+        value.limit((int) (end - windowStart));
+        value.position((int) (start - windowStart));
+        return value;
+    }
+
+    private void copy(FileChannel from, long position, long count, FileChannel to) throws IOException {
+        // transferTo moves the records without decoding them
+        long copied = 0;
+        while (copied < count) {
+            copied += from.transferTo(position + copied, count - copied, to);
+        }
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        write(key, value);
+    }
+
+    @Override
+    public void putAll(Map<String, String> pairs) throws IOException {
+        List<KVLogWriter.WriteRequest> requests = new ArrayList<KVLogWriter.WriteRequest>(pairs.size());
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            requests.add(new KVLogWriter.WriteRequest(this, pair.getKey(), pair.getValue()));
+        }
+        write(requests);
+    }
+
+    @Override
+    public synchronized void setReadMode(ReadMode readMode) {
+        this.readMode = readMode;
+        if (readMode != ReadMode.MMAP) {
+            mapped.clear();
+        }
+    }
+
+    @Override
+    public synchronized ReadMode getReadMode() {
+        return this.readMode;
+    }
+
+    /**
+     * The index lookup is made under the storage lock, the value is read
+     * after releasing it so that lookups do not wait for each other or for
+     * the writer.
+     */
+    @Override
+    public String get(String key) throws IOException {
+        if (!bloom.mightContain(key)) return "";
+        IndexEntry entry;
+        FileChannel current;
+        ByteBuffer view = null;
+        synchronized (this) {
+            entry = index.get(key);
+            if (entry == null) return "";
+            if (readMode == ReadMode.MMAP) {
+                view = mappedValue(entry);
+            }
+            current = channel;
+        }
+        // A mapping stays readable after the file is swapped or deleted
+        if (view != null) {
+            return unescape(StandardCharsets.UTF_8.decode(view).toString());
+        }
+        if (current == null) {
+            throw new ClosedChannelException();
+        }
+        try {
+            return readValue(current, entry);
+        }
+        catch (ClosedChannelException ex) {
+            // Swapped by a compaction or cleared meanwhile, look the key up again
+            if (Thread.currentThread().isInterrupted()) throw ex;
+            return get(key);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        write(key, "");
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+        if (!bloom.mightContain(key)) return false;
+        synchronized (this) {
+            return index.containsKey(key);
+        }
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        return index.keys();
+    }
+
+    @Override
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized List<BigInteger> sampleHashes() {
+        return sample.hashes(sample.level());
+    }
+
+    synchronized int sampleLevel() {
+        return sample.level();
+    }
+
+    /**
+     * @return  hashes of the keys sampled at level, at least sampleLevel()
+     */
+    synchronized List<BigInteger> sampleHashes(int level) {
+        return sample.hashes(level);
+    }
+
+    @Override
+    public synchronized double garbageRatio() {
+        if (fileEnd == 0) return 0;
+        return 1 - (double) liveBytes / fileEnd;
+    }
+
+    @Override
+    public synchronized long fileSize() {
+        return fileEnd;
+    }
+
+    /**
+     * Copy the live records into a new data file and swap it in. The bulk of
+     * the copy runs without holding the storage lock so that puts and gets are
+     * not stalled; records appended meanwhile are carried over at the swap.
+     */
+    @Override
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            Map<String, IndexEntry> snapshot;
+            FileChannel source;
+            long snapshotEnd, snapshotGeneration;
+            synchronized (this) {
+                if (channel == null || liveBytes == fileEnd) return;
+                snapshot = index.entries();
+                source = channel;
+                snapshotEnd = fileEnd;
+                snapshotGeneration = generation;
+            }
+
+            Path path = Paths.get(getFilePath());
+            Path tmpPath = Paths.get(getFilePath() + ".tmp");
+            Map<String, Long> moved = new HashMap<String, Long>();
+            FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                long offset = 0;
+                try {
+                    for (Map.Entry<String, IndexEntry> e : snapshot.entrySet()) {
+                        IndexEntry entry = e.getValue();
+                        copy(source, entry.offset, entry.length + 1, tmp);
+                        moved.put(e.getKey(), offset);
+                        offset += entry.length + 1;
+                    }
+                }
+                catch (ClosedChannelException ex) {
+                    // Storage was cleared or closed while copying
+                    return;
+                }
+
+                synchronized (this) {
+                    if (generation != snapshotGeneration) {
+                        // Storage was cleared while copying, the copy is useless
+                        tmp.close();
+                        Files.deleteIfExists(tmpPath);
+                        return;
+                    }
+                    // Records appended since the snapshot are copied as they are,
+                    // tombstones included, so that replaying the file stays correct
+                    copy(channel, snapshotEnd, fileEnd - snapshotEnd, tmp);
+                    tmp.force(false);
+                    tmp.close();
+
+                    KVIndex newIndex = new KVIndex();
+                    long newLive = 0;
+                    for (Map.Entry<String, IndexEntry> e : index.entries().entrySet()) {
+                        IndexEntry entry = e.getValue();
+                        long newOffset = (entry.offset < snapshotEnd)
+                                ? moved.get(e.getKey())
+                                : offset + (entry.offset - snapshotEnd);
+                        newIndex.put(e.getKey(), entry.moveTo(newOffset));
+                        newLive += entry.length + 1;
+                    }
+                    long before = fileEnd;
+                    channel.close();
+                    Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    openChannel();
+                    index = newIndex;
+                    // drops the keys deleted since the filter was built
+                    bloom = KVBloomFilter.of(newIndex.keys());
+                    liveBytes = newLive;
+                    generation++;
+                    logger.info("Compacted " + getFilePath() + " from " + before + " to " + fileEnd + " bytes");
+                }
+            }
+            finally {
+                if (tmp.isOpen()) {
+                    tmp.close();
+                    Files.deleteIfExists(tmpPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Link (or copy, where links are not supported) the data file to path,
+     * so that it can be read while compactions swap in new files
+     * @return  false if there is no data file
+     */
+    synchronized boolean linkTo(Path path) throws IOException {
+        if (channel == null) return false;
+        Files.deleteIfExists(path);
+        try {
+            Files.createLink(path, Paths.get(getFilePath()));
+        }
+        catch (UnsupportedOperationException | IOException ex) {
+            Files.copy(Paths.get(getFilePath()), path);
+        }
+        return true;
+    }
+
+    /**
+     * Take the data file at path as this storage's own and index it, if
+     * nothing is stored yet
+     * @return  false if keys are stored, the file is then left as it is
+     */
+    synchronized boolean installIfEmpty(Path path) throws IOException {
+        if (index.size() > 0) return false;
+        close();
+        Files.move(path, Paths.get(getFilePath()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openChannel();
+        recover();
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        close();
+        index.clear();
+        bloom = new KVBloomFilter(0);
+        sample = new KVKeySample(sampleLimit);
+        liveBytes = 0;
+        generation++;
+        Files.deleteIfExists(Paths.get(getFilePath()));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            logger.error("Unable to close " + getFilePath() + ": " + ex);
+        }
+        channel = null;
+        mapped.clear();
+        fileEnd = 0;
+        generation++;
+    }
+}
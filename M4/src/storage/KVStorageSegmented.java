@@ -0,0 +1,348 @@
+package storage;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import common.KVConstants;
+import common.md5;
+
+/**
+ * Storage split into SEGMENTS log files, each one holding the keys of a fixed
+ * slice of the hash ring: segment i holds the keys whose md5 hash starts with
+ * the bits of i. A range of the ring moved to another server is then mostly
+ * made of whole segments, which are shipped as files and dropped with one
+ * unlink instead of being split key by key. Only the segments at the ends of
+ * a server's range hold keys of both sides.
+ *
+ * Each segment is a KVStorageLog, so lookups, group commit, compaction and
+ * read modes work as they do for a single file. A data file left by the LOG
+ * strategy at filePath is split into the segments by recover().
+ */
+public class KVStorageSegmented extends KVStorage {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int SEGMENTS = KVConstants.STORAGE_SEGMENTS;
+    // Leading bits of the hash that select the segment
+    private static final int SEGMENT_BITS = Integer.numberOfTrailingZeros(SEGMENTS);
+    private static final int HASH_BITS = 128;
+    private static final int MIGRATE_BATCH = 1000;
+
+    private final KVStorageLog[] segments = new KVStorageLog[SEGMENTS];
+    private ReadMode readMode = ReadMode.CHANNEL;
+
+    public KVStorageSegmented(String filePath) throws IOException {
+        this(filePath, null);
+    }
+
+    public KVStorageSegmented(String filePath, KVLogWriter writer) throws IOException {
+        super(filePath, "SEGMENTED");
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new KVStorageLog(segmentPath(filePath, i), writer,
+                    KVConstants.LOAD_SAMPLE / SEGMENTS);
+        }
+    }
+
+    /**
+     * @return  path of the data file of a segment of the storage at filePath
+     */
+    public static String segmentPath(String filePath, int segment) {
+        return String.format("%s.seg%02x", filePath, segment);
+    }
+
+    /**
+     * @return  true if a data file of either strategy exists at filePath
+     */
+    public static boolean exists(String filePath) {
+        if (Files.exists(Paths.get(filePath))) return true;
+        for (int i = 0; i < SEGMENTS; i++) {
+            if (Files.exists(Paths.get(segmentPath(filePath, i)))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return  live keys of the segment files of the storage at filePath
+     */
+    public static List<String> readKeys(String filePath) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < SEGMENTS; i++) {
+            String path = segmentPath(filePath, i);
+            if (Files.exists(Paths.get(path))) {
+                keys.addAll(KVStorageLog.readKeys(path));
+            }
+        }
+        return keys;
+    }
+
+    public static int segmentOf(String key) {
+        return md5.encode(key).shiftRight(HASH_BITS - SEGMENT_BITS).intValue();
+    }
+
+    /**
+     * @return  first hash of the segment, segment SEGMENTS being the end of the ring
+     */
+    public static BigInteger segmentBegin(int segment) {
+        return BigInteger.valueOf(segment).shiftLeft(HASH_BITS - SEGMENT_BITS);
+    }
+
+    /**
+     * @return  true if every hash of the segment lies in [begin, end), a
+     *          range that wraps around the ring when end <= begin
+     */
+    public static boolean isWithin(int segment, BigInteger begin, BigInteger end) {
+        if (begin.equals(end)) return true;
+        boolean afterBegin = segmentBegin(segment).compareTo(begin) >= 0;
+        boolean beforeEnd = segmentBegin(segment + 1).compareTo(end) <= 0;
+        return (begin.compareTo(end) < 0) ? (afterBegin && beforeEnd) : (afterBegin || beforeEnd);
+    }
+
+    private KVStorageLog segmentFor(String key) {
+        return segments[segmentOf(key)];
+    }
+
+    /**
+     * @return  storage of one segment, to list or count its keys
+     */
+    public KVStorage getSegment(int segment) {
+        return segments[segment];
+    }
+
+    /**
+     * Link the data file of a segment to path, it stays readable there after
+     * the segment is compacted or dropped until the link is deleted
+     * @return  false if the segment has no data file
+     */
+    public boolean snapshotSegment(int segment, Path path) throws IOException {
+        return segments[segment].linkTo(path);
+    }
+
+    /**
+     * @return  path a segment received from another server is staged at
+     */
+    public Path stagingPath(int segment) {
+        return Paths.get(segmentPath(getFilePath(), segment) + ".recv");
+    }
+
+    /**
+     * Add the records of a data file received for a segment. The file becomes
+     * the segment if it is empty, otherwise its live pairs are written to it.
+     * A missing file adds nothing.
+     */
+    public void installSegment(int segment, Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        if (segments[segment].installIfEmpty(path)) {
+            logger.info("Installed segment " + segment + " of " + getFilePath()
+                    + " with " + segments[segment].size() + " keys");
+            return;
+        }
+        KVStorageLog received = new KVStorageLog(path.toString());
+        try {
+            received.recover();
+            copyFrom(received, segments[segment]);
+        }
+        finally {
+            received.clear();
+        }
+        logger.info("Merged received segment " + segment + " into " + getFilePath());
+    }
+
+    /**
+     * Remove a segment and its data file
+     */
+    public void dropSegment(int segment) throws IOException {
+        segments[segment].clear();
+    }
+
+    /**
+     * Make the data file received for a segment the whole segment, a missing
+     * file leaves it empty
+     */
+    public void replaceSegment(int segment, Path path) throws IOException {
+        dropSegment(segment);
+        installSegment(segment, path);
+    }
+
+    // Write the live pairs of from in batches, to one segment or split by key
+    private void copyFrom(KVStorage from, KVStorage to) throws IOException {
+        Map<String, String> batch = new LinkedHashMap<String, String>();
+        for (String key : from.keys()) {
+            String value = from.get(key);
+            if (value.isEmpty()) continue;
+            batch.put(key, value);
+            if (batch.size() == MIGRATE_BATCH) {
+                to.putAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            to.putAll(batch);
+        }
+    }
+
+    @Override
+    public synchronized void setReadMode(ReadMode readMode) {
+        this.readMode = readMode;
+        for (KVStorageLog segment : segments) {
+            segment.setReadMode(readMode);
+        }
+    }
+
+    @Override
+    public synchronized ReadMode getReadMode() {
+        return this.readMode;
+    }
+
+    @Override
+    public void recover() throws IOException {
+        for (KVStorageLog segment : segments) {
+            segment.recover();
+        }
+        Path legacy = Paths.get(getFilePath());
+        if (Files.exists(legacy)) {
+            KVStorageLog single = new KVStorageLog(getFilePath());
+            single.recover();
+            copyFrom(single, this);
+            single.clear();
+            logger.info("Split " + getFilePath() + " into " + SEGMENTS + " segments");
+        }
+    }
+
+    @Override
+    public long recoveredBytes() {
+        long bytes = 0;
+        for (KVStorageLog segment : segments) {
+            bytes += segment.recoveredBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        segmentFor(key).put(key, value);
+    }
+
+    /**
+     * The pairs are committed as one batch per segment
+     */
+    @Override
+    public void putAll(Map<String, String> pairs) throws IOException {
+        Map<KVStorageLog, Map<String, String>> bySegment = new LinkedHashMap<KVStorageLog, Map<String, String>>();
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            KVStorageLog segment = segmentFor(pair.getKey());
+            Map<String, String> segmentPairs = bySegment.get(segment);
+            if (segmentPairs == null) {
+                segmentPairs = new LinkedHashMap<String, String>();
+                bySegment.put(segment, segmentPairs);
+            }
+            segmentPairs.put(pair.getKey(), pair.getValue());
+        }
+        for (Map.Entry<KVStorageLog, Map<String, String>> e : bySegment.entrySet()) {
+            e.getKey().putAll(e.getValue());
+        }
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        return segmentFor(key).get(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        segmentFor(key).delete(key);
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+        return segmentFor(key).hasKey(key);
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<String>();
+        for (KVStorageLog segment : segments) {
+            keys.addAll(segment.keys());
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (KVStorageLog segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * The segments are sampled at the level of the most sampled one
+     */
+    @Override
+    public List<BigInteger> sampleHashes() {
+        int level = 0;
+        for (KVStorageLog segment : segments) {
+            level = Math.max(level, segment.sampleLevel());
+        }
+        List<BigInteger> hashes = new ArrayList<BigInteger>();
+        for (KVStorageLog segment : segments) {
+            hashes.addAll(segment.sampleHashes(level));
+        }
+        return hashes;
+    }
+
+    @Override
+    public double garbageRatio() {
+        long fileSize = 0;
+        double garbage = 0;
+        for (KVStorageLog segment : segments) {
+            fileSize += segment.fileSize();
+            garbage += segment.garbageRatio() * segment.fileSize();
+        }
+        return (fileSize == 0) ? 0 : garbage / fileSize;
+    }
+
+    @Override
+    public long fileSize() {
+        long fileSize = 0;
+        for (KVStorageLog segment : segments) {
+            fileSize += segment.fileSize();
+        }
+        return fileSize;
+    }
+
+    /**
+     * Compact the segments holding dead records, one at a time
+     */
+    @Override
+    public void compact() throws IOException {
+        for (KVStorageLog segment : segments) {
+            if (segment.garbageRatio() > 0) {
+                segment.compact();
+            }
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (KVStorageLog segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (KVStorageLog segment : segments) {
+            segment.close();
+        }
+    }
+}
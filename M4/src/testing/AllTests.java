@@ -37,6 +37,13 @@ public class AllTests {
 		//clientSuite.addTestSuite(PerformanceTesting.class);
         //M4 tests
         clientSuite.addTestSuite(M4Test.class); 
+        //Storage tests
+        clientSuite.addTestSuite(StorageTests.class);
+        clientSuite.addTestSuite(BinaryMessageTests.class);
+        clientSuite.addTestSuite(NioServerTests.class);
+        clientSuite.addTestSuite(KVPipelineTests.class);
+        clientSuite.addTestSuite(KeyLocksTests.class);
+        clientSuite.addTestSuite(LoadBalancerTests.class);
 		return clientSuite;
 	}
 	
@@ -0,0 +1,137 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import common.messages.BinaryMessage;
+import common.messages.BinaryMessageReader;
+import common.messages.KVBatch;
+import common.messages.KVMessage;
+import common.messages.KVReplyMessage;
+import common.messages.KVMessage.StatusType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryMessageTests extends TestCase {
+
+    private BinaryMessageReader readerOf(ByteArrayOutputStream out) {
+        return new BinaryMessageReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    // Values with delimiters, control characters and multi-byte characters
+    // should come back exactly as they were sent
+    @Test
+    public void testRoundTrip() throws IOException {
+        String value = "a|b|c\n\r\u0001%\u00e9\u4e2d";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryMessage(StatusType.PUT, 7, "key", value).writeTo(out);
+        new BinaryMessage(BinaryMessage.OP_GET_METADATA, 8, null, null).writeTo(out);
+
+        BinaryMessageReader reader = readerOf(out);
+        BinaryMessage put = reader.read();
+        assertEquals(StatusType.PUT, put.getStatus());
+        assertEquals(7, put.getRequestId());
+        assertEquals("key", put.getKey());
+        assertEquals(value, put.getValue());
+
+        BinaryMessage meta = reader.read();
+        assertEquals(BinaryMessage.OP_GET_METADATA, meta.getOpcode());
+        assertNull(meta.getStatus());
+        assertEquals("", meta.getKey());
+        assertEquals("", meta.getValue());
+    }
+
+    // Large values should be read into a grown buffer
+    @Test
+    public void testLargeValue() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 120 * 1024; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryMessage(StatusType.GET_SUCCESS, 1, "k", value.toString()).writeTo(out);
+        new BinaryMessage(StatusType.GET_SUCCESS, 2, "k", "small").writeTo(out);
+        BinaryMessageReader reader = readerOf(out);
+        assertEquals(value.toString(), reader.read().getValue());
+        assertEquals("small", reader.read().getValue());
+    }
+
+    @Test
+    public void testInvalidFrame() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[BinaryMessage.HEADER_SIZE], 0, BinaryMessage.HEADER_SIZE);
+        Exception ex = null;
+        try {
+            readerOf(out).read();
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertTrue(ex != null && !(ex instanceof EOFException));
+    }
+
+    // Lengths whose sum overflows an int are refused, not allocated
+    @Test
+    public void testOverflowingLengths() {
+        ByteBuffer header = ByteBuffer.allocate(BinaryMessage.HEADER_SIZE);
+        header.putShort(BinaryMessage.MAGIC).put(BinaryMessage.VERSION).put(BinaryMessage.OP_BATCH)
+                .put((byte) 0).putInt(1).putInt(Integer.MAX_VALUE).putInt(Integer.MAX_VALUE);
+        header.flip();
+        Exception decoded = null, read = null;
+        try {
+            BinaryMessage.decode(header.duplicate());
+        } catch (IOException e) {
+            decoded = e;
+        }
+        try {
+            new BinaryMessageReader(new ByteArrayInputStream(header.array())).read();
+        } catch (IOException e) {
+            read = e;
+        }
+        assertNotNull(decoded);
+        assertTrue(read != null && !(read instanceof EOFException));
+    }
+
+    // Batch entries keep delimiters, digits and empty fields intact
+    @Test
+    public void testBatchRoundTrip() throws IOException {
+        List<KVReplyMessage> batch = Arrays.asList(
+                new KVReplyMessage("a", "12:3|x", StatusType.PUT),
+                new KVReplyMessage("b", "", StatusType.PUT),
+                new KVReplyMessage("c", null, StatusType.GET));
+        List<KVMessage> decoded = KVBatch.decode(KVBatch.encode(batch));
+        assertEquals(3, decoded.size());
+        assertEquals("12:3|x", decoded.get(0).getValue());
+        assertEquals(StatusType.PUT, decoded.get(1).getStatus());
+        assertEquals("", decoded.get(1).getValue());
+        assertEquals("c", decoded.get(2).getKey());
+        assertEquals(StatusType.GET, decoded.get(2).getStatus());
+
+        Exception ex = null;
+        try {
+            KVBatch.decode("3:PUT5:a");
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    // Field lengths past the end of the batch, or negative, are rejected
+    // without overflowing the end of the field
+    @Test
+    public void testBatchMalformedLength() {
+        for (String batch : Arrays.asList("3:PUT2147483647:a", "3:PUT-1:a", "2147483647:PUT")) {
+            Exception ex = null;
+            try {
+                KVBatch.decode(batch);
+            } catch (IOException e) {
+                ex = e;
+            }
+            assertNotNull(batch, ex);
+        }
+    }
+}
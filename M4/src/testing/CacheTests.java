@@ -6,6 +6,10 @@ import junit.framework.TestCase;
 import cache.KVCacheLFU;
 import cache.KVCacheLRU;
 import cache.KVCacheFIFO;
+import cache.KVCache;
+import cache.KVCacheSegmented;
+import cache.KVCacheTinyLFU;
+import cache.IKVCache.CacheStrategy;
 import client.KVStore;
 import common.messages.KVMessage;
 import common.messages.KVMessage.StatusType;
@@ -80,6 +84,26 @@ public class CacheTests extends TestCase {
         assertFalse(fifo_cache.hasKey("d"));
     }
 
+    // Reads count as uses, and a large cache evicts in insertion order
+    // when nothing is read
+    @Test
+    public void  testLRUpromoteOnRead() { 
+        lru_cache.insert("a", "1");
+        lru_cache.insert("b", "2");
+        lru_cache.insert("c", "3");
+        assertEquals("1", lru_cache.getValue("a"));
+        lru_cache.insert("d", "4");
+        assertTrue(lru_cache.hasKey("a"));
+        assertFalse(lru_cache.hasKey("b"));
+
+        KVCacheLRU large = new KVCacheLRU(100000);
+        for (int i = 0; i < 200000; i++) {
+            large.insert("k" + i, "v" + i);
+        }
+        assertFalse(large.hasKey("k99999"));
+        assertEquals("v100000", large.getValue("k100000"));
+    }
+
     @Test
     public void  testLFUreplacement() { 
         lfu_cache.insert("a", "1");
@@ -108,6 +132,173 @@ public class CacheTests extends TestCase {
         assertFalse(lfu_cache.hasKey("e"));
     }
 
+    // Old hot keys lose their counts with aging, ties go to the oldest key
+    @Test
+    public void  testLFUaging() { 
+        KVCacheLFU aging = new KVCacheLFU(2, 8);
+        aging.insert("old", "1");
+        for (int i = 0; i < 6; i++) {
+            aging.getValue("old");
+        }
+        assertEquals(7, aging.getCount("old"));
+        aging.insert("new", "2");
+        aging.getValue("new");
+        aging.getValue("new");
+        // 8 uses, counts halved
+        assertEquals(3, aging.getCount("old"));
+        assertEquals(1, aging.getCount("new"));
+        for (int i = 0; i < 4; i++) {
+            aging.getValue("new");
+        }
+        aging.insert("next", "3");
+        assertFalse(aging.hasKey("old"));
+        assertTrue(aging.hasKey("new"));
+
+        KVCacheLFU plain = new KVCacheLFU(3, 0);
+        plain.insert("a", "1");
+        plain.insert("b", "2");
+        plain.insert("c", "3");
+        plain.getValue("b");
+        plain.insert("d", "4");
+        assertFalse(plain.hasKey("a"));
+        assertTrue(plain.hasKey("c"));
+    }
+
+    // Segments evict on their own and count hits, misses and evictions,
+    // also with many threads reading and writing at once
+    @Test
+    public void  testSegmented() throws InterruptedException { 
+        KVCacheSegmented cache = (KVCacheSegmented) KVCache.createKVCache(64, "SEGMENTED");
+        assertEquals(CacheStrategy.SEGMENTED, cache.getStrategy());
+        for (int i = 0; i < 64; i++) {
+            cache.insert("k" + i, "v" + i);
+        }
+        assertEquals("v1", cache.getValue("k1"));
+        assertEquals("", cache.getValue("missing"));
+        cache.delete("k1");
+        assertFalse(cache.hasKey("k1"));
+
+        final KVCacheSegmented shared = cache;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        String key = "t" + id + "_" + (i % 100);
+                        shared.insert(key, "v" + i);
+                        shared.getValue(key);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long hits = 0, misses = 0, evictions = 0, size = 0;
+        for (KVCacheSegmented.SegmentStats segment : cache.getStats()) {
+            hits += segment.hits;
+            misses += segment.misses;
+            evictions += segment.evictions;
+            size += segment.size;
+        }
+        // Lookups made before the threads started included
+        assertEquals(8 * 10000 + 2, hits + misses);
+        assertTrue(misses >= 1);
+        assertTrue(evictions > 0);
+        assertTrue(size <= 64);
+    }
+
+    // Caches created one after the other keep their own configuration
+    @Test
+    public void testIndependentCaches() {
+        assertEquals(3, lru_cache.getCacheSize());
+        assertEquals(CacheStrategy.FIFO, fifo_cache.getStrategy());
+        KVCache coordinator = KVCache.createKVCache(2, "LRU");
+        KVCache replica = KVCache.createKVCache("1KB", "LFU");
+        assertEquals(2, coordinator.getCacheSize());
+        assertEquals(CacheStrategy.LRU, coordinator.getStrategy());
+        assertEquals(0, replica.getCacheSize());
+        assertEquals(1024, replica.getMaxBytes());
+        assertEquals(CacheStrategy.LFU, replica.getStrategy());
+        for (int i = 0; i < 5; i++) {
+            coordinator.insert("k" + i, "v");
+            replica.insert("k" + i, "v");
+        }
+        assertFalse(coordinator.hasKey("k0"));
+        assertTrue(replica.hasKey("k0"));
+        assertEquals(3, lru_cache.getCacheSize());
+    }
+
+    // A scan of cold keys does not flush the hot keys of a TINYLFU cache
+    @Test
+    public void testTinyLFUscan() {
+        KVCache cache = KVCache.createKVCache(10, "TINYLFU");
+        assertEquals(CacheStrategy.TINYLFU, cache.getStrategy());
+        for (int i = 0; i < 10; i++) {
+            cache.getValue("hot" + i);
+            cache.insert("hot" + i, "value" + i);
+            cache.getValue("hot" + i);
+        }
+        // every miss is looked up and inserted as getKV does, while the hot
+        // keys keep being read
+        for (int i = 0; i < 1000; i++) {
+            if (cache.getValue("cold" + i).equals("")) {
+                cache.insert("cold" + i, "value");
+            }
+            assertEquals("value" + (i % 10), cache.getValue("hot" + (i % 10)));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.hasKey("hot" + i));
+        }
+        assertEquals(1000, ((KVCacheTinyLFU) cache).getRejected());
+
+        // a key looked up more often than the least recently used one gets in
+        for (int i = 0; i < 5; i++) {
+            cache.getValue("new");
+        }
+        cache.insert("new", "value");
+        assertTrue(cache.hasKey("new"));
+        assertEquals(10, cache.getCacheSize());
+    }
+
+    // Caches sized in bytes evict by the weight of the entries
+    @Test
+    public void testByteBudget() {
+        assertTrue(KVCache.isValidSize("100"));
+        assertTrue(KVCache.isValidSize("64mb"));
+        assertFalse(KVCache.isValidSize("64 MB"));
+        assertEquals(-1, KVCache.parseBytes("100"));
+        assertEquals(64L << 20, KVCache.parseBytes("64MB"));
+        assertEquals(5, KVCache.createKVCache("5", "LRU").getCacheSize());
+
+        String small = "v";
+        String large = new String(new char[200]).replace('\0', 'v');
+        long budget = 4 * KVCache.weigh("k1", small);
+        for (String strategy : new String[] {"FIFO", "LRU", "LFU", "SEGMENTED", "TINYLFU"}) {
+            KVCache cache = KVCache.createKVCache(budget + "B", strategy);
+            assertEquals(budget, cache.getMaxBytes());
+            for (int i = 1; i <= 4; i++) {
+                cache.insert("k" + i, small);
+            }
+            assertEquals(budget, cache.getUsedBytes());
+            // one large entry takes the room of several small ones, looked
+            // up first to pass the TINYLFU admission
+            cache.getValue("k5");
+            cache.getValue("k5");
+            cache.insert("k5", large.substring(0, 10));
+            assertTrue(strategy, cache.hasKey("k5"));
+            assertTrue(strategy, cache.getUsedBytes() <= budget);
+            assertFalse(strategy, cache.hasKey("k1") && cache.hasKey("k2"));
+            // an entry larger than the budget is not cached, nor its old value
+            cache.insert("k5", large);
+            assertFalse(strategy, cache.hasKey("k5"));
+            cache.clearCache();
+            assertEquals(0, cache.getUsedBytes());
+        }
+    }
+
     // The following tests ensure that after retrieving a value from disk
     // the cache is updates as expected
     @Test
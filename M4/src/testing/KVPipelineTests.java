@@ -0,0 +1,427 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvServer.NioServer;
+import app_kvServer.RangeReceiver;
+import app_kvServer.RangeSender;
+import app_kvServer.ReplicationChannel;
+import app_kvServer.RequestHandler;
+import client.KVPipeline;
+import client.KVStore;
+import common.KVConstants;
+import common.ServerMetaData;
+import common.messages.BinaryMessage;
+import common.messages.BinaryMessageReader;
+import common.messages.KVBatch;
+import common.messages.KVMessage;
+import common.messages.KVReplyMessage;
+import common.messages.TextMessage;
+import common.messages.KVMessage.StatusType;
+import storage.KVStorage;
+import storage.KVStorageSegmented;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+public class KVPipelineTests extends TestCase {
+
+    // Keeps puts in a map, as a server responsible for every key
+    private static class MapHandler extends RequestHandler {
+        private Map<String, String> store = new ConcurrentHashMap<String, String>();
+        private volatile int batches = 0;
+        // Chunks of range transfers applied, and the one to refuse once
+        private volatile int chunks = 0;
+        private volatile int refuse = -1;
+        private volatile int installed = 0;
+        private final RangeReceiver receiver = new RangeReceiver(new RangeReceiver.Sink() {
+            public boolean begin(String destination) {
+                return true;
+            }
+
+            public boolean apply(String destination, Map<String, String> pairs) {
+                if (chunks == refuse) {
+                    refuse = -1;
+                    return false;
+                }
+                chunks++;
+                store.putAll(pairs);
+                return true;
+            }
+
+            public Path stage(String destination, int segment) throws IOException {
+                Path staged = Paths.get("STORAGE_TEST.recv");
+                Files.deleteIfExists(staged);
+                return staged;
+            }
+
+            public boolean install(String destination, int segment, Path staged) {
+                installed++;
+                if (!Files.exists(staged)) return true;
+                try {
+                    KVStorage received = KVStorage.createKVStorage(staged.toString(), "LOG");
+                    for (String key : received.keys()) {
+                        store.put(key, received.get(key));
+                    }
+                    received.clear();
+                } catch (IOException e) {
+                    return false;
+                }
+                return true;
+            }
+        });
+
+        MapHandler() {
+            super(null);
+        }
+
+        @Override
+        public BinaryMessage handleBinary(BinaryMessage request) {
+            if (RangeReceiver.isMoveRequest(request)) {
+                return receiver.handle(request);
+            }
+            if (request.getOpcode() == BinaryMessage.OP_REPLICA_BATCH) {
+                try {
+                    for (KVMessage entry : KVBatch.decode(request.getValue())) {
+                        store.put(entry.getKey(), entry.getValue());
+                    }
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+                return new BinaryMessage(BinaryMessage.OP_BATCH_REPLY, request.getRequestId(),
+                        "UPDATE_SUCCESS", null);
+            }
+            if (request.getOpcode() == BinaryMessage.OP_BATCH) {
+                batches++;
+                List<KVMessage> replies = new ArrayList<KVMessage>();
+                try {
+                    for (KVMessage entry : KVBatch.decode(request.getValue())) {
+                        replies.add(serve(entry.getStatus(), entry.getKey(), entry.getValue()));
+                    }
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+                return new BinaryMessage(BinaryMessage.OP_BATCH_REPLY, request.getRequestId(),
+                        null, KVBatch.encode(replies));
+            }
+            KVMessage reply = serve(request.getStatus(), request.getKey(), request.getValue());
+            return new BinaryMessage(reply.getStatus(), request.getRequestId(), reply.getKey(), reply.getValue());
+        }
+
+        private KVMessage serve(StatusType command, String key, String value) {
+            if (command == StatusType.PUT) {
+                String old = store.put(key, value);
+                return new KVReplyMessage(key, null, old == null ? StatusType.PUT_SUCCESS : StatusType.PUT_UPDATE);
+            }
+            String stored = store.get(key);
+            return new KVReplyMessage(key, stored, stored == null ? StatusType.GET_ERROR : StatusType.GET_SUCCESS);
+        }
+    }
+
+    private static void skipLine(InputStream in) throws IOException {
+        while (in.read() != '\n');
+    }
+
+    // Replies are matched by request id, not by the order they come back in
+    @Test
+    public void testOutOfOrderReplies() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final int requests = 10;
+        Thread fakeServer = new Thread() {
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    out.write(new TextMessage("Connection to KV server established").getMsgBytes());
+                    skipLine(in);
+                    in.read();
+                    out.write(new TextMessage(RequestHandler.PROTOCOL_BINARY).getMsgBytes());
+                    BinaryMessageReader reader = new BinaryMessageReader(in);
+                    List<BinaryMessage> received = new ArrayList<BinaryMessage>();
+                    for (int i = 0; i < requests; i++) {
+                        received.add(reader.read());
+                    }
+                    for (int i = requests - 1; i >= 0; i--) {
+                        BinaryMessage request = received.get(i);
+                        new BinaryMessage(StatusType.GET_SUCCESS, request.getRequestId(),
+                                request.getKey(), "value of " + request.getKey()).writeTo(out);
+                    }
+                    out.flush();
+                    socket.close();
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+            }
+        };
+        fakeServer.start();
+
+        KVPipeline pipeline = new KVPipeline("localhost", serverSocket.getLocalPort());
+        pipeline.connect();
+        List<CompletableFuture<BinaryMessage>> futures = new ArrayList<CompletableFuture<BinaryMessage>>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(pipeline.send(BinaryMessage.opcodeOf(StatusType.GET), "k" + i, null));
+        }
+        for (int i = 0; i < requests; i++) {
+            assertEquals("value of k" + i, futures.get(i).get().getValue());
+        }
+        fakeServer.join();
+        serverSocket.close();
+
+        // Requests on a lost connection fail instead of hanging
+        Exception ex = null;
+        try {
+            pipeline.send(BinaryMessage.opcodeOf(StatusType.GET), "k", null).get();
+        } catch (ExecutionException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    // Many puts issued without waiting, then read back
+    @Test
+    public void testPipelinedPutGet() throws Exception {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        NioServer server = new NioServer(channel, new MapHandler(), 1, 2, 16);
+        new Thread(server).start();
+        KVStore kvClient = new KVStore("localhost", channel.socket().getLocalPort());
+        try {
+            List<CompletableFuture<KVMessage>> puts = new ArrayList<CompletableFuture<KVMessage>>();
+            for (int i = 0; i < 2000; i++) {
+                puts.add(kvClient.putAsync("k" + i, "v" + i));
+            }
+            puts.add(kvClient.putAsync("k0", "new"));
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(StatusType.PUT_SUCCESS, puts.get(i).get().getStatus());
+            }
+            assertEquals(StatusType.PUT_UPDATE, puts.get(2000).get().getStatus());
+
+            List<CompletableFuture<KVMessage>> gets = new ArrayList<CompletableFuture<KVMessage>>();
+            for (int i = 0; i < 2000; i++) {
+                gets.add(kvClient.getAsync("k" + i));
+            }
+            assertEquals("new", gets.get(0).get().getValue());
+            assertEquals("v1999", gets.get(1999).get().getValue());
+            assertEquals(StatusType.GET_ERROR, kvClient.getAsync("missing").get().getStatus());
+            assertEquals(StatusType.PUT_ERROR, kvClient.putAsync("key with space", "v").get().getStatus());
+        } finally {
+            kvClient.closePipelines();
+            server.stop();
+        }
+    }
+
+    // putAll and getAll send one batch per server, and large batches split
+    @Test
+    public void testBatches() throws Exception {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        MapHandler handler = new MapHandler();
+        NioServer server = new NioServer(channel, handler, 1, 2, 16);
+        new Thread(server).start();
+        KVStore kvClient = new KVStore("localhost", channel.socket().getLocalPort());
+        try {
+            Map<String, String> pairs = new LinkedHashMap<String, String>();
+            for (int i = 0; i < 1000; i++) {
+                pairs.put("k" + i, "v|" + i);
+            }
+            pairs.put("bad key", "v");
+            Map<String, KVMessage> replies = kvClient.putAll(pairs);
+            assertEquals(1, handler.batches);
+            assertEquals(1001, replies.size());
+            assertEquals(StatusType.PUT_SUCCESS, replies.get("k999").getStatus());
+            assertEquals(StatusType.PUT_ERROR, replies.get("bad key").getStatus());
+
+            replies = kvClient.getAll(Arrays.asList("k0", "k500", "missing"));
+            assertEquals(2, handler.batches);
+            assertEquals("v|0", replies.get("k0").getValue());
+            assertEquals("v|500", replies.get("k500").getValue());
+            assertEquals(StatusType.GET_ERROR, replies.get("missing").getStatus());
+
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 100 * 1024; i++) {
+                large.append('x');
+            }
+            pairs.clear();
+            for (int i = 0; i < 20; i++) {
+                pairs.put("big" + i, large.toString());
+            }
+            replies = kvClient.putAll(pairs);
+            assertTrue(handler.batches > 3);
+            assertEquals(StatusType.PUT_SUCCESS, replies.get("big19").getStatus());
+            assertEquals(large.toString(), kvClient.getAsync("big19").get().getValue());
+        } finally {
+            kvClient.closePipelines();
+            server.stop();
+        }
+    }
+
+    // Updates reuse one connection, which follows the replica when it changes
+    @Test
+    public void testReplicationChannel() throws Exception {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        first.socket().bind(new InetSocketAddress(0));
+        MapHandler firstHandler = new MapHandler();
+        NioServer firstServer = new NioServer(first, firstHandler, 1, 2, 16);
+        new Thread(firstServer).start();
+        ServerSocketChannel second = ServerSocketChannel.open();
+        second.socket().bind(new InetSocketAddress(0));
+        MapHandler secondHandler = new MapHandler();
+        NioServer secondServer = new NioServer(second, secondHandler, 1, 2, 16);
+        new Thread(secondServer).start();
+
+        ReplicationChannel channel = new ReplicationChannel(KVConstants.PREPLICA);
+        try {
+            assertFalse(channel.send(batchOf("k", "v")));
+            channel.setReplica(new ServerMetaData("first", "localhost", first.socket().getLocalPort()));
+            for (int i = 0; i < 100; i++) {
+                assertTrue(channel.send(batchOf("k" + i, "v" + i)));
+            }
+            assertEquals(100, firstHandler.store.size());
+            assertEquals(0, channel.getPendingUpdates());
+            assertEquals(0, channel.getLagMillis());
+
+            // Sends fan out, ONE is met by a single replica and ALL is not
+            ServerSocket closed = new ServerSocket(0);
+            closed.close();
+            ReplicationChannel unreachable = new ReplicationChannel(KVConstants.SREPLICA);
+            unreachable.setReplica(new ServerMetaData("gone", "localhost", closed.getLocalPort()));
+            List<CompletableFuture<Boolean>> sends = new ArrayList<CompletableFuture<Boolean>>();
+            sends.add(channel.sendAsync(batchOf("fan", "out")));
+            sends.add(unreachable.sendAsync(batchOf("fan", "out")));
+            assertTrue(ReplicationChannel.acks(sends, 1).get());
+            assertFalse(ReplicationChannel.acks(sends, 2).get());
+            assertEquals(1, unreachable.getFailures());
+            assertEquals("out", firstHandler.store.get("fan"));
+
+            channel.setReplica(new ServerMetaData("second", "localhost", second.socket().getLocalPort()));
+            assertTrue(channel.send(batchOf("k", "v")));
+            assertEquals("v", secondHandler.store.get("k"));
+            assertNull(firstHandler.store.get("k"));
+        } finally {
+            channel.close();
+            firstServer.stop();
+            secondServer.stop();
+        }
+    }
+
+    // A range streams in chunks and resumes after a refused chunk
+    @Test
+    public void testRangeTransfer() throws Exception {
+        Files.deleteIfExists(Paths.get("STORAGE_TEST"));
+        KVStorage storage = KVStorage.createKVStorage("STORAGE_TEST", "LOG");
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        MapHandler handler = new MapHandler();
+        NioServer server = new NioServer(channel, handler, 1, 2, 16);
+        new Thread(server).start();
+        try {
+            List<String> keys = new ArrayList<String>();
+            Map<String, String> pairs = new LinkedHashMap<String, String>();
+            for (int i = 0; i < 3000; i++) {
+                keys.add("k" + i);
+                pairs.put("k" + i, "v|" + i);
+            }
+            storage.putAll(pairs);
+            handler.refuse = 5;
+            RangeSender sender = new RangeSender("test", "localhost", channel.socket().getLocalPort(),
+                    KVConstants.COORDINATOR, 1024);
+            assertTrue(sender.send(storage, keys));
+            assertEquals(3000, handler.store.size());
+            assertEquals("v|2999", handler.store.get("k2999"));
+            // Chunks after the refused one were sent again, not the ones before
+            assertTrue(handler.chunks > 10);
+            assertTrue(sender.getSentChunks() > handler.chunks);
+            assertTrue(sender.getSentChunks() <= handler.chunks + RangeSender.WINDOW);
+            assertEquals(0, handler.receiver.getOpenTransfers());
+        } finally {
+            server.stop();
+            storage.clear();
+        }
+    }
+
+    // Transfers of one sender running at once keep their own state
+    @Test
+    public void testConcurrentTransfers() {
+        MapHandler handler = new MapHandler();
+        String chunk = batchOf("a", "1");
+        String crc = Long.toString(RangeReceiver.checksum(chunk));
+        String[] ids = {"test-1", "test-2"};
+        for (String id : ids) {
+            BinaryMessage begin = handler.receiver.handle(new BinaryMessage(BinaryMessage.OP_MOVE_BEGIN, 1,
+                    KVConstants.COORDINATOR + "|" + id, null));
+            assertEquals(RangeReceiver.MOVE_SUCCESS, begin.getKey());
+        }
+        assertEquals(2, handler.receiver.getOpenTransfers());
+        for (String id : ids) {
+            BinaryMessage reply = handler.receiver.handle(new BinaryMessage(BinaryMessage.OP_MOVE_CHUNK, 2,
+                    KVConstants.COORDINATOR + "|" + id + "|0|" + crc, chunk));
+            assertEquals(RangeReceiver.MOVE_SUCCESS, reply.getKey());
+            BinaryMessage end = handler.receiver.handle(new BinaryMessage(BinaryMessage.OP_MOVE_END, 3,
+                    KVConstants.COORDINATOR + "|" + id + "|1", null));
+            assertEquals(RangeReceiver.MOVE_SUCCESS, end.getKey());
+        }
+        assertEquals(0, handler.receiver.getOpenTransfers());
+    }
+
+    // A whole segment is sent as the records of its data file
+    @Test
+    public void testSegmentTransfer() throws Exception {
+        Files.deleteIfExists(Paths.get("STORAGE_TEST"));
+        KVStorageSegmented storage = (KVStorageSegmented) KVStorage.createKVStorage("STORAGE_TEST", "SEGMENTED");
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        MapHandler handler = new MapHandler();
+        NioServer server = new NioServer(channel, handler, 1, 2, 16);
+        new Thread(server).start();
+        try {
+            Map<String, String> pairs = new LinkedHashMap<String, String>();
+            for (int i = 0; i < 3000; i++) {
+                pairs.put("k" + i, "v|" + i);
+            }
+            storage.putAll(pairs);
+            storage.delete("k1");
+            int segment = KVStorageSegmented.segmentOf("k1");
+            KVStorage sent = storage.getSegment(segment);
+            RangeSender sender = new RangeSender("test", "localhost", channel.socket().getLocalPort(),
+                    KVConstants.COORDINATOR, 256);
+            assertTrue(sender.sendSegment(storage, segment));
+            assertEquals(1, handler.installed);
+            assertTrue(sender.getSentChunks() > 1);
+            assertEquals(sent.size(), handler.store.size());
+            for (String key : sent.keys()) {
+                assertEquals(sent.get(key), handler.store.get(key));
+            }
+            assertNull(handler.store.get("k1"));
+            assertEquals(0, handler.receiver.getOpenTransfers());
+
+            // An empty segment is sent without chunks
+            storage.dropSegment(segment);
+            assertTrue(sender.sendSegment(storage, segment));
+            assertEquals(2, handler.installed);
+        } finally {
+            server.stop();
+            storage.clear();
+        }
+    }
+
+    private static String batchOf(String key, String value) {
+        return KVBatch.encode(Arrays.asList(new KVReplyMessage(key, value, StatusType.PUT)));
+    }
+}
@@ -0,0 +1,74 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvServer.KeyLocks;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class KeyLocksTests extends TestCase {
+
+    private Thread lockIn(final KeyLocks locks, final String key, final CountDownLatch locked) {
+        Thread t = new Thread() {
+            public void run() {
+                locks.lock(key);
+                locked.countDown();
+                locks.unlock(key);
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    // Keys on different stripes lock independently, the same key waits
+    @Test
+    public void testStripes() throws Exception {
+        KeyLocks locks = new KeyLocks(16);
+        // "a" and "b" hash to stripes 1 and 2
+        String other = "b";
+        locks.lock("a");
+        CountDownLatch otherLocked = new CountDownLatch(1);
+        CountDownLatch sameLocked = new CountDownLatch(1);
+        Thread t1 = lockIn(locks, other, otherLocked);
+        Thread t2 = lockIn(locks, "a", sameLocked);
+        assertTrue(otherLocked.await(1, TimeUnit.SECONDS));
+        assertFalse(sameLocked.await(200, TimeUnit.MILLISECONDS));
+        locks.unlock("a");
+        assertTrue(sameLocked.await(1, TimeUnit.SECONDS));
+        t1.join();
+        t2.join();
+
+        // Batches in any key order do not deadlock
+        locks.lockAll(Arrays.asList("a", other));
+        CountDownLatch batchLocked = new CountDownLatch(1);
+        Thread t3 = lockIn(locks, other, batchLocked);
+        assertFalse(batchLocked.await(200, TimeUnit.MILLISECONDS));
+        locks.unlockAll(Arrays.asList(other, "a"));
+        assertTrue(batchLocked.await(1, TimeUnit.SECONDS));
+        t3.join();
+    }
+
+    // The server lock waits for the writes holding a key lock
+    @Test
+    public void testServerLock() throws Exception {
+        final KeyLocks locks = new KeyLocks(16);
+        final AtomicBoolean serverLocked = new AtomicBoolean(false);
+        locks.lock("a");
+        Thread rebalance = new Thread() {
+            public void run() {
+                locks.lockServer();
+                serverLocked.set(true);
+                locks.unlockServer();
+            }
+        };
+        rebalance.start();
+        Thread.sleep(200);
+        assertFalse(serverLocked.get());
+        locks.unlock("a");
+        rebalance.join(1000);
+        assertTrue(serverLocked.get());
+    }
+}
@@ -0,0 +1,103 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import common.RangeLoad;
+import ecs.LoadBalancer;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LoadBalancerTests extends TestCase {
+
+    // A range ending at end with a cut at every key, hashed at begin + 1, begin + 2...
+    // and the requests spread evenly over the keys
+    private RangeLoad range(long begin, long end, long keys, double requests) {
+        List<BigInteger> cutHashes = new ArrayList<BigInteger>();
+        List<Long> cutKeys = new ArrayList<Long>();
+        List<Double> cutRequests = new ArrayList<Double>();
+        for (long i = 0; i < keys; i++) {
+            cutHashes.add(BigInteger.valueOf(begin + 1 + i));
+            cutKeys.add(i);
+            cutRequests.add(requests * i / keys);
+        }
+        return new RangeLoad(BigInteger.valueOf(end), keys, 0, requests, cutHashes, cutKeys, cutRequests);
+    }
+
+    private RangeLoad range(long begin, long end, long keys) {
+        return range(begin, end, keys, 0);
+    }
+
+    private List<LoadBalancer.Move> planKeys(List<RangeLoad> loads) {
+        return new LoadBalancer(1, 0).plan(loads);
+    }
+
+    @Test
+    public void testBalanced() {
+        List<RangeLoad> loads = Arrays.asList(range(0, 1000, 50), range(1000, 2000, 50), range(2000, 0, 50));
+        assertTrue(planKeys(loads).isEmpty());
+    }
+
+    // The full range gives half of its keys to the empty one after it
+    @Test
+    public void testMoveToNext() {
+        List<RangeLoad> loads = Arrays.asList(range(0, 1000, 100), range(1000, 2000, 0),
+                range(2000, 0, 50));
+        List<LoadBalancer.Move> moves = planKeys(loads);
+        assertEquals(1, moves.size());
+        LoadBalancer.Move move = moves.get(0);
+        assertEquals(0, move.entry);
+        assertEquals(0, move.from);
+        assertEquals(1, move.to);
+        assertEquals(50, move.keys);
+        assertEquals(BigInteger.valueOf(51), move.boundary);
+    }
+
+    // The full range gives its first keys to the empty one before it
+    @Test
+    public void testMoveToPrevious() {
+        List<RangeLoad> loads = Arrays.asList(range(2000, 1000, 0), range(1000, 1500, 100),
+                range(1500, 2000, 50));
+        List<LoadBalancer.Move> moves = planKeys(loads);
+        assertEquals(1, moves.size());
+        LoadBalancer.Move move = moves.get(0);
+        assertEquals(0, move.entry);
+        assertEquals(1, move.from);
+        assertEquals(0, move.to);
+        assertEquals(50, move.keys);
+        assertEquals(BigInteger.valueOf(1051), move.boundary);
+    }
+
+    // The range serving every request gives a third of them to either neighbour
+    @Test
+    public void testSplitHotRange() {
+        List<RangeLoad> loads = Arrays.asList(range(0, 1000, 50, 300), range(1000, 2000, 50, 0),
+                range(2000, 0, 50, 0));
+        assertTrue(planKeys(loads).isEmpty());
+        List<LoadBalancer.Move> moves = new LoadBalancer(0, 1).plan(loads);
+        assertEquals(2, moves.size());
+        assertEquals(0, moves.get(0).from);
+        assertEquals(1, moves.get(0).to);
+        assertEquals(16, moves.get(0).keys);
+        assertEquals(BigInteger.valueOf(35), moves.get(0).boundary);
+        assertEquals(2, moves.get(1).entry);
+        assertEquals(0, moves.get(1).from);
+        assertEquals(2, moves.get(1).to);
+        assertEquals(16, moves.get(1).keys);
+        assertEquals(BigInteger.valueOf(17), moves.get(1).boundary);
+    }
+
+    @Test
+    public void testMarshal() {
+        RangeLoad load = new RangeLoad(range(0, 1000, 3, 6).marshal());
+        assertEquals(BigInteger.valueOf(1000), load.endHash);
+        assertEquals(3, load.keys);
+        assertEquals(6.0, load.requests);
+        assertEquals(3, load.cuts());
+        assertEquals(BigInteger.valueOf(3), load.cutHash(2));
+        assertEquals(2, load.keysBelow(2));
+        assertEquals(4.0, load.requestsBelow(2));
+    }
+}
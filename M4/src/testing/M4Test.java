@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.math.BigInteger;
 import common.*;
+import storage.KVStorage;
 import java.lang.Process;
 import java.io.IOException;
 import java.util.Iterator;
@@ -87,7 +88,7 @@ public class M4Test extends TestCase {
         Exception ex = null;
         ArrayList<String> lines = new ArrayList<String>();
         try {
-            lines = new ArrayList<>(Files.readAllLines(filePath, StandardCharsets.UTF_8));
+            lines = new ArrayList<String>(KVStorage.readLines(filePath.toString()));
         } catch(IOException e) {
             ex = e;
         }
@@ -108,7 +109,7 @@ public class M4Test extends TestCase {
         boolean success = false;
         ArrayList<String> lines = new ArrayList<String>();
         try {
-            lines = new ArrayList<>(Files.readAllLines(filePath, StandardCharsets.UTF_8));
+            lines = new ArrayList<String>(KVStorage.readLines(filePath.toString()));
         } catch(IOException e) {
             ex = e;
         }
@@ -132,7 +133,7 @@ public class M4Test extends TestCase {
         Exception ex = null;
         ArrayList<String> lines = new ArrayList<String>();
         try {
-            lines = new ArrayList<>(Files.readAllLines(filePath, StandardCharsets.UTF_8));
+            lines = new ArrayList<String>(KVStorage.readLines(filePath.toString()));
         } catch(IOException e) {
             ex = e;
         }
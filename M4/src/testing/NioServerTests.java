@@ -0,0 +1,186 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvServer.NioServer;
+import app_kvServer.RequestHandler;
+import common.messages.BinaryMessage;
+import common.messages.BinaryMessageReader;
+import common.messages.TextMessage;
+import common.messages.KVMessage.StatusType;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.List;
+
+public class NioServerTests extends TestCase {
+
+    private ServerSocketChannel channel;
+    private NioServer server;
+
+    // Echoes every text message and frame back
+    private static class EchoHandler extends RequestHandler {
+        EchoHandler() {
+            super(null);
+        }
+
+        @Override
+        public List<TextMessage> handleText(String msg) {
+            return Arrays.asList(new TextMessage("ECHO|" + msg), new TextMessage("DONE"));
+        }
+
+        @Override
+        public BinaryMessage handleBinary(BinaryMessage request) {
+            return new BinaryMessage(StatusType.GET_SUCCESS, request.getRequestId(),
+                    request.getKey(), request.getValue());
+        }
+    }
+
+    private void startServer(int eventLoops, int workers, int queueSize) throws IOException {
+        channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        server = new NioServer(channel, new EchoHandler(), eventLoops, workers, queueSize);
+        new Thread(server).start();
+    }
+
+    public void tearDown() {
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", channel.socket().getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    // Messages end with LF CR, read byte by byte so that no frame that
+    // follows is buffered
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException();
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    // Text requests sent back to back are answered in order, then the
+    // connection switches to binary frames
+    @Test
+    public void testTextThenBinary() throws IOException {
+        startServer(1, 2, 16);
+        Socket socket = connect();
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        assertTrue(readLine(in).startsWith("Connection to KV server established"));
+
+        out.write(new TextMessage("PUT|a|1").getMsgBytes());
+        out.write(new TextMessage("GET|a").getMsgBytes());
+        out.flush();
+        assertEquals("ECHO|PUT|a|1", readLine(in));
+        assertEquals("DONE", readLine(in));
+        assertEquals("ECHO|GET|a", readLine(in));
+        assertEquals("DONE", readLine(in));
+
+        out.write(new TextMessage("PROTOCOL|BINARY|2").getMsgBytes());
+        out.flush();
+        assertEquals(RequestHandler.PROTOCOL_TEXT, readLine(in));
+
+        // Frames may follow the negotiation before its reply is read
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(new TextMessage("PROTOCOL|BINARY|" + BinaryMessage.VERSION).getMsgBytes());
+        for (int i = 0; i < 20; i++) {
+            new BinaryMessage(StatusType.GET, i, "k" + i, "v|" + i).writeTo(frames);
+        }
+        out.write(frames.toByteArray());
+        out.flush();
+        assertEquals(RequestHandler.PROTOCOL_BINARY, readLine(in));
+        // Skip the CR ending the reply
+        assertEquals('\r', in.read());
+        BinaryMessageReader reader = new BinaryMessageReader(in);
+        for (int i = 0; i < 20; i++) {
+            BinaryMessage frame = reader.read();
+            assertEquals(i, frame.getRequestId());
+            assertEquals("v|" + i, frame.getValue());
+        }
+        socket.close();
+    }
+
+    // A text line past the drop size closes its connection only
+    @Test
+    public void testOversizedLine() throws IOException {
+        startServer(1, 1, 4);
+        Socket other = connect();
+        readLine(other.getInputStream());
+        Socket socket = connect();
+        InputStream in = socket.getInputStream();
+        readLine(in);
+        assertEquals('\r', in.read());
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'a');
+        try {
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < 64; i++) {
+                out.write(chunk);
+            }
+            out.flush();
+            assertEquals(-1, in.read());
+        } catch (IOException e) {
+            // Reset by the server while still writing
+        }
+        socket.close();
+
+        other.getOutputStream().write(new TextMessage("GET|a").getMsgBytes());
+        other.getOutputStream().flush();
+        assertEquals("ECHO|GET|a", readLine(other.getInputStream()));
+        other.close();
+    }
+
+    // More connections than threads, with a worker queue that overflows
+    @Test
+    public void testManyConnections() throws Exception {
+        startServer(2, 2, 1);
+        final int clients = 50;
+        Thread[] threads = new Thread[clients];
+        final boolean[] ok = new boolean[clients];
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Socket socket = connect();
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = socket.getInputStream();
+                        readLine(in);
+                        boolean answered = true;
+                        for (int j = 0; j < 20; j++) {
+                            out.write(new TextMessage("GET|k" + client + "_" + j).getMsgBytes());
+                            out.flush();
+                            answered &= ("ECHO|GET|k" + client + "_" + j).equals(readLine(in));
+                            answered &= "DONE".equals(readLine(in));
+                        }
+                        ok[client] = answered;
+                        socket.close();
+                    } catch (IOException e) {
+                        ok[client] = false;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < clients; i++) {
+            assertTrue("client " + i, ok[i]);
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -48,6 +50,9 @@ public class PerformanceTesting extends TestCase {
 
     public void tearDown() {
         System.out.println("Tearing down tests");
+        for (KVStore client : clients) {
+            client.closePipelines();
+        }
         ecsClient.shutdown();
         ecsClient.disconnect();
         try{
@@ -192,12 +197,24 @@ public class PerformanceTesting extends TestCase {
         File[] listOfFiles = folder.listFiles();
         String value = "";
         int clientIdx = 0;
+        // Pipelined, the replies are only waited for once every put is sent
+        List<CompletableFuture<KVMessage>> responses = new ArrayList<CompletableFuture<KVMessage>>();
         for (int i = 0; i < listOfFiles.length; ++i) {
             if (listOfFiles[i].isFile()) {
                 value = getValueFromFile(listOfFiles[i]);
                 clientIdx = i % clients.size();
-                putKVPair(clients.get(clientIdx), listOfFiles[i].getName(), value.trim(), StatusType.PUT_SUCCESS, StatusType.PUT_UPDATE);
+                responses.add(clients.get(clientIdx).putAsync(listOfFiles[i].getName(), value.trim()));
+            }
+        }
+        for (CompletableFuture<KVMessage> response : responses) {
+            KVMessage reply = null;
+            try {
+                reply = response.get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println("ERROR when putting key: " + e);
             }
+            assertTrue(reply != null && (reply.getStatus().equals(StatusType.PUT_SUCCESS)
+                    || reply.getStatus().equals(StatusType.PUT_UPDATE)));
         }
     }
     
@@ -19,6 +19,7 @@ import app_kvECS.*;
 import java.util.Collection;
 import java.math.BigInteger;
 import common.*;
+import storage.KVStorage;
 import java.lang.Process;
 import java.io.IOException;
 import java.util.Iterator;
@@ -85,7 +86,7 @@ public class ReplicasTests extends TestCase {
         Exception ex = null;
         ArrayList<String> lines = new ArrayList<String>();
         try {
-            lines = new ArrayList<>(Files.readAllLines(filePath, StandardCharsets.UTF_8));
+            lines = new ArrayList<String>(KVStorage.readLines(filePath.toString()));
         } catch(IOException e) {
             ex = e;
         }
@@ -0,0 +1,359 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import common.KVConstants;
+import common.md5;
+import storage.IKVStorage;
+import storage.KVStorage;
+import storage.KVStorageSegmented;
+import storage.KVLogWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StorageTests extends TestCase {
+
+    private static final String FILE = "STORAGE_TEST";
+    private KVStorage storage;
+
+    public void setUp() throws IOException {
+        Files.deleteIfExists(Paths.get(FILE));
+        storage = KVStorage.createKVStorage(FILE, "LOG");
+    }
+
+    public void tearDown() throws IOException {
+        storage.clear();
+    }
+
+    // Test insertion, update and deletion through the index
+    @Test
+    public void testPutGetDelete() throws IOException {
+        storage.put("a", "1");
+        storage.put("b", "2");
+        storage.put("a", "1111");
+
+        assertEquals("1111", storage.get("a"));
+        assertEquals("2", storage.get("b"));
+        assertEquals("", storage.get("c"));
+        assertEquals(2, storage.size());
+
+        storage.delete("b");
+        assertFalse(storage.hasKey("b"));
+        assertEquals("", storage.get("b"));
+        assertEquals("1111", storage.get("a"));
+    }
+
+    // An empty storage should not leave a data file behind
+    @Test
+    public void testNoFileWhenEmpty() throws IOException {
+        assertFalse(Files.exists(Paths.get(FILE)));
+        storage.put("a", "1");
+        assertTrue(Files.exists(Paths.get(FILE)));
+        storage.clear();
+        assertFalse(Files.exists(Paths.get(FILE)));
+    }
+
+    // The index should be rebuilt from the data file when storage is reopened
+    @Test
+    public void testReopen() throws IOException {
+        storage.put("a", "1");
+        storage.put("b", "two words");
+        storage.put("c", "3");
+        storage.delete("c");
+        storage.close();
+
+        storage = KVStorage.createKVStorage(FILE, "LOG");
+        assertEquals(2, storage.size());
+        assertEquals("1", storage.get("a"));
+        assertEquals("two words", storage.get("b"));
+        assertFalse(storage.hasKey("c"));
+    }
+
+    // Newlines and backslashes in values should survive a restart
+    @Test
+    public void testEscapedValues() throws IOException {
+        storage.put("a", "line1\nline2");
+        storage.put("b", "back\\slash\\n");
+        storage.setReadMode(IKVStorage.ReadMode.MMAP);
+        assertEquals("line1\nline2", storage.get("a"));
+        storage.close();
+
+        storage = KVStorage.createKVStorage(FILE, "LOG");
+        assertEquals(2, storage.size());
+        assertEquals("line1\nline2", storage.get("a"));
+        assertEquals("back\\slash\\n", storage.get("b"));
+        assertFalse(storage.hasKey("line2"));
+    }
+
+    // A batch is applied in order, deletes included
+    @Test
+    public void testPutAll() throws IOException {
+        storage.put("a", "1");
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        pairs.put("b", "2");
+        pairs.put("a", "");
+        pairs.put("c", "3");
+        pairs.put("missing", "");
+        storage.putAll(pairs);
+        assertEquals(Arrays.asList("a|1", "b|2", "a|", "c|3"),
+                Files.readAllLines(Paths.get(FILE), StandardCharsets.UTF_8));
+        assertFalse(storage.hasKey("a"));
+        assertEquals("3", storage.get("c"));
+        assertEquals(2, storage.size());
+    }
+
+    // Updates and deletes are appended, compaction keeps only the live records
+    @Test
+    public void testCompaction() throws IOException {
+        storage.put("a", "1");
+        storage.put("b", "2");
+        long size = storage.fileSize();
+        storage.put("a", "11");
+        storage.delete("b");
+        assertTrue(storage.fileSize() > size);
+        assertTrue(storage.garbageRatio() > 0);
+        assertEquals(Arrays.asList("a"), KVStorage.readKeys(FILE));
+
+        storage.compact();
+        assertEquals(0.0, storage.garbageRatio());
+        assertEquals(Arrays.asList("a|11"), Files.readAllLines(Paths.get(FILE), StandardCharsets.UTF_8));
+        assertEquals("11", storage.get("a"));
+        assertFalse(storage.hasKey("b"));
+
+        storage.put("c", "3");
+        assertEquals("3", storage.get("c"));
+    }
+
+    // Compacting away every record should leave an empty file behind
+    @Test
+    public void testCompactAllDeleted() throws IOException {
+        storage.put("a", "1");
+        storage.delete("a");
+        storage.compact();
+        assertTrue(Files.exists(Paths.get(FILE)));
+        assertEquals(0, storage.fileSize());
+    }
+
+    // Concurrent puts through the group-commit writer are all persisted
+    @Test
+    public void testGroupCommit() throws Exception {
+        storage.close();
+        KVLogWriter writer = new KVLogWriter(KVLogWriter.FsyncPolicy.ALWAYS, 0);
+        Thread writerThread = new Thread(writer);
+        writerThread.start();
+        final KVStorage logged = KVStorage.createKVStorage(FILE, "LOG", writer);
+
+        Thread[] clients = new Thread[8];
+        for (int i = 0; i < clients.length; i++) {
+            final int client = i;
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            logged.put("k" + client + "_" + j, "v" + j);
+                        }
+                        logged.delete("k" + client + "_0");
+                    } catch (IOException e) {
+                        fail(e.toString());
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        writer.stop();
+        writerThread.join();
+
+        assertEquals(8 * 49, logged.size());
+        assertEquals("v49", logged.get("k7_49"));
+        assertTrue(writer.getBatchCount() > 0 && writer.getBatchCount() <= 8 * 51);
+        logged.close();
+
+        storage = KVStorage.createKVStorage(FILE, "LOG");
+        assertEquals(8 * 49, storage.size());
+        assertFalse(storage.hasKey("k3_0"));
+    }
+
+    // Values read through the mapping should follow appends and compactions
+    @Test
+    public void testMappedReads() throws IOException {
+        storage.setReadMode(IKVStorage.ReadMode.MMAP);
+        storage.put("a", "1");
+        assertEquals("1", storage.get("a"));
+        storage.put("b", "two words");
+        storage.put("a", "11");
+        assertEquals("two words", storage.get("b"));
+        assertEquals("11", storage.get("a"));
+
+        storage.compact();
+        assertEquals("11", storage.get("a"));
+        assertEquals("two words", storage.get("b"));
+    }
+
+    // Files larger than one scan range are indexed in parallel, later
+    // records and tombstones must still win over earlier ones
+    @Test
+    public void testParallelRecovery() throws IOException {
+        storage.close();
+        BufferedWriter out = Files.newBufferedWriter(Paths.get(FILE), StandardCharsets.UTF_8);
+        for (int i = 0; i < 100000; i++) {
+            out.write("k" + i + "|value_" + i + "_0123456789012345678901234567890123456789\n");
+        }
+        for (int i = 0; i < 100000; i += 2) {
+            out.write("k" + i + "|" + (i % 4 == 0 ? "" : "new" + i) + "\n");
+        }
+        out.close();
+
+        storage = KVStorage.createKVStorage(FILE, "LOG");
+        assertEquals(75000, storage.size());
+        assertEquals(Files.size(Paths.get(FILE)), storage.recoveredBytes());
+        assertFalse(storage.hasKey("k0"));
+        assertEquals("new2", storage.get("k2"));
+        assertEquals("value_99999_0123456789012345678901234567890123456789", storage.get("k99999"));
+        assertEquals(75000, KVStorage.readKeys(FILE).size());
+    }
+
+    // Lookups of missing keys are answered by the Bloom filter without the
+    // storage lock, the keys written are found as the filter grows
+    @Test
+    public void testMissingKeys() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            storage.put("k" + i, "v" + i);
+        }
+        storage.delete("k0");
+        storage.compact();
+        for (int i = 1; i < 5000; i++) {
+            assertTrue(storage.hasKey("k" + i));
+        }
+        assertEquals("", storage.get("k0"));
+
+        final AtomicInteger answered = new AtomicInteger();
+        final AtomicInteger found = new AtomicInteger();
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        if (!storage.get("missing" + i).equals("")) found.incrementAndGet();
+                        answered.incrementAndGet();
+                    }
+                } catch (IOException ex) {
+                    found.set(-1);
+                }
+            }
+        };
+        // the reader only stops at a false positive while the lock is held
+        synchronized (storage) {
+            reader.start();
+            Thread.sleep(500);
+            assertTrue(answered.get() >= 10);
+        }
+        reader.join();
+        assertEquals(0, found.get());
+        assertEquals(1000, answered.get());
+    }
+
+    // The key sample follows puts and deletes, holds every key while they
+    // are few and stays bounded, the same once reopened
+    @Test
+    public void testKeySample() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            storage.put("k" + i, "v" + i);
+        }
+        storage.put("k1", "update");
+        storage.delete("k0");
+        List<BigInteger> sample = storage.sampleHashes();
+        assertEquals(99, sample.size());
+        assertTrue(sample.contains(md5.encode("k1")));
+        assertFalse(sample.contains(md5.encode("k0")));
+
+        for (int i = 100; i < 20000; i++) {
+            storage.put("k" + i, "v" + i);
+        }
+        sample = storage.sampleHashes();
+        assertTrue(sample.size() <= KVConstants.LOAD_SAMPLE);
+        assertTrue(sample.size() > KVConstants.LOAD_SAMPLE / 4);
+        storage.close();
+
+        storage = KVStorage.createKVStorage(FILE, "LOG");
+        assertEquals(new HashSet<BigInteger>(sample), new HashSet<BigInteger>(storage.sampleHashes()));
+        storage.close();
+        KVStorage segmented = KVStorage.createKVStorage(FILE, "SEGMENTED");
+        try {
+            List<BigInteger> segmentedSample = segmented.sampleHashes();
+            assertTrue(segmentedSample.size() <= KVConstants.LOAD_SAMPLE);
+            assertTrue(segmentedSample.size() > KVConstants.LOAD_SAMPLE / 4);
+        }
+        finally {
+            segmented.clear();
+        }
+    }
+
+    // Keys are spread over hash range segments that can be moved as files,
+    // and a single data file of the LOG strategy is split into them
+    @Test
+    public void testSegments() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            storage.put("k" + i, "v" + i);
+        }
+        storage.close();
+        KVStorageSegmented segmented = (KVStorageSegmented) KVStorage.createKVStorage(FILE, "SEGMENTED");
+        try {
+            assertFalse(Files.exists(Paths.get(FILE)));
+            assertEquals(1000, segmented.size());
+            assertEquals(1000, KVStorage.readKeys(FILE).size());
+            assertEquals("v999", segmented.get("k999"));
+
+            int segment = KVStorageSegmented.segmentOf("k1");
+            KVStorage keys = segmented.getSegment(segment);
+            assertTrue(keys.hasKey("k1"));
+            assertTrue(keys.size() > 0 && keys.size() < 100);
+            for (String key : keys.keys()) {
+                assertEquals(segment, KVStorageSegmented.segmentOf(key));
+            }
+            BigInteger begin = KVStorageSegmented.segmentBegin(segment);
+            BigInteger end = KVStorageSegmented.segmentBegin(segment + 1);
+            assertTrue(KVStorageSegmented.isWithin(segment, begin, end));
+            assertFalse(KVStorageSegmented.isWithin(segment, begin.add(BigInteger.ONE), end));
+            // ranges that wrap around the ring
+            assertTrue(KVStorageSegmented.isWithin(segment, begin, begin.subtract(BigInteger.ONE)));
+            assertFalse(KVStorageSegmented.isWithin(segment, end.subtract(BigInteger.ONE), begin.add(BigInteger.ONE)));
+
+            // A segment dropped and installed again from a copy of its file
+            int count = keys.size();
+            Path copy = Paths.get(FILE + ".copy");
+            assertTrue(segmented.snapshotSegment(segment, copy));
+            segmented.dropSegment(segment);
+            assertEquals("", segmented.get("k1"));
+            assertEquals(1000 - count, segmented.size());
+            segmented.installSegment(segment, copy);
+            assertFalse(Files.exists(copy));
+            assertEquals("v1", segmented.get("k1"));
+            assertEquals(1000, segmented.size());
+
+            // Installed into a segment holding keys, the pairs are merged
+            assertTrue(segmented.snapshotSegment(segment, copy));
+            segmented.dropSegment(segment);
+            segmented.put("k1", "new");
+            segmented.installSegment(segment, copy);
+            assertEquals("v1", segmented.get("k1"));
+            assertEquals(1000, segmented.size());
+        } finally {
+            segmented.clear();
+        }
+        assertFalse(KVStorage.exists(FILE));
+    }
+}